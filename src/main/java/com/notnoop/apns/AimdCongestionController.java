@@ -0,0 +1,81 @@
+package com.notnoop.apns;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Additive-increase/multiplicative-decrease, as used by TCP.
+ *
+ * The rate grows by {@code increase} notifications per second for every
+ * second's worth of notifications written successfully, and is multiplied
+ * by {@code decreaseFactor} on congestion.  Congestion signals arriving
+ * within {@code holdOff} of a decrease count as the same episode, since a
+ * single drop usually shows up both as an error-response and a failed
+ * reconnect.
+ */
+public class AimdCongestionController implements CongestionController {
+
+    private final double initialRate;
+    private final double minRate;
+    private final double maxRate;
+    private final double increase;
+    private final double decreaseFactor;
+    private final long holdOffNanos;
+
+    private double rate;
+    private long lastDecrease;
+    private boolean decreased;
+
+    /**
+     * @param initialRate    rate to start at, in notifications per second
+     * @param minRate        lowest rate to back off to
+     * @param maxRate        highest rate to grow to
+     * @param increase       growth of the rate per second's worth of successful writes
+     * @param decreaseFactor factor between 0 and 1 applied to the rate on congestion
+     * @param holdOffMillis  time after a decrease during which further signals are ignored
+     */
+    public AimdCongestionController(double initialRate, double minRate, double maxRate,
+                                    double increase, double decreaseFactor, long holdOffMillis) {
+        if (minRate <= 0 || minRate > initialRate || initialRate > maxRate) {
+            throw new IllegalArgumentException("rates must satisfy 0 < minRate <= initialRate <= maxRate");
+        }
+        if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+            throw new IllegalArgumentException("decreaseFactor must be between 0 and 1");
+        }
+        this.initialRate = initialRate;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.increase = increase;
+        this.decreaseFactor = decreaseFactor;
+        this.holdOffNanos = TimeUnit.MILLISECONDS.toNanos(holdOffMillis);
+        this.rate = initialRate;
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public synchronized double onSuccess(int notifications) {
+        rate = Math.min(maxRate, rate + increase * notifications / rate);
+        return rate;
+    }
+
+    public synchronized double onCongestion(Signal signal) {
+        final long now = System.nanoTime();
+        if (!decreased || now - lastDecrease > holdOffNanos) {
+            rate = Math.max(minRate, rate * decreaseFactor);
+            lastDecrease = now;
+            decreased = true;
+        }
+        return rate;
+    }
+
+    public AimdCongestionController copy() {
+        return new AimdCongestionController(initialRate, minRate, maxRate, increase, decreaseFactor,
+                TimeUnit.NANOSECONDS.toMillis(holdOffNanos));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AimdCongestionController[rate=" + rate + ", min=" + minRate + ", max=" + maxRate + "]";
+    }
+}
@@ -0,0 +1,271 @@
+package com.notnoop.apns;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of what the library does behind the scenes, such as resizing
+ * connection pools.  The counters only ever grow; sample them periodically
+ * to derive rates.
+ *
+ * One instance can be shared by several services.
+ *
+ * @see ApnsServiceBuilder#withMetrics(ApnsMetrics)
+ */
+public class ApnsMetrics {
+
+    private final AtomicLong poolConnectionsOpened = new AtomicLong();
+    private final AtomicLong poolConnectionsClosed = new AtomicLong();
+    private final AtomicLong throttledSends = new AtomicLong();
+    private final AtomicLong throttleWaitNanos = new AtomicLong();
+    private final AtomicLong expiredDrops = new AtomicLong();
+    private final AtomicLong coalescedDrops = new AtomicLong();
+    private final AtomicLong idempotencyChecks = new AtomicLong();
+    private final AtomicLong duplicatesSuppressed = new AtomicLong();
+    private final AtomicLong resentNotifications = new AtomicLong();
+    private final AtomicLong resendNanos = new AtomicLong();
+    private final AtomicLong circuitOpenings = new AtomicLong();
+    private final AtomicLong circuitRejections = new AtomicLong();
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong fullHandshakeNanos = new AtomicLong();
+    private final AtomicLong resumedHandshakeNanos = new AtomicLong();
+
+    /**
+     * Records that a connection pool opened a connection.
+     */
+    public void poolConnectionOpened() {
+        poolConnectionsOpened.incrementAndGet();
+    }
+
+    /**
+     * Records that a connection pool closed an idle connection.
+     */
+    public void poolConnectionClosed() {
+        poolConnectionsClosed.incrementAndGet();
+    }
+
+    /**
+     * Records that a send had to wait for a rate limiter.
+     *
+     * @param waitNanos how long it waited
+     */
+    public void throttled(long waitNanos) {
+        throttledSends.incrementAndGet();
+        throttleWaitNanos.addAndGet(waitNanos);
+    }
+
+    /**
+     * Records that a notification expired before it could be written.
+     */
+    public void expiredDropped() {
+        expiredDrops.incrementAndGet();
+    }
+
+    /**
+     * Records that a newer notification replaced a pending one.
+     */
+    public void coalesced() {
+        coalescedDrops.incrementAndGet();
+    }
+
+    /**
+     * Records that a notification was checked against the deduplication
+     * window.
+     *
+     * @param duplicate whether it turned out to be a duplicate
+     */
+    public void idempotencyChecked(boolean duplicate) {
+        idempotencyChecks.incrementAndGet();
+        if (duplicate) {
+            duplicatesSuppressed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records that notifications written after a rejected one were resent.
+     *
+     * @param notifications how many were resent
+     * @param nanos         how long resending them took
+     */
+    public void resent(int notifications, long nanos) {
+        resentNotifications.addAndGet(notifications);
+        resendNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records that a circuit breaker opened after connects kept failing.
+     */
+    public void circuitOpened() {
+        circuitOpenings.incrementAndGet();
+    }
+
+    /**
+     * Records that an open circuit breaker failed a connect right away.
+     */
+    public void circuitRejected() {
+        circuitRejections.incrementAndGet();
+    }
+
+    /**
+     * Records a TLS handshake with the gateway.
+     *
+     * @param resumed whether a cached session was resumed
+     * @param nanos   how long the handshake took
+     */
+    public void handshaken(boolean resumed, long nanos) {
+        if (resumed) {
+            resumedHandshakes.incrementAndGet();
+            resumedHandshakeNanos.addAndGet(nanos);
+        } else {
+            fullHandshakes.incrementAndGet();
+            fullHandshakeNanos.addAndGet(nanos);
+        }
+    }
+
+    public long getPoolConnectionsOpened() {
+        return poolConnectionsOpened.get();
+    }
+
+    public long getPoolConnectionsClosed() {
+        return poolConnectionsClosed.get();
+    }
+
+    /**
+     * Returns how many sends had to wait for a rate limiter.
+     */
+    public long getThrottledSends() {
+        return throttledSends.get();
+    }
+
+    /**
+     * Returns the total time sends have waited for rate limiters.
+     */
+    public long getThrottleWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttleWaitNanos.get());
+    }
+
+    /**
+     * Returns how many notifications were dropped because they expired
+     * while queued or waiting for a resend.
+     */
+    public long getExpiredDrops() {
+        return expiredDrops.get();
+    }
+
+    /**
+     * Returns how many pending notifications were replaced by newer ones.
+     */
+    public long getCoalescedDrops() {
+        return coalescedDrops.get();
+    }
+
+    /**
+     * Returns how many notifications were checked against the
+     * deduplication window.
+     */
+    public long getIdempotencyChecks() {
+        return idempotencyChecks.get();
+    }
+
+    /**
+     * Returns how many notifications were suppressed as duplicates.
+     */
+    public long getDuplicatesSuppressed() {
+        return duplicatesSuppressed.get();
+    }
+
+    /**
+     * Returns the share of checked notifications that were duplicates,
+     * between 0 and 1.
+     */
+    public double getDuplicateHitRate() {
+        long checks = getIdempotencyChecks();
+        return checks == 0 ? 0 : (double) getDuplicatesSuppressed() / checks;
+    }
+
+    /**
+     * Returns how many notifications were resent after error-responses.
+     */
+    public long getResentNotifications() {
+        return resentNotifications.get();
+    }
+
+    /**
+     * Returns the total time spent resending notifications.
+     */
+    public long getResendMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(resendNanos.get());
+    }
+
+    /**
+     * Returns how many notifications were resent per second spent
+     * resending, or 0 if none were.
+     */
+    public double getResendThroughput() {
+        long nanos = resendNanos.get();
+        return nanos == 0 ? 0 : getResentNotifications() * 1e9 / nanos;
+    }
+
+    /**
+     * Returns how often circuit breakers opened.
+     */
+    public long getCircuitOpenings() {
+        return circuitOpenings.get();
+    }
+
+    /**
+     * Returns how many connects open circuit breakers failed right away.
+     */
+    public long getCircuitRejections() {
+        return circuitRejections.get();
+    }
+
+    /**
+     * Returns how many TLS handshakes authenticated from scratch.
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * Returns how many TLS handshakes resumed a cached session.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * Returns the time spent in full TLS handshakes.
+     */
+    public long getFullHandshakeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(fullHandshakeNanos.get());
+    }
+
+    /**
+     * Returns the time spent in resumed TLS handshakes.
+     */
+    public long getResumedHandshakeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(resumedHandshakeNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "ApnsMetrics[poolConnectionsOpened=" + getPoolConnectionsOpened()
+                + ", poolConnectionsClosed=" + getPoolConnectionsClosed()
+                + ", throttledSends=" + getThrottledSends()
+                + ", throttleWaitMillis=" + getThrottleWaitMillis()
+                + ", expiredDrops=" + getExpiredDrops()
+                + ", coalescedDrops=" + getCoalescedDrops()
+                + ", idempotencyChecks=" + getIdempotencyChecks()
+                + ", duplicatesSuppressed=" + getDuplicatesSuppressed()
+                + ", resentNotifications=" + getResentNotifications()
+                + ", resendMillis=" + getResendMillis()
+                + ", circuitOpenings=" + getCircuitOpenings()
+                + ", circuitRejections=" + getCircuitRejections()
+                + ", fullHandshakes=" + getFullHandshakes()
+                + ", resumedHandshakes=" + getResumedHandshakes()
+                + ", fullHandshakeMillis=" + getFullHandshakeMillis()
+                + ", resumedHandshakeMillis=" + getResumedHandshakeMillis() + "]";
+    }
+}
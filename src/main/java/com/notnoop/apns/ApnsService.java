@@ -33,6 +33,7 @@ package com.notnoop.apns;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import com.notnoop.exceptions.NetworkIOException;
 
@@ -124,6 +125,89 @@ public interface ApnsService {
      */
     void push(ApnsNotification message) throws NetworkIOException;
 
+    /**
+     * Sends the provided notification {@code message}, unless it can't be
+     * written within {@code timeout}.  The deadline bounds queueing,
+     * connecting, writing and retrying; once it has passed, the
+     * notification is dropped with
+     * {@link com.notnoop.exceptions.NotificationDroppedException.Reason#DEADLINE_EXCEEDED},
+     * thrown to the caller if it is sending the notification itself, or
+     * reported to the delegate if a queue sends it later.
+     *
+     * @throws NetworkIOException if a network error occurred while
+     *      attempting to send the message
+     */
+    void push(ApnsNotification message, long timeout, TimeUnit unit) throws NetworkIOException;
+
+    /**
+     * Sends the provided notification {@code message} only if the service
+     * can accept it right away.
+     *
+     * Services with a bounded queue return {@code false} instead of waiting
+     * or dropping anything when their queue is full.  Other services behave
+     * like {@link #push(ApnsNotification)} and return {@code true}.
+     *
+     * @return {@code true} if the notification has been accepted
+     * @throws NetworkIOException if a network error occurred while
+     *      attempting to send the message
+     */
+    boolean tryPush(ApnsNotification message) throws NetworkIOException;
+
+    /**
+     * Pushes the provided notification {@code message} at {@code time}, or
+     * shortly after it.  A time in the past pushes it right away.
+     *
+     * Only services built with
+     * {@link ApnsServiceBuilder#withScheduling(long, java.util.concurrent.TimeUnit, double)}
+     * support scheduling.
+     *
+     * @return a handle to cancel the scheduled notification
+     * @throws UnsupportedOperationException if the service doesn't support scheduling
+     */
+    ScheduledNotification scheduleAt(ApnsNotification message, Date time);
+
+    /**
+     * Returns once all notifications pushed before are written to the
+     * network, including the ones waiting in the service's queue or batch.
+     * Scheduled notifications that aren't due yet are not waited for.
+     *
+     * Returns early if the calling thread is interrupted, with its
+     * interrupt status set.
+     *
+     * @throws NetworkIOException if a network error occurred while
+     *      attempting to send the messages
+     */
+    void flush() throws NetworkIOException;
+
+    /**
+     * Flushes the service, then waits until no error-response can arrive
+     * any more for the notifications pushed before, that is until no
+     * notification has been written for the confirmation window.
+     * Notifications rejected by Apple are reported to the delegate as
+     * usual; the others can be taken as accepted once this returns
+     * {@code true}.
+     *
+     * @param timeout how long to wait at most
+     * @param unit    the unit of {@code timeout}
+     * @return {@code false} if the notifications weren't confirmed in time
+     * @see ApnsServiceBuilder#withConfirmationWindow(long, java.util.concurrent.TimeUnit)
+     */
+    boolean awaitConfirmation(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Waits until the connections opened by the warm-up in {@link #start()}
+     * are connected and handshaken, so that the first notifications don't
+     * have to wait for it.  Returns right away for services without warm-up.
+     *
+     * @param timeout how long to wait at most
+     * @param unit    the unit of {@code timeout}
+     * @return {@code false} if the connections weren't ready in time
+     * @throws NetworkIOException if the warm-up failed; the connections are
+     *      then opened on demand, as without warm-up
+     * @see ApnsServiceBuilder#withWarmUp()
+     */
+    boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException, NetworkIOException;
+
     /**
      * Starts the service.
      *
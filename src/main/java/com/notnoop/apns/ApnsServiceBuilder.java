@@ -41,8 +41,10 @@ import java.security.KeyStore;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocketFactory;
 
 import com.notnoop.apns.internal.*;
@@ -86,23 +88,67 @@ public class ApnsServiceBuilder {
     private int cacheLength = ApnsConnection.DEFAULT_CACHE_LENGTH;
     private boolean autoAdjustCacheLength = true;
     private ExecutorService executor = null;
+    private PoolRoutingPolicy poolRoutingPolicy = PoolRoutingPolicy.LEAST_LOADED;
+    private int pooledMin = 0;
+    private int poolScaleUpBacklog;
+    private long poolScaleUpLatencyMillis;
+    private long poolIdleCoolDownMillis;
+    private int poolReservedConnections = 0;
 
     private ReconnectPolicy reconnectPolicy = ReconnectPolicy.Provided.EVERY_HALF_HOUR.newObject();
     //    private ReconnectPolicy reconnectPolicy = ReconnectPolicy.Provided.FIVE_MINUTE.newObject();
     private boolean isQueued = false;
     private ThreadFactory queueThreadFactory = null;
+    private int queueCapacity = 0;
+    private QueueOverflowPolicy queueOverflowPolicy = QueueOverflowPolicy.REJECT;
+    private long queueBlockTimeoutMillis = 0;
+    private PriorityClassifier priorityClassifier = PriorityClassifier.DEFAULT;
+    private QueueWatermarkListener queueWatermarkListener = null;
+    private int queueHighWatermark;
+    private int queueLowWatermark;
+    private int queueDrainWorkers = 1;
+    private int queueDrainBatchSize = 1;
+    private boolean arrayBackedQueue = false;
+    private int[] priorityLaneWeights = null;
+    private CollapseKeyResolver collapseKeyResolver = null;
+    private long deduplicationWindowMillis = 0;
+    private int deduplicationMaxKeys;
+    private IdempotencyKeyResolver idempotencyKeyResolver = null;
+    private long schedulingTickNanos = 0;
+    private long confirmationWindowNanos = 0;
+    private RetryBackoff retryBackoff;
+    private int circuitFailureThreshold = 0;
+    private long circuitOpenMillis;
+    private double handshakeRateLimit = 0;
+    private int handshakeRateLimitBurst;
+    private long rotationGraceMillis = -1;
+    private boolean warmStandby = false;
+    private int poolRotationLimit = 0;
+    private int sessionCacheSize = -1;
+    private boolean warmUp = false;
+    private int sessionTimeoutSeconds;
+    private double schedulingReleaseRate;
 
     private boolean isBatched = false;
-    private int batchWaitTimeInSec;
-    private int batchMaxWaitTimeInSec;
+    private long batchWaitTimeMillis;
+    private long batchMaxWaitTimeMillis;
+    private int batchMaxSize = 0;
+    private boolean batchPersistentConnection = false;
     private ThreadFactory batchThreadFactory = null;
 
     private ApnsDelegate delegate = ApnsDelegate.EMPTY;
+    private ApnsMetrics metrics = null;
+    private double rateLimit = 0;
+    private int rateLimitBurst;
+    private double connectionRateLimit = 0;
+    private int connectionRateLimitBurst;
+    private CongestionController congestionController = null;
     private Proxy proxy = null;
     private String proxyUsername = null;
     private String proxyPassword = null;
     private boolean errorDetection = true;
     private ThreadFactory errorDetectionThreadFactory = null;
+    private boolean sharedErrorResponseReader = false;
 
     /**
      * Constructs a new instance of {@code ApnsServiceBuilder}
@@ -211,6 +257,33 @@ public class ApnsServiceBuilder {
         }
     }
 
+    /**
+     * Sets up the client session cache of the SSL context, so that
+     * reconnects, feedback fetches, connection tests and the connections
+     * of batches resume a cached TLS session where the server permits,
+     * rather than doing a full handshake with client authentication each
+     * time.  All of them share the cache of the context.
+     *
+     * Whether handshakes were resumed, and how long they took, is counted
+     * in the metrics, see {@link #withMetrics(ApnsMetrics)}.
+     *
+     * Note that this changes the context given to
+     * {@link #withSSLContext(SSLContext)}.
+     *
+     * @param size    how many sessions to cache at most, 0 for no limit
+     * @param timeout how long a cached session may be resumed, 0 for no limit
+     * @param unit    the unit of {@code timeout}
+     * @return this
+     */
+    public ApnsServiceBuilder withSslSessionCache(int size, long timeout, TimeUnit unit) {
+        if (size < 0 || timeout < 0) {
+            throw new IllegalArgumentException("size and timeout must not be negative");
+        }
+        this.sessionCacheSize = size;
+        this.sessionTimeoutSeconds = (int) Math.min(Integer.MAX_VALUE, unit.toSeconds(timeout));
+        return this;
+    }
+
     /**
      * Specify the SSLContext that should be used to initiate the
      * connection to Apple Server.
@@ -482,6 +555,111 @@ public class ApnsServiceBuilder {
     public ApnsServiceBuilder asPool(ExecutorService executor, int maxConnections) {
         this.pooledMax = maxConnections;
         this.executor = executor;
+        this.pooledMin = 0;
+        return this;
+    }
+
+    /**
+     * Lets at most {@code maxConcurrent} connections of the pool reconnect
+     * at once when the reconnect policy asks for it, so that the pool
+     * doesn't handshake all its connections at the same time.  The others
+     * keep their connection until it's their turn.
+     *
+     * The time based reconnect policies also spread the reconnects of the
+     * pooled connections over the period on their own.
+     *
+     * @param maxConcurrent how many connections may reconnect at once
+     * @return this
+     */
+    public ApnsServiceBuilder withPoolRotationLimit(int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+        }
+        this.poolRotationLimit = maxConcurrent;
+        return this;
+    }
+
+    /**
+     * Constructs a pool of connections to the notification servers that
+     * grows and shrinks with the load, using the default thresholds.
+     *
+     * @see #asElasticPool(int, int, int, long, long, TimeUnit)
+     */
+    public ApnsServiceBuilder asElasticPool(int minConnections, int maxConnections) {
+        return asElasticPool(minConnections, maxConnections,
+                ApnsPooledConnection.DEFAULT_SCALE_UP_BACKLOG,
+                ApnsPooledConnection.DEFAULT_SCALE_UP_LATENCY_MILLIS,
+                ApnsPooledConnection.DEFAULT_IDLE_COOL_DOWN_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructs a pool of connections to the notification servers that
+     * grows and shrinks with the load.
+     *
+     * The pool keeps {@code minConnections} connections open.  It opens
+     * another one in the background, up to {@code maxConnections}, whenever
+     * the least loaded connection has {@code scaleUpBacklog} notifications
+     * waiting or takes longer than {@code scaleUpLatency} per notification.
+     * A connection that stays idle for {@code idleCoolDown} is closed again.
+     *
+     * Delegates implementing {@link ElasticPoolApnsDelegate} get notified
+     * of every resize.
+     *
+     * @param minConnections connections to keep open at all times
+     * @param maxConnections maximum number of connections
+     * @param scaleUpBacklog backlog that opens another connection
+     * @param scaleUpLatency write latency that opens another connection
+     * @param idleCoolDown   idle time after which a connection is closed
+     * @param unit           the unit of {@code scaleUpLatency} and {@code idleCoolDown}
+     * @return this
+     */
+    public ApnsServiceBuilder asElasticPool(int minConnections, int maxConnections, int scaleUpBacklog,
+                                            long scaleUpLatency, long idleCoolDown, TimeUnit unit) {
+        if (minConnections < 1 || minConnections > maxConnections) {
+            throw new IllegalArgumentException("minConnections must be between 1 and maxConnections");
+        }
+        asPool(Executors.newFixedThreadPool(maxConnections), maxConnections);
+        this.pooledMin = minConnections;
+        this.poolScaleUpBacklog = scaleUpBacklog;
+        this.poolScaleUpLatencyMillis = unit.toMillis(scaleUpLatency);
+        this.poolIdleCoolDownMillis = unit.toMillis(idleCoolDown);
+        return this;
+    }
+
+    /**
+     * Specify how a pool picks the connection for each notification.
+     * By default it picks the least loaded connection.
+     *
+     * Note: This option only has an effect on pooled connections, see
+     * {@link #asPool(int)}.  To keep the order of the notifications for each
+     * device, a queued service needs a single processing thread as well.
+     *
+     * @param routingPolicy the routing policy
+     * @return this
+     */
+    public ApnsServiceBuilder withPoolRouting(PoolRoutingPolicy routingPolicy) {
+        this.poolRoutingPolicy = routingPolicy == null ? PoolRoutingPolicy.LEAST_LOADED : routingPolicy;
+        return this;
+    }
+
+    /**
+     * Keeps {@code count} connections of the pool for notifications that the
+     * priority classifier ranks {@link NotificationPriority#HIGH}, so that
+     * they are never stuck behind bulk traffic.  The other notifications
+     * share the remaining connections.
+     *
+     * Note: This option only has an effect on pooled connections, see
+     * {@link #asPool(int)}, and requires
+     * {@link #withPriorityClassifier(PriorityClassifier)}.
+     *
+     * @param count number of reserved connections, below the pool size
+     * @return this
+     */
+    public ApnsServiceBuilder withReservedConnections(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count must not be negative");
+        }
+        this.poolReservedConnections = count;
         return this;
     }
 
@@ -508,6 +686,160 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Constructs {@code drainWorkers} threads that share a processing queue
+     * to process notification requests.  Each thread takes up to
+     * {@code drainBatchSize} queued notifications at a time and writes them
+     * to its connection in one go.
+     *
+     * Note: Notifications sent by different threads may reach Apple out of
+     * order.  Unless {@link #asPool(int)} or {@link #asElasticPool(int, int)}
+     * sizes the pool otherwise, the service pools {@code drainWorkers}
+     * connections, so that the threads don't take turns on a single one.
+     *
+     * @param threadFactory  thread factory to use for queue processing
+     * @param drainWorkers   number of threads processing the queue
+     * @param drainBatchSize maximum number of notifications sent at once
+     * @return this
+     */
+    public ApnsServiceBuilder asQueued(ThreadFactory threadFactory, int drainWorkers, int drainBatchSize) {
+        if (drainWorkers < 1 || drainBatchSize < 1) {
+            throw new IllegalArgumentException("drainWorkers and drainBatchSize must be positive");
+        }
+        this.queueDrainWorkers = drainWorkers;
+        this.queueDrainBatchSize = drainBatchSize;
+        return asQueued(threadFactory);
+    }
+
+    /**
+     * Backs the bounded processing queue with a lock-free array, which
+     * scales better when many threads push concurrently.  Its capacity is
+     * rounded up to a power of two, and it doesn't support
+     * {@link QueueOverflowPolicy#DROP_LOWEST_PRIORITY}.
+     *
+     * Note: This option requires {@link #withBoundedQueue(int, QueueOverflowPolicy)}.
+     *
+     * @return this
+     */
+    public ApnsServiceBuilder withArrayBackedQueue() {
+        this.arrayBackedQueue = true;
+        return this;
+    }
+
+    /**
+     * Gives the processing queue a lane per {@link NotificationPriority}.
+     * The processing threads serve the lanes in weighted round robin order:
+     * a lane hands out up to its weight in notifications before the next
+     * lane gets its turn.  When a bounded queue is full, the oldest
+     * notification of a lower priority is shed to make room, whatever the
+     * overflow policy.
+     *
+     * Note: This option only has an effect on queued services, see
+     * {@link #asQueued()}, and requires
+     * {@link #withPriorityClassifier(PriorityClassifier)}.
+     *
+     * @param highWeight   notifications handed out per turn of the high priority lane
+     * @param normalWeight notifications handed out per turn of the normal priority lane
+     * @param lowWeight    notifications handed out per turn of the low priority lane
+     * @return this
+     */
+    public ApnsServiceBuilder withPriorityLanes(int highWeight, int normalWeight, int lowWeight) {
+        if (highWeight < 1 || normalWeight < 1 || lowWeight < 1) {
+            throw new IllegalArgumentException("weights must be positive");
+        }
+        this.priorityLaneWeights = new int[] { highWeight, normalWeight, lowWeight };
+        return this;
+    }
+
+    /**
+     * Lets a new notification replace a pending notification to the same
+     * device with the same collapse key, as resolved by {@code resolver}.
+     * The replaced notification keeps its place in the queue for the new
+     * one, and is reported to the delegate as dropped.  Use it for
+     * notifications where only the latest one matters, like badge counts.
+     *
+     * Note: This option only has an effect on queued and batched services,
+     * see {@link #asQueued()} and {@link #asBatched()}.
+     *
+     * @param resolver the collapse keys of notifications
+     * @return this
+     */
+    public ApnsServiceBuilder withCoalescing(CollapseKeyResolver resolver) {
+        this.collapseKeyResolver = resolver;
+        return this;
+    }
+
+    /**
+     * Limits the processing queue of a queued service to {@code capacity}
+     * notifications.  By default the queue is unbounded.
+     *
+     * When the queue is full, {@code overflowPolicy} decides whether
+     * {@link ApnsService#push(ApnsNotification)} waits, fails, or drops a
+     * queued notification.  {@link ApnsService#tryPush(ApnsNotification)}
+     * never waits nor drops, it returns {@code false} instead.
+     *
+     * Note: This option only has an effect on queued services, see
+     * {@link #asQueued()}.
+     *
+     * @param capacity       maximum number of queued notifications
+     * @param overflowPolicy what to do when the queue is full
+     * @return this
+     */
+    public ApnsServiceBuilder withBoundedQueue(int capacity, QueueOverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.queueCapacity = capacity;
+        this.queueOverflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Specify how long {@link QueueOverflowPolicy#BLOCK} waits for room in
+     * a full queue before giving up.  By default it waits indefinitely.
+     *
+     * @param timeout how long to wait
+     * @param unit    the unit of {@code timeout}
+     * @return this
+     */
+    public ApnsServiceBuilder withQueueBlockTimeout(long timeout, TimeUnit unit) {
+        this.queueBlockTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Specify how notifications are prioritized within the library's
+     * queues.  By default all notifications have the same priority.
+     *
+     * @param classifier assigns priorities to notifications
+     * @return this
+     */
+    public ApnsServiceBuilder withPriorityClassifier(PriorityClassifier classifier) {
+        this.priorityClassifier = classifier == null ? PriorityClassifier.DEFAULT : classifier;
+        return this;
+    }
+
+    /**
+     * Registers a listener that gets notified when the queue of a queued
+     * service grows to {@code high} notifications, and again once it has
+     * drained down to {@code low}.  Producers can use it to pause before the
+     * queue overflows.
+     *
+     * @param high     the high watermark
+     * @param low      the low watermark, below {@code high}
+     * @param listener the listener to notify
+     * @return this
+     */
+    public ApnsServiceBuilder withQueueWatermarks(int high, int low, QueueWatermarkListener listener) {
+        if (low >= high) {
+            throw new IllegalArgumentException("low watermark must be below the high watermark");
+        }
+        this.queueHighWatermark = high;
+        this.queueLowWatermark = low;
+        this.queueWatermarkListener = listener;
+        return this;
+    }
+
     /**
      * Construct service which will process notification requests in batch.
      * After each request batch will wait <code>waitTimeInSec (set as 5sec)</code> for more request to come
@@ -552,8 +884,42 @@ public class ApnsServiceBuilder {
      */
     public ApnsServiceBuilder asBatched(int waitTimeInSec, int maxWaitTimeInSec, ThreadFactory threadFactory) {
         this.isBatched = true;
-        this.batchWaitTimeInSec = waitTimeInSec;
-        this.batchMaxWaitTimeInSec = maxWaitTimeInSec;
+        this.batchWaitTimeMillis = TimeUnit.SECONDS.toMillis(waitTimeInSec);
+        this.batchMaxWaitTimeMillis = TimeUnit.SECONDS.toMillis(maxWaitTimeInSec);
+        this.batchMaxSize = 0;
+        this.batchPersistentConnection = false;
+        this.batchThreadFactory = threadFactory;
+        return this;
+    }
+
+    /**
+     * Construct service which will process notification requests in batch.
+     * After each request batch will wait <code>waitTime</code> for more request to come
+     * before executing but not more than <code>maxWaitTime</code>, and executes
+     * right away once <code>maxBatchSize</code> requests are waiting.
+     *
+     * Unlike {@link #asBatched(int, int, ThreadFactory)}, all batches are sent over
+     * one connection kept open between them, and each batch is written at once.
+     * The reconnect policy decides when that connection gets replaced.
+     *
+     * Note: It is not recommended to use pooled connection
+     *
+     * @param waitTime      time to wait for more notification request before executing
+     *                      batch
+     * @param maxWaitTime   maximum wait time for batch before executing
+     * @param unit          the unit of <code>waitTime</code> and <code>maxWaitTime</code>
+     * @param maxBatchSize  number of requests that executes the batch right away
+     * @param threadFactory thread factory to use for batch processing
+     */
+    public ApnsServiceBuilder asBatched(long waitTime, long maxWaitTime, TimeUnit unit, int maxBatchSize, ThreadFactory threadFactory) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        this.isBatched = true;
+        this.batchWaitTimeMillis = unit.toMillis(waitTime);
+        this.batchMaxWaitTimeMillis = unit.toMillis(maxWaitTime);
+        this.batchMaxSize = maxBatchSize;
+        this.batchPersistentConnection = true;
         this.batchThreadFactory = threadFactory;
         return this;
     }
@@ -571,6 +937,254 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Limits the rate at which the service sends notifications, over all
+     * connections together.  Once the limit is reached, {@code push} waits
+     * while {@code tryPush} returns {@code false}.  Queued services wait in
+     * their processing threads instead of the callers.
+     *
+     * @param notificationsPerSecond the sustained rate
+     * @param burst                  notifications that can be sent at once
+     *                               after a quiet period
+     * @return this
+     */
+    public ApnsServiceBuilder withRateLimit(double notificationsPerSecond, int burst) {
+        if (notificationsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("rate and burst must be positive");
+        }
+        this.rateLimit = notificationsPerSecond;
+        this.rateLimitBurst = burst;
+        return this;
+    }
+
+    /**
+     * Limits the rate at which each connection writes notifications,
+     * resends included.
+     *
+     * @param notificationsPerSecond the sustained rate per connection
+     * @param burst                  notifications a connection can write at
+     *                               once after a quiet period
+     * @return this
+     */
+    public ApnsServiceBuilder withConnectionRateLimit(double notificationsPerSecond, int burst) {
+        if (notificationsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("rate and burst must be positive");
+        }
+        this.connectionRateLimit = notificationsPerSecond;
+        this.connectionRateLimitBurst = burst;
+        return this;
+    }
+
+    /**
+     * Stops connecting to the gateway for {@code openTime} once
+     * {@code failureThreshold} consecutive connects or handshakes failed,
+     * so that pushes fail right away during an outage instead of each
+     * waiting for the connect timeout.  Afterwards a single connect is let
+     * through to probe whether the gateway is back.
+     *
+     * All connections of the service share the breaker.
+     *
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param openTime         how long to fail connects right away
+     * @param unit             the unit of {@code openTime}
+     * @return this
+     */
+    public ApnsServiceBuilder withCircuitBreaker(int failureThreshold, long openTime, TimeUnit unit) {
+        if (failureThreshold < 1 || openTime <= 0) {
+            throw new IllegalArgumentException("failureThreshold and openTime must be positive");
+        }
+        this.circuitFailureThreshold = failureThreshold;
+        this.circuitOpenMillis = unit.toMillis(openTime);
+        return this;
+    }
+
+    /**
+     * Limits the rate at which the connections of the service connect and
+     * handshake, so that a pool reconnecting after an outage doesn't
+     * hammer the gateway.  Connecting waits for the limiter.
+     *
+     * @param handshakesPerSecond the sustained rate of new connections
+     * @param burst               connections that can be made at once after a quiet period
+     * @return this
+     */
+    public ApnsServiceBuilder withHandshakeRateLimit(double handshakesPerSecond, int burst) {
+        if (handshakesPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("rate and burst must be positive");
+        }
+        this.handshakeRateLimit = handshakesPerSecond;
+        this.handshakeRateLimitBurst = burst;
+        return this;
+    }
+
+    /**
+     * Rotates connections make-before-break: when the reconnect policy asks
+     * for a new connection, the replacement is connected and handshaken in
+     * the background while notifications still go out over the current
+     * one.  The replaced connection stays open for {@code gracePeriod}, so
+     * that error-responses for the notifications last written to it aren't
+     * lost.
+     *
+     * By default the connection is closed first, and the next push waits
+     * for the new one.  That is still the case when a
+     * {@link TrafficAwareReconnectPolicy} reports the connection as stale,
+     * e.g. after {@link ReconnectPolicy.Provided#ADAPTIVE} saw it idle for
+     * too long.
+     *
+     * @param gracePeriod how long a replaced connection is kept open
+     * @param unit        the unit of {@code gracePeriod}
+     * @return this
+     */
+    public ApnsServiceBuilder withMakeBeforeBreak(long gracePeriod, TimeUnit unit) {
+        if (gracePeriod < 0) {
+            throw new IllegalArgumentException("gracePeriod must not be negative");
+        }
+        this.rotationGraceMillis = unit.toMillis(gracePeriod);
+        return this;
+    }
+
+    /**
+     * Keeps a connected and handshaken connection in reserve, which takes
+     * over right away when the current one is closed, e.g. after an
+     * error-response, so that the next push doesn't wait for a new
+     * connection.  The reserve is replenished in the background.
+     *
+     * Rotations then switch to the reserve, make-before-break, see
+     * {@link #withMakeBeforeBreak(long, TimeUnit)}.
+     *
+     * @return this
+     */
+    public ApnsServiceBuilder withWarmStandby() {
+        this.warmStandby = true;
+        return this;
+    }
+
+    /**
+     * Lets {@code controller} adapt the rate of each connection to the
+     * congestion it observes: error-responses reporting processing errors,
+     * connections dropped by the gateway and failed connection attempts.
+     * Each connection gets its own copy of the controller.
+     *
+     * The connection rate limit, see {@link #withConnectionRateLimit(double, int)},
+     * sets the burst size; its rate is replaced by the controller's.
+     *
+     * @param controller the congestion controller, e.g. an {@link AimdCongestionController}
+     * @return this
+     */
+    public ApnsServiceBuilder withCongestionControl(CongestionController controller) {
+        this.congestionController = controller;
+        return this;
+    }
+
+    /**
+     * Pushes each notification only once within {@code window}: repeats of
+     * a notification to the same device with the same payload are dropped
+     * and reported to the delegate.
+     *
+     * @param window  how long a notification suppresses its repeats
+     * @param unit    the unit of {@code window}
+     * @param maxKeys how many notifications to remember at most; the oldest
+     *                are forgotten first
+     * @return this
+     */
+    public ApnsServiceBuilder withDeduplication(long window, TimeUnit unit, int maxKeys) {
+        return withDeduplication(window, unit, maxKeys, null);
+    }
+
+    /**
+     * Same as above, but identifies the notifications by the idempotency
+     * keys {@code resolver} returns, and by device token and payload only
+     * where it returns {@code null}.
+     *
+     * @param window   how long a notification suppresses its repeats
+     * @param unit     the unit of {@code window}
+     * @param maxKeys  how many notifications to remember at most; the oldest
+     *                 are forgotten first
+     * @param resolver the idempotency keys of notifications
+     * @return this
+     */
+    public ApnsServiceBuilder withDeduplication(long window, TimeUnit unit, int maxKeys,
+                                                IdempotencyKeyResolver resolver) {
+        if (window <= 0 || maxKeys <= 0) {
+            throw new IllegalArgumentException("window and maxKeys must be positive");
+        }
+        this.deduplicationWindowMillis = unit.toMillis(window);
+        this.deduplicationMaxKeys = maxKeys;
+        this.idempotencyKeyResolver = resolver;
+        return this;
+    }
+
+    /**
+     * Enables {@link ApnsService#scheduleAt(ApnsNotification, java.util.Date)}.
+     * Scheduled notifications wait in a timing wheel with a resolution of
+     * {@code tick}, and are pushed by a thread of their own once due.
+     *
+     * To keep a large number of notifications due at the same time from
+     * flooding the service, they are pushed at {@code releaseRate}
+     * notifications per second at most.
+     *
+     * @param tick        the resolution of delivery times
+     * @param unit        the unit of {@code tick}
+     * @param releaseRate maximum number of due notifications pushed per
+     *                    second, or 0 for no limit
+     * @return this
+     */
+    public ApnsServiceBuilder withScheduling(long tick, TimeUnit unit, double releaseRate) {
+        if (tick <= 0 || releaseRate < 0) {
+            throw new IllegalArgumentException("tick must be positive and releaseRate not negative");
+        }
+        this.schedulingTickNanos = unit.toNanos(tick);
+        this.schedulingReleaseRate = releaseRate;
+        return this;
+    }
+
+    /**
+     * Makes {@link ApnsService#start()}, which {@link #build()} calls, open
+     * the gateway connections in the background, all connections of a pool
+     * in parallel, instead of leaving it to the first pushes.  Wait for
+     * them with {@link ApnsService#awaitReady(long, TimeUnit)}, e.g. before
+     * taking traffic after a deployment.
+     *
+     * Batched services open a connection per batch, so they aren't warmed up.
+     *
+     * @return this
+     */
+    public ApnsServiceBuilder withWarmUp() {
+        this.warmUp = true;
+        return this;
+    }
+
+    /**
+     * Sets how long {@link ApnsService#awaitConfirmation(long, TimeUnit)}
+     * waits for an error response after the last write before it considers
+     * the written notifications accepted.  Apple doesn't acknowledge
+     * accepted notifications, so a longer window is more certain but makes
+     * every confirmation take longer.
+     *
+     * By default, the window is one second.
+     *
+     * @param window how long to wait for error responses
+     * @param unit   the unit of {@code window}
+     * @return this
+     */
+    public ApnsServiceBuilder withConfirmationWindow(long window, TimeUnit unit) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        this.confirmationWindowNanos = unit.toNanos(window);
+        return this;
+    }
+
+    /**
+     * Sets the counters the service records its internal events to.
+     *
+     * @param metrics the counters to record to
+     * @return this
+     */
+    public ApnsServiceBuilder withMetrics(ApnsMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
     /**
      * Disables the enhanced error detection, enabled by the
      * enhanced push notification interface.  Error detection is
@@ -586,6 +1200,35 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Retries failed writes with exponential backoff on a thread shared by
+     * all connections of the service, so that sending never sleeps.  A
+     * notification whose write failed is then reported to the delegate
+     * once it was retried, rather than by the push call, and may go out
+     * after notifications pushed after it.
+     *
+     * Each delay is shortened by a random share of up to {@code jitter}, so
+     * that pooled connections don't retry in lockstep after an outage.
+     * Reading the feedback service is retried the same way, on the thread
+     * asking for it.
+     *
+     * By default, a failed write is retried right away and then once more
+     * after about a second, blocking the sending thread.
+     *
+     * @param maxAttempts  how many times to try at most, the first attempt included
+     * @param initialDelay the delay before the first delayed retry; it doubles
+     *                     with every further retry
+     * @param maxDelay     the longest delay
+     * @param unit         the unit of the delays
+     * @param jitter       the share of each delay, between 0 and 1, that is randomly taken off
+     * @return this
+     */
+    public ApnsServiceBuilder withRetryBackoff(int maxAttempts, long initialDelay, long maxDelay, TimeUnit unit,
+                                               double jitter) {
+        this.retryBackoff = new RetryBackoff(maxAttempts, initialDelay, maxDelay, unit, jitter);
+        return this;
+    }
+
     /**
      * Provide a custom source for threads used for monitoring connections.
      *
@@ -600,6 +1243,30 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Reads the error-responses of all gateway connections on a single
+     * shared thread, instead of starting a monitoring thread for every new
+     * connection.  This keeps the number of threads the same however large
+     * the pool and however often it reconnects.
+     *
+     * The thread takes turns reading from the connections, and backs off
+     * for up to 64 milliseconds while they are all quiet, so an
+     * error-response may be noticed up to about a millisecond per
+     * connection plus 64 milliseconds later.  Without this setting, each
+     * connection gets its own monitoring thread, which notices
+     * error-responses right away.  The threads come from the factory given to
+     * {@link #withErrorDetectionThreadFactory(ThreadFactory)}, if any.
+     * The notifications to resend after an error-response are resent on the
+     * retry thread, if a {@link #withRetryBackoff retry backoff} is set, and otherwise
+     * on a short-lived thread of their own.
+     *
+     * @return this
+     */
+    public ApnsServiceBuilder withSharedErrorResponseReader() {
+        this.sharedErrorResponseReader = true;
+        return this;
+    }
+
     /**
      * Returns a fully initialized instance of {@link ApnsService},
      * according to the requested settings.
@@ -610,25 +1277,158 @@ public class ApnsServiceBuilder {
         checkInitialization();
         ApnsService service;
 
+        if (sessionCacheSize >= 0) {
+            SSLSessionContext sessions = sslContext.getClientSessionContext();
+            if (sessions != null) {
+                sessions.setSessionCacheSize(sessionCacheSize);
+                sessions.setSessionTimeout(sessionTimeoutSeconds);
+            }
+        }
         SSLSocketFactory sslFactory = sslContext.getSocketFactory();
         ApnsFeedbackConnection feedback = new ApnsFeedbackConnection(sslFactory, feedbackHost, feedbackPort, proxy, readTimeout, connectTimeout, proxyUsername, proxyPassword);
 
-        ApnsConnection conn = new ApnsConnectionImpl(sslFactory, gatewayHost,
-                gatewayPort, proxy, proxyUsername, proxyPassword, reconnectPolicy,
+        int poolSize = pooledMax;
+        ExecutorService poolExecutor = executor;
+        if (poolSize == 1 && isQueued && queueDrainWorkers > 1) {
+            // a single connection would make the drain workers wait for each other
+            poolSize = queueDrainWorkers;
+            poolExecutor = Executors.newFixedThreadPool(queueDrainWorkers);
+        }
+
+        ReconnectPolicy policy = reconnectPolicy;
+        if (poolRotationLimit > 0 && poolSize != 1) {
+            // the pool copies the policy for each connection, and the copies share the limit
+            policy = new ReconnectPolicies.Staggered(policy, poolRotationLimit);
+        }
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(sslFactory, gatewayHost,
+                gatewayPort, proxy, proxyUsername, proxyPassword, policy,
                 delegate, errorDetection, errorDetectionThreadFactory, cacheLength,
                 autoAdjustCacheLength, readTimeout, connectTimeout);
-        if (pooledMax != 1) {
-            conn = new ApnsPooledConnection(conn, pooledMax, executor);
+        if (connectionRateLimit > 0) {
+            connection.setRateLimiter(new TokenBucket(connectionRateLimit, connectionRateLimitBurst, metrics));
+        } else if (congestionController != null) {
+            double rate = congestionController.getRate();
+            connection.setRateLimiter(new TokenBucket(rate, Math.max(1, (int) (rate / 10)), metrics));
+        }
+        if (congestionController != null) {
+            connection.setCongestionController(congestionController.copy());
+        }
+        connection.setMetrics(metrics);
+        if (errorDetection && sharedErrorResponseReader) {
+            connection.setErrorResponsePoller(new ErrorResponsePoller(errorDetectionThreadFactory));
+        }
+        if (circuitFailureThreshold > 0) {
+            connection.setCircuitBreaker(new CircuitBreaker(circuitFailureThreshold, circuitOpenMillis,
+                    TimeUnit.MILLISECONDS, metrics));
+        }
+        if (handshakeRateLimit > 0) {
+            connection.setHandshakeLimiter(new TokenBucket(handshakeRateLimit, handshakeRateLimitBurst, null));
+        }
+        if (retryBackoff != null) {
+            connection.setRetryBackoff(retryBackoff);
+            connection.setRetryScheduler(Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = Executors.defaultThreadFactory().newThread(r);
+                    thread.setName("ApnsConnection-retry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+            feedback.setRetryBackoff(retryBackoff);
+        }
+        if (confirmationWindowNanos > 0) {
+            connection.setConfirmationWindow(confirmationWindowNanos, TimeUnit.NANOSECONDS);
+        }
+        if (rotationGraceMillis >= 0 || warmStandby) {
+            connection.setRotationScheduler(Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = Executors.defaultThreadFactory().newThread(r);
+                    thread.setName("ApnsConnection-rotation");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+            if (rotationGraceMillis >= 0) {
+                connection.setRotationGracePeriod(rotationGraceMillis, TimeUnit.MILLISECONDS);
+            }
+            connection.setWarmStandby(warmStandby);
+        }
+        ApnsConnection conn = connection;
+        if (poolSize != 1) {
+            ApnsPooledConnection pooled = new ApnsPooledConnection(conn, poolSize, poolExecutor);
+            pooled.setRoutingPolicy(poolRoutingPolicy);
+            pooled.setDelegate(delegate);
+            pooled.setMetrics(metrics);
+            if (poolReservedConnections > 0) {
+                pooled.setReservedConnections(poolReservedConnections, priorityClassifier);
+            }
+            if (pooledMin > 0) {
+                pooled.setElasticity(pooledMin, poolScaleUpBacklog, poolScaleUpLatencyMillis,
+                        poolIdleCoolDownMillis, TimeUnit.MILLISECONDS);
+            }
+            conn = pooled;
         }
 
-        service = new ApnsServiceImpl(conn, feedback);
+        ApnsServiceImpl serviceImpl = new ApnsServiceImpl(conn, feedback);
+        serviceImpl.setWarmUp(warmUp);
+        if (rateLimit > 0) {
+            serviceImpl.setRateLimiter(new TokenBucket(rateLimit, rateLimitBurst, metrics));
+        }
+        service = serviceImpl;
 
         if (isQueued) {
-            service = new QueuedApnsService(service, queueThreadFactory);
+            QueuedApnsService queued;
+            if (arrayBackedQueue) {
+                queued = new QueuedApnsService(service, queueThreadFactory,
+                        new ConcurrentArrayQueue<ApnsNotification>(queueCapacity),
+                        queueOverflowPolicy, queueBlockTimeoutMillis, priorityClassifier, delegate);
+            } else if (collapseKeyResolver != null) {
+                queued = new QueuedApnsService(service, queueThreadFactory,
+                        new CoalescingQueue(queueCapacity > 0 ? queueCapacity : Integer.MAX_VALUE,
+                                collapseKeyResolver, delegate, metrics),
+                        queueOverflowPolicy, queueBlockTimeoutMillis, priorityClassifier, delegate);
+            } else if (priorityLaneWeights != null) {
+                queued = new QueuedApnsService(service, queueThreadFactory,
+                        new PriorityLaneQueue(queueCapacity > 0 ? queueCapacity : Integer.MAX_VALUE,
+                                priorityClassifier, priorityLaneWeights, delegate),
+                        queueOverflowPolicy, queueBlockTimeoutMillis, priorityClassifier, delegate);
+            } else {
+                queued = new QueuedApnsService(service, queueThreadFactory, queueCapacity,
+                        queueOverflowPolicy, queueBlockTimeoutMillis, priorityClassifier, delegate);
+            }
+            queued.setDrainParallelism(queueDrainWorkers, queueDrainBatchSize);
+            queued.setMetrics(metrics);
+            if (queueWatermarkListener != null) {
+                queued.setWatermarks(queueHighWatermark, queueLowWatermark, queueWatermarkListener);
+            }
+            service = queued;
         }
 
         if (isBatched) {
-            service = new BatchApnsService(conn, feedback, batchWaitTimeInSec, batchMaxWaitTimeInSec, batchThreadFactory);
+            BatchApnsService batched = new BatchApnsService(conn, feedback, batchWaitTimeMillis, batchMaxWaitTimeMillis,
+                    TimeUnit.MILLISECONDS, batchMaxSize, batchPersistentConnection, batchThreadFactory);
+            batched.setDelegate(delegate);
+            batched.setMetrics(metrics);
+            if (collapseKeyResolver != null) {
+                batched.setCollapseKeyResolver(collapseKeyResolver);
+            }
+            service = batched;
+        }
+
+        if (deduplicationWindowMillis > 0) {
+            DeduplicatingApnsService deduplicating = new DeduplicatingApnsService(service,
+                    deduplicationWindowMillis, TimeUnit.MILLISECONDS, deduplicationMaxKeys,
+                    idempotencyKeyResolver, delegate);
+            deduplicating.setMetrics(metrics);
+            service = deduplicating;
+        }
+
+        if (schedulingTickNanos > 0) {
+            TokenBucket releaseLimiter = schedulingReleaseRate > 0
+                    ? new TokenBucket(schedulingReleaseRate, Math.max(1, (int) (schedulingReleaseRate / 10)), metrics)
+                    : null;
+            service = new SchedulingApnsService(service, schedulingTickNanos, TimeUnit.NANOSECONDS,
+                    releaseLimiter, null);
         }
 
         service.start();
@@ -646,5 +1446,18 @@ public class ApnsServiceBuilder {
                     "The Destination APNS server is not stated\n"
                             + "Use .withDestination(), withSandboxDestination(), "
                             + "or withProductionDestination().");
+        if (arrayBackedQueue && queueCapacity <= 0)
+            throw new IllegalStateException(
+                    "An array backed queue needs a capacity\n"
+                            + "Use .withBoundedQueue().");
+        if (arrayBackedQueue && queueOverflowPolicy == QueueOverflowPolicy.DROP_LOWEST_PRIORITY)
+            throw new IllegalStateException(
+                    "An array backed queue doesn't support DROP_LOWEST_PRIORITY");
+        if (arrayBackedQueue && priorityLaneWeights != null)
+            throw new IllegalStateException(
+                    "An array backed queue can't have priority lanes");
+        if (collapseKeyResolver != null && (arrayBackedQueue || priorityLaneWeights != null))
+            throw new IllegalStateException(
+                    "A coalescing queue can't be array backed nor have priority lanes");
     }
 }
@@ -0,0 +1,20 @@
+package com.notnoop.apns;
+
+/**
+ * Decides which pending notifications supersede each other.
+ *
+ * While a notification waits in a coalescing queue, a newer notification
+ * to the same device with the same collapse key takes its place, and the
+ * older one is never sent.  This suits notifications that only carry the
+ * latest state, like badge counts.
+ *
+ * @see ApnsServiceBuilder#withCoalescing(CollapseKeyResolver)
+ */
+public interface CollapseKeyResolver {
+
+    /**
+     * Returns the collapse key of the given notification, or {@code null}
+     * if it must never replace nor be replaced by another notification.
+     */
+    public String collapseKeyOf(ApnsNotification notification);
+}
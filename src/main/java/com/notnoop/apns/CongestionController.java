@@ -0,0 +1,56 @@
+package com.notnoop.apns;
+
+/**
+ * Adapts the rate at which a connection writes notifications to how the
+ * gateway copes with it.
+ *
+ * Each connection gets its own controller, made with {@link #copy()}, and
+ * tells it about successful writes and about signs of congestion.  The
+ * connection then paces its writes at the rate the controller returns.
+ * Implementations must be thread-safe, as congestion is observed by the
+ * connection's error monitoring thread.
+ *
+ * @see ApnsServiceBuilder#withCongestionControl(CongestionController)
+ * @see AimdCongestionController
+ */
+public interface CongestionController {
+
+    /**
+     * Signs that the gateway is struggling with the current rate.
+     */
+    public enum Signal {
+        /** the gateway answered with a {@link DeliveryError#PROCESSING_ERROR} */
+        PROCESSING_ERROR,
+        /** the gateway closed the connection without an error-response */
+        CONNECTION_DROPPED,
+        /** a new connection couldn't be established */
+        CONNECT_FAILED
+    }
+
+    /**
+     * Returns the rate the connection should currently write at, in
+     * notifications per second.
+     */
+    public double getRate();
+
+    /**
+     * Called after notifications have been written successfully.
+     *
+     * @param notifications how many were written
+     * @return the new rate
+     */
+    public double onSuccess(int notifications);
+
+    /**
+     * Called when the connection observed a sign of congestion.
+     *
+     * @return the new rate
+     */
+    public double onCongestion(Signal signal);
+
+    /**
+     * Returns a controller in its initial state with the same settings, for
+     * another connection.
+     */
+    public CongestionController copy();
+}
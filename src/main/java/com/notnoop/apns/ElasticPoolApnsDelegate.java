@@ -0,0 +1,25 @@
+package com.notnoop.apns;
+
+/**
+ * A delegate that also gets notified when an elastic connection pool opens
+ * or closes a connection.
+ *
+ * @see ApnsServiceBuilder#asElasticPool(int, int)
+ */
+public interface ElasticPoolApnsDelegate extends ApnsDelegate {
+
+    /**
+     * Called when the pool has opened a connection to keep up with its load.
+     *
+     * @param connections the number of connections in the pool now
+     */
+    public void poolGrew(int connections);
+
+    /**
+     * Called when the pool has closed a connection that stayed idle.
+     *
+     * @param connections the number of connections in the pool now
+     */
+    public void poolShrank(int connections);
+
+}
@@ -0,0 +1,17 @@
+package com.notnoop.apns;
+
+/**
+ * Tells which notifications are repeats of one another, so that a service
+ * with deduplication sends them only once within its window.
+ *
+ * @see ApnsServiceBuilder#withDeduplication(long, java.util.concurrent.TimeUnit, int, IdempotencyKeyResolver)
+ */
+public interface IdempotencyKeyResolver {
+
+    /**
+     * Returns the idempotency key the caller assigned to the given
+     * notification, or {@code null} to identify it by its device token
+     * and payload instead.
+     */
+    public String idempotencyKeyOf(ApnsNotification notification);
+}
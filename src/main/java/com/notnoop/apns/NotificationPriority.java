@@ -0,0 +1,35 @@
+package com.notnoop.apns;
+
+/**
+ * Relative importance of a notification inside the library's own queues.
+ *
+ * This is not sent to Apple; it decides what is shed first when a
+ * bounded queue overflows, how often each lane of a queue with priority
+ * lanes is served, and which notifications may use reserved pool
+ * connections.
+ *
+ * @see PriorityClassifier
+ */
+public enum NotificationPriority {
+    /**
+     * Time critical notifications, e.g. login codes or password resets.
+     */
+    HIGH,
+
+    /**
+     * The priority of notifications that haven't been classified.
+     */
+    NORMAL,
+
+    /**
+     * Bulk notifications that can be shed first under overload.
+     */
+    LOW;
+
+    /**
+     * Returns {@code true} if this priority ranks below {@code other}.
+     */
+    public boolean isLowerThan(NotificationPriority other) {
+        return ordinal() > other.ordinal();
+    }
+}
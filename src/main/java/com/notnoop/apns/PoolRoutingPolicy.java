@@ -0,0 +1,23 @@
+package com.notnoop.apns;
+
+/**
+ * How a pooled {@link ApnsService} picks the connection for a notification.
+ *
+ * @see ApnsServiceBuilder#withPoolRouting(PoolRoutingPolicy)
+ */
+public enum PoolRoutingPolicy {
+    /**
+     * The connection expected to write the notification the soonest, judging
+     * by its backlog and recent write latency.  Notifications for the same
+     * device may be delivered out of order.
+     */
+    LEAST_LOADED,
+
+    /**
+     * The connection the device token hashes to, so that notifications for
+     * the same device keep their order, and an invalid token only affects
+     * the notifications sharing its connection.  A stalled connection keeps
+     * its devices.
+     */
+    TOKEN_AFFINITY
+}
@@ -0,0 +1,25 @@
+package com.notnoop.apns;
+
+/**
+ * Assigns a {@link NotificationPriority} to notifications.
+ *
+ * Implementations are called on the pushing thread for every notification,
+ * so they should be cheap, e.g. an {@code instanceof} check on an application
+ * specific notification class.
+ */
+public interface PriorityClassifier {
+
+    /**
+     * Returns the priority of the given notification, never {@code null}.
+     */
+    public NotificationPriority priorityOf(ApnsNotification notification);
+
+    /**
+     * A classifier treating all notifications as {@link NotificationPriority#NORMAL}.
+     */
+    public final static PriorityClassifier DEFAULT = new PriorityClassifier() {
+        public NotificationPriority priorityOf(ApnsNotification notification) {
+            return NotificationPriority.NORMAL;
+        }
+    };
+}
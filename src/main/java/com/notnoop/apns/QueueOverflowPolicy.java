@@ -0,0 +1,40 @@
+package com.notnoop.apns;
+
+/**
+ * What a queued {@link ApnsService} does when its bounded queue is full.
+ *
+ * Notifications dropped by the service itself are reported through
+ * {@link ApnsDelegate#messageSendFailed(ApnsNotification, Throwable)} with a
+ * {@link com.notnoop.exceptions.NotificationDroppedException}.  Notifications
+ * that are rejected are not reported to the delegate, the caller learns about
+ * them directly instead.
+ *
+ * @see ApnsServiceBuilder#withBoundedQueue(int, QueueOverflowPolicy)
+ */
+public enum QueueOverflowPolicy {
+    /**
+     * {@code push} waits for free space, up to the configured block timeout,
+     * and then throws a {@link com.notnoop.exceptions.NotificationDroppedException}.
+     */
+    BLOCK,
+
+    /**
+     * {@code push} throws a {@link com.notnoop.exceptions.NotificationDroppedException}
+     * right away.
+     */
+    REJECT,
+
+    /**
+     * The oldest queued notification is dropped to make room.
+     */
+    DROP_OLDEST,
+
+    /**
+     * The oldest queued notification of the lowest {@link NotificationPriority}
+     * is dropped to make room.  If the new notification ranks below everything
+     * queued, {@code push} throws a
+     * {@link com.notnoop.exceptions.NotificationDroppedException} instead, as
+     * with {@link #REJECT}.
+     */
+    DROP_LOWEST_PRIORITY
+}
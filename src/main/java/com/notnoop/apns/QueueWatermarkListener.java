@@ -0,0 +1,29 @@
+package com.notnoop.apns;
+
+/**
+ * Gets notified when the queue of a queued {@link ApnsService} crosses its
+ * watermarks, so producers can pause before the queue overflows.
+ *
+ * The callbacks alternate: after {@link #highWatermarkReached(int)} the next
+ * call is always {@link #lowWatermarkReached(int)}, and vice versa.  They are
+ * called on the pushing thread or on the queue processing thread, and must
+ * not block.
+ *
+ * @see ApnsServiceBuilder#withQueueWatermarks(int, int, QueueWatermarkListener)
+ */
+public interface QueueWatermarkListener {
+
+    /**
+     * The queue grew to the high watermark; producers should pause.
+     *
+     * @param queueSize the number of queued notifications
+     */
+    public void highWatermarkReached(int queueSize);
+
+    /**
+     * The queue drained down to the low watermark; producers may resume.
+     *
+     * @param queueSize the number of queued notifications
+     */
+    public void lowWatermarkReached(int queueSize);
+}
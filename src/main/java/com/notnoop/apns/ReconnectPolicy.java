@@ -30,6 +30,8 @@
  */
 package com.notnoop.apns;
 
+import java.util.concurrent.TimeUnit;
+
 import com.notnoop.apns.internal.ReconnectPolicies;
 
 /**
@@ -111,6 +113,21 @@ public interface ReconnectPolicy {
             }
         },
 
+        /**
+         * Makes a new connection when the current one stayed idle for more
+         * than four minutes, as firewalls and NAT devices tend to drop idle
+         * connections silently, or when a tenth of the recent writes failed.
+         * A busy and healthy connection is kept.
+         *
+         * @see ReconnectPolicies.Adaptive
+         */
+        ADAPTIVE {
+            @Override
+            public ReconnectPolicy newObject() {
+                return new ReconnectPolicies.Adaptive(4, TimeUnit.MINUTES, 0, 0, 0.1);
+            }
+        },
+
         /**
          * Makes a new connection for every message being sent.
          *
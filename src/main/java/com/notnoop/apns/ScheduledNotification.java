@@ -0,0 +1,27 @@
+package com.notnoop.apns;
+
+/**
+ * A notification waiting for its delivery time.
+ *
+ * @see ApnsService#scheduleAt(ApnsNotification, java.util.Date)
+ */
+public interface ScheduledNotification {
+
+    /**
+     * Returns the scheduled notification.
+     */
+    public ApnsNotification getNotification();
+
+    /**
+     * Prevents the notification from being pushed, unless it has been
+     * already.
+     *
+     * @return {@code true} if the notification won't be pushed
+     */
+    public boolean cancel();
+
+    /**
+     * Returns whether the notification has been cancelled.
+     */
+    public boolean isCancelled();
+}
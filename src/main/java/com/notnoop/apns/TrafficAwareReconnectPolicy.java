@@ -0,0 +1,35 @@
+package com.notnoop.apns;
+
+/**
+ * A reconnect policy that also gets told about the traffic over the
+ * connection and the errors it sees, to decide on more than time.
+ *
+ * @see com.notnoop.apns.internal.ReconnectPolicies.Adaptive
+ */
+public interface TrafficAwareReconnectPolicy extends ReconnectPolicy {
+
+    /**
+     * Called when notifications have been written to the connection.
+     *
+     * @param notifications the number of notifications written
+     * @param bytes         the number of bytes written
+     */
+    public void notificationsSent(int notifications, int bytes);
+
+    /**
+     * Called when a write failed, or the gateway answered with an
+     * error-response or dropped the connection.  A read timeout, where the
+     * gateway merely had nothing to say, doesn't count.
+     */
+    public void errorOccurred();
+
+    /**
+     * Returns whether the current connection is likely dead already, e.g.
+     * because it stayed idle for so long that a firewall may have dropped
+     * it silently.  Such a connection is replaced before the next write,
+     * even when reconnects are otherwise made in the background or
+     * staggered, as nothing should be written to it any more.
+     */
+    public boolean isStale();
+
+}
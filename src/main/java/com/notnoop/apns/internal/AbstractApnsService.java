@@ -35,11 +35,13 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.ScheduledNotification;
 import com.notnoop.exceptions.NetworkIOException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -132,6 +134,44 @@ abstract class AbstractApnsService implements ApnsService {
 
     public abstract void push(ApnsNotification message) throws NetworkIOException;
 
+    public boolean tryPush(ApnsNotification message) throws NetworkIOException {
+        push(message);
+        return true;
+    }
+
+    /**
+     * Pushes the notification with the deadline kept in a thread local,
+     * which the services and connections it passes through on this thread
+     * observe, and queues carry along with it.
+     */
+    public void push(ApnsNotification message, long timeout, TimeUnit unit) throws NetworkIOException {
+        final Long previous = DeadlineNotification.enter(System.nanoTime() + unit.toNanos(timeout));
+        try {
+            DeadlineNotification.check();
+            push(message);
+        } finally {
+            DeadlineNotification.exit(previous);
+        }
+    }
+
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException, NetworkIOException {
+        return true;
+    }
+
+    public ScheduledNotification scheduleAt(ApnsNotification message, Date time) {
+        throw new UnsupportedOperationException("scheduling requires ApnsServiceBuilder.withScheduling()");
+    }
+
+    /**
+     * Sends the notifications in order.  Services that can write several
+     * notifications at once override this to do so.
+     */
+    public void pushAll(Collection<? extends ApnsNotification> messages) throws NetworkIOException {
+        for (ApnsNotification message : messages) {
+            push(message);
+        }
+    }
+
     public Map<String, Date> getInactiveDevices() throws NetworkIOException {
         return feedback.getInactiveDevices();
     }
@@ -31,6 +31,8 @@
 package com.notnoop.apns.internal;
 
 import java.io.Closeable;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.exceptions.NetworkIOException;
@@ -42,6 +44,33 @@ public interface ApnsConnection extends Closeable {
 
     void sendMessage(ApnsNotification m) throws NetworkIOException;
 
+    /**
+     * Sends several notifications at once, writing them to the socket
+     * together where the implementation allows it.
+     */
+    void sendMessages(Collection<? extends ApnsNotification> messages) throws NetworkIOException;
+
+    /**
+     * Opens the connection, including the TLS handshake, so that the first
+     * notification doesn't have to wait for it.  Does nothing if the
+     * connection is already open.
+     */
+    void connect() throws NetworkIOException;
+
+    /**
+     * Returns once all notifications sent before are written to the socket,
+     * including the ones being resent after an error-response.
+     */
+    void flush() throws NetworkIOException;
+
+    /**
+     * Waits until the notifications sent before are written and no
+     * error-response can still arrive for them.
+     *
+     * @return {@code false} if that didn't happen within {@code timeout}
+     */
+    boolean awaitConfirmation(long timeout, TimeUnit unit) throws InterruptedException;
+
     void testConnection() throws NetworkIOException;
 
     ApnsConnection copy();
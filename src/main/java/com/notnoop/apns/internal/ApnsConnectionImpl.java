@@ -30,28 +30,43 @@
 */
 package com.notnoop.apns.internal;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsMetrics;
 import com.notnoop.apns.StartSendingApnsDelegate;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.CongestionController;
 import com.notnoop.apns.DeliveryError;
 import com.notnoop.apns.EnhancedApnsNotification;
 import com.notnoop.apns.ReconnectPolicy;
+import com.notnoop.apns.TrafficAwareReconnectPolicy;
 import com.notnoop.exceptions.ApnsDeliveryErrorException;
 import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.NotificationDroppedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,13 +88,51 @@ public class ApnsConnectionImpl implements ApnsConnection {
     private final boolean errorDetection;
     private final ThreadFactory threadFactory;
     private final boolean autoAdjustCacheLength;
-    private final ConcurrentLinkedQueue<ApnsNotification> cachedNotifications, notificationsBuffer;
+    private final ConcurrentLinkedQueue<ApnsNotification> notificationsBuffer;
+    private volatile ConcurrentLinkedQueue<ApnsNotification> cachedNotifications;
     private Socket socket;
+    private Socket standby;
+    private final Set<Socket> retired = Collections.newSetFromMap(new WeakHashMap<Socket, Boolean>());
+    private boolean rotating, openingStandby;
     private final AtomicInteger threadId = new AtomicInteger(0);
     private ExecutorService executors = Executors.newSingleThreadExecutor();
+    private final FlightRecorder recorder = new FlightRecorder();
+    private volatile TokenBucket rateLimiter;
+    private volatile CongestionController congestionController;
+    private ApnsMetrics metrics;
+    private volatile long confirmationWindowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_CONFIRMATION_WINDOW_MILLIS);
+    private volatile long lastWriteNanos = System.nanoTime();
+    private volatile RetryBackoff retryBackoff = RetryBackoff.DEFAULT;
+    private volatile ScheduledExecutorService retryScheduler;
+    private final AtomicInteger pendingRetries = new AtomicInteger();
+    /** whether a resend handed off by the error-response poller is under way */
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean closed;
+    /** whether this connection, rather than a copy of it, was given the shared schedulers */
+    private boolean ownsSchedulers = true;
+    private volatile CircuitBreaker circuitBreaker;
+    private volatile TokenBucket handshakeLimiter;
+    private volatile ScheduledExecutorService rotationScheduler;
+    private volatile long rotationGraceNanos = TimeUnit.SECONDS.toNanos(DEFAULT_ROTATION_GRACE_SECONDS);
+    private volatile boolean warmStandby;
+    private volatile ErrorResponsePoller errorResponsePoller;
+    private volatile long lastHandshakeNanos = -1;
+    private volatile boolean lastHandshakeResumed;
 
     private int sendMessageTimeout = 30;
 
+    /**
+     * How long the gateway is given by default to answer with an
+     * error-response after the last write.
+     */
+    public static final long DEFAULT_CONFIRMATION_WINDOW_MILLIS = 1000;
+
+    /**
+     * How long a rotated out socket is kept open by default for late
+     * error-responses.
+     */
+    public static final long DEFAULT_ROTATION_GRACE_SECONDS = 5;
+
     public ApnsConnectionImpl(SocketFactory factory, String host, int port) {
         this(factory, host, port, new ReconnectPolicies.Never(), ApnsDelegate.EMPTY);
     }
@@ -130,276 +183,938 @@ public class ApnsConnectionImpl implements ApnsConnection {
     }
 
     public synchronized void close() {
+        closed = true;
         executors.shutdown();
         try {
             executors.awaitTermination(10, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             logger.warn("pool termination interrupted", e);
         }
+        if (ownsSchedulers && retryScheduler != null) {
+            retryScheduler.shutdown();
+        }
+        if (ownsSchedulers && rotationScheduler != null) {
+            // retired sockets are closed below rather than after their grace period
+            rotationScheduler.shutdownNow();
+        }
         Utilities.close(socket);
+        Utilities.close(standby);
+        standby = null;
+        for (Socket old : retired) {
+            Utilities.close(old);
+        }
+        retired.clear();
+        recorder.record(FlightRecorder.Event.CLOSED, 0);
+    }
+
+    /**
+     * Limits the rate at which this connection writes notifications,
+     * resends included.  Copies of this connection get a bucket of their own.
+     */
+    public void setRateLimiter(TokenBucket rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Counts the notifications this connection drops, e.g. because they
+     * expired before they could be resent.  Copies share the counters.
+     */
+    public void setMetrics(ApnsMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Fails connects right away while {@code breaker} is open, and reports
+     * the outcome of connects and handshakes to it.  Copies share the
+     * breaker.
+     */
+    public void setCircuitBreaker(CircuitBreaker breaker) {
+        this.circuitBreaker = breaker;
+    }
+
+    /**
+     * Limits the rate of new connections, so that the gateway isn't
+     * hammered with handshakes when it comes back.  Copies share the
+     * limiter.
+     */
+    public void setHandshakeLimiter(TokenBucket limiter) {
+        this.handshakeLimiter = limiter;
+    }
+
+    /**
+     * Opens the replacement socket in the background on {@code scheduler}
+     * when the reconnect policy asks for a new connection, and keeps
+     * writing to the current one until the replacement is connected and
+     * handshaken.  The current socket is then kept open for the grace
+     * period, see {@link #setRotationGracePeriod(long, TimeUnit)}, so that
+     * error-responses for the notifications last written to it still
+     * arrive.  Copies share the scheduler, which is shut down when this
+     * connection, not one of its copies, is closed.
+     */
+    public void setRotationScheduler(ScheduledExecutorService scheduler) {
+        this.rotationScheduler = scheduler;
     }
 
-    private void monitorSocket(final Socket socket) {
+    /**
+     * Sets how long a rotated out socket is kept open for late
+     * error-responses.
+     */
+    public void setRotationGracePeriod(long gracePeriod, TimeUnit unit) {
+        this.rotationGraceNanos = unit.toNanos(gracePeriod);
+    }
+
+    /**
+     * Keeps a connected and handshaken socket in reserve, opened on the
+     * rotation scheduler, which takes over right away when the current
+     * one is closed, e.g. after an error-response.  Needs a rotation
+     * scheduler.
+     */
+    public void setWarmStandby(boolean warmStandby) {
+        this.warmStandby = warmStandby;
+    }
+
+    /**
+     * Reads the error-responses of this connection's sockets on the
+     * poller's thread rather than on a monitoring thread per socket.
+     * Copies share the poller.
+     */
+    public void setErrorResponsePoller(ErrorResponsePoller poller) {
+        this.errorResponsePoller = poller;
+    }
+
+    /**
+     * Sets how often and after what delays failed writes are retried.
+     */
+    public void setRetryBackoff(RetryBackoff retryBackoff) {
+        this.retryBackoff = retryBackoff;
+    }
+
+    /**
+     * Retries failed writes on {@code scheduler} after their backoff delay,
+     * instead of sleeping on the sending thread.  The send then returns
+     * right away, and the delegate learns later whether the retries
+     * succeeded; a retried notification may thus go out after ones sent
+     * after it.  Copies share the scheduler, which is shut down when this
+     * connection, not one of its copies, is closed.  Retries still pending
+     * then give up and are reported to the delegate.
+     */
+    public void setRetryScheduler(ScheduledExecutorService scheduler) {
+        this.retryScheduler = scheduler;
+    }
+
+    /**
+     * Sets how long {@link #awaitConfirmation(long, TimeUnit)} waits after
+     * the last write for an error-response before it takes the notifications
+     * as accepted.
+     */
+    public void setConfirmationWindow(long window, TimeUnit unit) {
+        this.confirmationWindowNanos = unit.toNanos(window);
+    }
+
+    /**
+     * Lets {@code controller} adapt the rate of this connection's rate
+     * limiter to the congestion it observes, starting at the controller's
+     * rate.  Without a rate limiter, one allowing bursts of a tenth of that
+     * rate is created.
+     * Copies of this connection get a controller of their own.
+     */
+    public void setCongestionController(CongestionController controller) {
+        if (controller != null) {
+            if (rateLimiter == null) {
+                rateLimiter = new TokenBucket(controller.getRate(), Math.max(1, (int) (controller.getRate() / 10)), null);
+            } else {
+                rateLimiter.setRate(controller.getRate());
+            }
+        }
+        this.congestionController = controller;
+    }
+
+    private void sentSuccessfully(int notifications, int bytes) {
+        final CongestionController controller = congestionController;
+        if (controller != null) {
+            rateLimiter.setRate(controller.onSuccess(notifications));
+        }
+        if (reconnectPolicy instanceof TrafficAwareReconnectPolicy) {
+            ((TrafficAwareReconnectPolicy) reconnectPolicy).notificationsSent(notifications, bytes);
+        }
+    }
+
+    private void errorOccurred() {
+        if (reconnectPolicy instanceof TrafficAwareReconnectPolicy) {
+            ((TrafficAwareReconnectPolicy) reconnectPolicy).errorOccurred();
+        }
+    }
+
+    private void congested(CongestionController.Signal signal) {
+        final CongestionController controller = congestionController;
+        if (controller != null) {
+            final double rate = controller.onCongestion(signal);
+            rateLimiter.setRate(rate);
+            logger.debug("Congestion signal {}, send rate lowered to {}/s", signal, rate);
+        }
+    }
+
+    /**
+     * Returns the recorder holding the recent lifecycle events of this
+     * connection.
+     */
+    public FlightRecorder getFlightRecorder() {
+        return recorder;
+    }
+
+    private void dumpFlightRecorder(String reason) {
+        if (logger.isInfoEnabled()) {
+            logger.info("{}, recent events of {}:\n{}", reason, this, recorder.dump());
+        }
+    }
+
+    private void monitorSocket(final Socket socket, final Queue<ApnsNotification> cachedNotifications) {
+        final ErrorResponsePoller poller = errorResponsePoller;
+        final SocketMonitor monitor = new SocketMonitor(socket, cachedNotifications, poller != null);
+        if (poller != null) {
+            logger.debug("Registering socket {} with the error-response poller", socket);
+            poller.register(socket, readTimeout, monitor);
+            return;
+        }
         logger.debug("Launching Monitoring Thread for socket {}", socket);
+        Thread t = threadFactory.newThread(monitor);
+        t.start();
+    }
 
-//        避免在finally块中重复关闭已经正常开启的Socket和executors
-        final Socket monitoredSocket = socket;
+    /**
+     * Handles the error-responses arriving on a socket, either reading them
+     * on a monitoring thread of its own or being called by the shared
+     * {@link ErrorResponsePoller}.
+     */
+    private final class SocketMonitor implements Runnable, ErrorResponsePoller.Listener {
+        final Socket monitoredSocket;
+        final Queue<ApnsNotification> cachedNotifications;
+        /** whether the shared poller's dispatch thread makes the calls */
+        final boolean polled;
+        boolean errorResponse = false;
+        /** whether the last read found nothing within the read timeout, rather than EOF */
+        boolean timedOut = false;
 
-        Thread t = threadFactory.newThread(new Runnable() {
-            final static int EXPECTED_SIZE = 6;
+        SocketMonitor(Socket socket, Queue<ApnsNotification> cachedNotifications, boolean polled) {
+            this.monitoredSocket = socket;
+            this.cachedNotifications = cachedNotifications;
+            this.polled = polled;
+        }
 
-            @SuppressWarnings("InfiniteLoopStatement")
-            @Override
-            public void run() {
-                logger.debug("Started monitoring thread");
+        @Override
+        public void run() {
+            logger.debug("Started monitoring thread");
 
+            try {
+                InputStream in;
                 try {
-                    InputStream in;
-                    try {
-                        logger.debug("CC MMMMMMMMMMM-1 ready getInputStream monitorSocket socket = {}", monitoredSocket);
-                        in = monitoredSocket.getInputStream();
-                        logger.debug("CC MMMMMMMMMMM-1-1 getInputStream end monitorSocket socket = {}", monitoredSocket);
-                    } catch (IOException ioe) {
-                        logger.debug("CC MMMMMMMMMMM-2 IOException = {}, monitorSocket socket = {}", ioe, monitoredSocket);
-                        in = null;
-                    }
+                    in = monitoredSocket.getInputStream();
+                } catch (IOException ioe) {
+                    in = null;
+                }
 
-                    byte[] bytes = new byte[EXPECTED_SIZE];
-                    while (in != null && readPacket(in, bytes)) {
-
-                        logger.debug("CC MMMMMMMMMMM-3, readpacket monitorSocket socket = {}", monitoredSocket);
-
-                        logger.debug("Error-response packet {}", Utilities.encodeHex(bytes));
-                        // Quickly close socket, so we won't ever try to send push notifications
-                        // using the defective socket.
-                        Utilities.close(monitoredSocket);
-
-                        int command = bytes[0] & 0xFF;
-                        if (command != 8) {
-                            throw new IOException("Unexpected command byte " + command);
-                        }
-                        int statusCode = bytes[1] & 0xFF;
-                        DeliveryError e = DeliveryError.ofCode(statusCode);
-
-                        int id = Utilities.parseBytes(bytes[2], bytes[3], bytes[4], bytes[5]);
-
-                        logger.debug("Closed connection cause={}; id={}", e, id);
-                        delegate.connectionClosed(e, id);
-
-                        Queue<ApnsNotification> tempCache = new LinkedList<ApnsNotification>();
-                        ApnsNotification notification = null;
-                        boolean foundNotification = false;
-
-                        while (!cachedNotifications.isEmpty()) {
-                            notification = cachedNotifications.poll();
-                            logger.debug("Candidate for removal, message id {}", notification.getIdentifier());
-
-                            if (notification.getIdentifier() == id) {
-                                logger.debug("Bad message found {}", notification.getIdentifier());
-                                foundNotification = true;
-                                break;
-                            }
-                            tempCache.add(notification);
-                        }
-
-                        if (foundNotification) {
-                            logger.debug("delegate.messageSendFailed, message id {}", notification.getIdentifier());
-                            delegate.messageSendFailed(notification, new ApnsDeliveryErrorException(e));
-                        } else {
-                            cachedNotifications.addAll(tempCache);
-                            int resendSize = tempCache.size();
-                            logger.warn("Received error for message that wasn't in the cache...");
-                            if (autoAdjustCacheLength) {
-                                cacheLength = cacheLength + (resendSize / 2);
-                                delegate.cacheLengthExceeded(cacheLength);
-                            }
-                            logger.debug("delegate.messageSendFailed, unknown id");
-                            delegate.messageSendFailed(null, new ApnsDeliveryErrorException(e));
-                        }
-
-                        int resendSize = 0;
-
-                        while (!cachedNotifications.isEmpty()) {
-
-                            resendSize++;
-                            final ApnsNotification resendNotification = cachedNotifications.poll();
-                            logger.debug("Queuing for resend {}", resendNotification.getIdentifier());
-                            notificationsBuffer.add(resendNotification);
-                        }
-                        logger.debug("resending {} notifications", resendSize);
-                        delegate.notificationsResent(resendSize);
-                    }
-                    logger.debug("Monitoring input stream closed by EOF");
-                } catch (IOException e) {
-                    // An exception when reading the error code is non-critical, it will cause another retry
-                    // sending the message. Other than providing a more stable network connection to the APNS
-                    // server we can't do much about it - so let's not spam the application's error log.
-                    logger.info("Exception while waiting for error code", e);
-                    delegate.connectionClosed(DeliveryError.UNKNOWN, -1);
-                } finally {
-//                    close();
+                byte[] bytes = new byte[ErrorResponsePoller.PACKET_SIZE];
+                while (in != null && readPacket(in, bytes)) {
+                    // Quickly close socket, so we won't ever try to send push notifications
+                    // using the defective socket.
                     Utilities.close(monitoredSocket);
-                    drainBuffer();
+                    errorResponse(bytes);
                 }
+                if (timedOut) {
+                    timedOut();
+                } else {
+                    closed();
+                }
+            } catch (IOException e) {
+                failed(e);
+            } finally {
+                finished();
             }
+        }
 
-            /**
-             * Read a packet like in.readFully(bytes) does - but do not throw an exception and return false if nothing
-             * could be read at all.
-             * @param in the input stream
-             * @param bytes the array to be filled with data
-             * @return true if a packet as been read, false if the stream was at EOF right at the beginning.
-             * @throws IOException When a problem occurs, especially EOFException when there's an EOF in the middle of the packet.
-             */
-            private boolean readPacket(final InputStream in, final byte[] bytes) throws IOException {
-                final int len = bytes.length;
-                int n = 0;
-                while (n < len) {
-                    logger.debug("CC RRRRRRR-1 len = {}", len);
-                    try {
-                        int count = in.read(bytes, n, len - n);
-                        logger.debug("CC RRRRRRR-2 n = {}, count = {}", n, count);
-                        if (count < 0) {
-                            throw new EOFException("EOF after reading " + n + " bytes of new packet.");
-                        }
-                        n += count;
-                    } catch (IOException ioe) {
-                        if (n == 0) {
-//                            logger.debug("CC RRRRRRRRRRRR IOException=", ioe);
-                            logger.debug("CC RRRRRRRRRRRR received apple response = {}, readPacket = false", Utilities.encodeHex(bytes));
-
-                            return false;
-                        }
-                        throw new IOException("Error after reading " + n + " bytes of packet", ioe);
+        public void errorResponse(byte[] bytes) throws IOException {
+            errorResponse = true;
+            logger.debug("Error-response packet {}", Utilities.encodeHex(bytes));
+
+            int command = bytes[0] & 0xFF;
+            if (command != 8) {
+                throw new IOException("Unexpected command byte " + command);
+            }
+            int statusCode = bytes[1] & 0xFF;
+            DeliveryError e = DeliveryError.ofCode(statusCode);
+
+            int id = Utilities.parseBytes(bytes[2], bytes[3], bytes[4], bytes[5]);
+
+            recorder.record(FlightRecorder.Event.ERROR_RESPONSE, id, statusCode);
+            errorOccurred();
+            if (e == DeliveryError.PROCESSING_ERROR) {
+                congested(CongestionController.Signal.PROCESSING_ERROR);
+            }
+            logger.debug("Closed connection cause={}; id={}", e, id);
+            delegate.connectionClosed(e, id);
+
+            Queue<ApnsNotification> tempCache = new LinkedList<ApnsNotification>();
+            ApnsNotification notification = null;
+            boolean foundNotification = false;
+
+            while (!cachedNotifications.isEmpty()) {
+                notification = cachedNotifications.poll();
+
+                if (notification.getIdentifier() == id) {
+                    foundNotification = true;
+                    break;
+                }
+                tempCache.add(notification);
+            }
+
+            if (foundNotification) {
+                delegate.messageSendFailed(notification, new ApnsDeliveryErrorException(e));
+            } else {
+                cachedNotifications.addAll(tempCache);
+                int resendSize = tempCache.size();
+                logger.warn("Received error for message that wasn't in the cache...");
+                if (autoAdjustCacheLength) {
+                    cacheLength = cacheLength + (resendSize / 2);
+                    delegate.cacheLengthExceeded(cacheLength);
+                }
+                delegate.messageSendFailed(null, new ApnsDeliveryErrorException(e));
+            }
+
+            int resendSize = 0;
+
+            while (!cachedNotifications.isEmpty()) {
+                resendSize++;
+                notificationsBuffer.add(cachedNotifications.poll());
+            }
+            recorder.record(FlightRecorder.Event.RESEND_QUEUED, id, resendSize);
+            logger.debug("resending {} notifications", resendSize);
+            delegate.notificationsResent(resendSize);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Recent events after error-response {}:\n{}", e, recorder.dump());
+            }
+        }
+
+        public void closed() {
+            recorder.record(FlightRecorder.Event.MONITOR_EOF, 0);
+            logger.debug("Monitoring input stream closed by EOF");
+            if (!errorResponse && !monitoredSocket.isClosed()) {
+                // the gateway hung up on us without saying why
+                congested(CongestionController.Signal.CONNECTION_DROPPED);
+                errorOccurred();
+            }
+        }
+
+        public void timedOut() {
+            // a quiet gateway, not a congested one
+            recorder.record(FlightRecorder.Event.MONITOR_TIMEOUT, 0);
+            logger.debug("Monitoring input stream timed out");
+        }
+
+        public void failed(IOException e) {
+            // An exception when reading the error code is non-critical, it will cause another retry
+            // sending the message. Other than providing a more stable network connection to the APNS
+            // server we can't do much about it - so let's not spam the application's error log.
+            recorder.record(FlightRecorder.Event.MONITOR_FAILED, 0);
+            if (isRetired(monitoredSocket)) {
+                // closed by us once its grace period was over
+                logger.debug("Retired socket closed", e);
+                return;
+            }
+            congested(CongestionController.Signal.CONNECTION_DROPPED);
+            errorOccurred();
+            logger.info("Exception while waiting for error code", e);
+            delegate.connectionClosed(DeliveryError.UNKNOWN, -1);
+        }
+
+        public void finished() {
+            Utilities.close(monitoredSocket);
+            if (polled) {
+                // reconnecting here would hold up the other connections of the poller
+                drainLater();
+            } else {
+                drainBuffer();
+            }
+        }
+
+        /**
+         * Read a packet like in.readFully(bytes) does - but do not throw an exception and return false if nothing
+         * could be read at all.
+         * @param in the input stream
+         * @param bytes the array to be filled with data
+         * @return true if a packet as been read, false if the stream was at EOF right at the beginning.
+         * @throws IOException When a problem occurs, especially EOFException when there's an EOF in the middle of the packet.
+         */
+        private boolean readPacket(final InputStream in, final byte[] bytes) throws IOException {
+            final int len = bytes.length;
+            int n = 0;
+            while (n < len) {
+                try {
+                    int count = in.read(bytes, n, len - n);
+                    if (count < 0) {
+                        throw new EOFException("EOF after reading " + n + " bytes of new packet.");
+                    }
+                    n += count;
+                } catch (IOException ioe) {
+                    if (n == 0) {
+                        timedOut = ioe instanceof SocketTimeoutException;
+                        return false;
                     }
+                    throw new IOException("Error after reading " + n + " bytes of packet", ioe);
                 }
-                logger.debug("CC RRRRRRRRRRRR received apple response = {}, readPacket = true", Utilities.encodeHex(bytes));
-                return true;
             }
-        });
-        t.start();
+            return true;
+        }
     }
 
     private synchronized Socket getOrCreateSocket(boolean resend) throws NetworkIOException {
-        if (reconnectPolicy.shouldReconnect()) {
-            logger.debug("Reconnecting due to reconnectPolicy dictating it");
+        if (reconnectPolicy instanceof TrafficAwareReconnectPolicy
+                && ((TrafficAwareReconnectPolicy) reconnectPolicy).isStale()) {
+            // don't write to it while a replacement is opened, the write would vanish
+            logger.debug("Reconnecting before writing to a stale connection");
+            recorder.record(FlightRecorder.Event.RECONNECT, 0);
             Utilities.close(socket);
             socket = null;
+            // a standby idled just as long
+            Utilities.close(standby);
+            standby = null;
+        } else if (reconnectPolicy.shouldReconnect()) {
+            if (rotationScheduler != null && socket != null && !socket.isClosed()) {
+                // keep sending over the current socket until the replacement is ready
+                rotateInBackground();
+            } else {
+                logger.debug("Reconnecting due to reconnectPolicy dictating it");
+                recorder.record(FlightRecorder.Event.RECONNECT, 0);
+                Utilities.close(socket);
+                socket = null;
+            }
         }
 
         if (socket == null || socket.isClosed()) {
-            try {
-                if (proxy == null) {
-                    socket = factory.createSocket(host, port);
-                    logger.debug("Connected new socket {}", socket);
-                } else if (proxy.type() == Proxy.Type.HTTP) {
-                    TlsTunnelBuilder tunnelBuilder = new TlsTunnelBuilder();
-                    socket = tunnelBuilder.build((SSLSocketFactory) factory, proxy, proxyUsername, proxyPassword, host, port);
-                    logger.debug("Connected new socket through http tunnel {}", socket);
+            Socket fresh = takeStandby();
+            if (fresh == null) {
+                fresh = openSocket(resend);
+            }
+            activate(fresh);
+            reconnectPolicy.reconnected();
+        }
+        return socket;
+    }
+
+    /**
+     * Connects and handshakes a new socket, without making it the one
+     * notifications are written to.
+     */
+    private Socket openSocket(boolean resend) throws NetworkIOException {
+        final CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null && !breaker.allowAttempt()) {
+            recorder.record(FlightRecorder.Event.CONNECT_REJECTED, 0);
+            throw new NetworkIOException(new IOException("Circuit breaker open, not connecting to " + host), resend);
+        }
+        // reported in any case, a half-open breaker waits for its probe to end
+        boolean connected = false;
+        try {
+            final TokenBucket limiter = handshakeLimiter;
+            if (limiter != null) {
+                limiter.acquire(1);
+            }
+            Socket s;
+            if (proxy == null && DeadlineNotification.remainingNanos() != Long.MAX_VALUE) {
+                // don't wait for the connect beyond the deadline of the notification
+                if (factory instanceof SSLSocketFactory) {
+                    // layered over a plain socket, so that the session is still cached for host and port
+                    final Socket plain = new Socket();
+                    try {
+                        plain.connect(new InetSocketAddress(host, port), boundedTimeout(connectTimeout));
+                        s = ((SSLSocketFactory) factory).createSocket(plain, host, port, true);
+                    } catch (IOException e) {
+                        Utilities.close(plain);
+                        throw e;
+                    }
                 } else {
-                    boolean success = false;
-                    Socket proxySocket = null;
+                    s = factory.createSocket();
                     try {
-                        proxySocket = new Socket(proxy);
-                        proxySocket.connect(new InetSocketAddress(host, port), connectTimeout);
-                        socket = ((SSLSocketFactory) factory).createSocket(proxySocket, host, port, false);
-                        success = true;
-                    } finally {
-                        if (!success) {
-                            Utilities.close(proxySocket);
-                        }
+                        s.connect(new InetSocketAddress(host, port), boundedTimeout(connectTimeout));
+                    } catch (IOException e) {
+                        Utilities.close(s);
+                        throw e;
                     }
-                    logger.debug("Connected new socket through socks tunnel {}", socket);
                 }
+                logger.debug("Connected new socket {}", s);
+            } else if (proxy == null) {
+                s = factory.createSocket(host, port);
+                logger.debug("Connected new socket {}", s);
+            } else if (proxy.type() == Proxy.Type.HTTP) {
+                TlsTunnelBuilder tunnelBuilder = new TlsTunnelBuilder();
+                s = tunnelBuilder.build((SSLSocketFactory) factory, proxy, proxyUsername, proxyPassword, host, port);
+                logger.debug("Connected new socket through http tunnel {}", s);
+            } else {
+                boolean success = false;
+                Socket proxySocket = null;
+                try {
+                    proxySocket = new Socket(proxy);
+                    proxySocket.connect(new InetSocketAddress(host, port), boundedTimeout(connectTimeout));
+                    s = ((SSLSocketFactory) factory).createSocket(proxySocket, host, port, false);
+                    success = true;
+                } finally {
+                    if (!success) {
+                        Utilities.close(proxySocket);
+                    }
+                }
+                logger.debug("Connected new socket through socks tunnel {}", s);
+            }
 
-                socket.setSoTimeout(readTimeout);
-                socket.setKeepAlive(true);
-                socket.setSendBufferSize(1024 * 32);
-//                socket.setReceiveBufferSize();
+            s.setSoTimeout(readTimeout);
+            s.setKeepAlive(true);
+            s.setSendBufferSize(1024 * 32);
+//            s.setReceiveBufferSize();
 
-                if (errorDetection) {
-                    monitorSocket(socket);
+            if (s instanceof SSLSocket) {
+                // handshake right away, so that a failed handshake counts as a failed connect
+                try {
+                    s.setSoTimeout(boundedTimeout(readTimeout));
+                    handshake((SSLSocket) s);
+                    s.setSoTimeout(readTimeout);
+                } catch (IOException e) {
+                    Utilities.close(s);
+                    throw e;
                 }
+            }
 
-                reconnectPolicy.reconnected();
-                logger.debug("Made a new connection to APNS");
-            } catch (IOException e) {
-                logger.error("Couldn't connect to APNS server", e);
-                // indicate to clients whether this is a resend or initial send
-                throw new NetworkIOException(e, resend);
+            connected = true;
+            recorder.record(FlightRecorder.Event.CONNECTED, 0);
+            logger.debug("Made a new connection to APNS");
+            return s;
+        } catch (IOException e) {
+            recorder.record(FlightRecorder.Event.CONNECT_FAILED, 0);
+            congested(CongestionController.Signal.CONNECT_FAILED);
+            logger.error("Couldn't connect to APNS server", e);
+            // indicate to clients whether this is a resend or initial send
+            throw new NetworkIOException(e, resend);
+        } finally {
+            if (breaker != null) {
+                if (connected) {
+                    breaker.onSuccess();
+                } else {
+                    breaker.onFailure();
+                }
             }
         }
-        return socket;
     }
 
-    int DELAY_IN_MS = 1000;
-    private static final int RETRIES = 3;
+    /**
+     * Handshakes the socket, and records whether a session cached by the
+     * SSL context was resumed: a resumed session was created before the
+     * handshake started.
+     */
+    private void handshake(SSLSocket s) throws IOException {
+        final long startMillis = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        s.startHandshake();
+        final long nanos = System.nanoTime() - start;
+        final boolean resumed = s.getSession().getCreationTime() < startMillis;
+
+        lastHandshakeNanos = nanos;
+        lastHandshakeResumed = resumed;
+        recorder.record(FlightRecorder.Event.HANDSHAKE, 0, resumed ? 1 : 0);
+        if (metrics != null) {
+            metrics.handshaken(resumed, nanos);
+        }
+        logger.debug("{} handshake took {} us", resumed ? "Resumed" : "Full", TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Returns how long the last TLS handshake of this connection took, or
+     * -1 if there was none yet.
+     */
+    public long getLastHandshakeNanos() {
+        return lastHandshakeNanos;
+    }
+
+    /**
+     * Returns whether the last TLS handshake of this connection resumed a
+     * session cached by the SSL context rather than authenticating from
+     * scratch.
+     */
+    public boolean isLastHandshakeResumed() {
+        return lastHandshakeResumed;
+    }
+
+    /**
+     * Makes {@code fresh} the socket notifications are written to.  It gets
+     * a resend cache of its own, as an error-response on the previous
+     * socket only concerns the notifications written to that one.
+     */
+    private synchronized void activate(Socket fresh) {
+        socket = fresh;
+        cachedNotifications = new ConcurrentLinkedQueue<ApnsNotification>();
+        if (errorDetection) {
+            monitorSocket(fresh, cachedNotifications);
+        }
+        prepareStandby();
+    }
+
+    /**
+     * Opens the replacement of the current socket on the rotation
+     * scheduler, then switches to it and retires the current one.
+     */
+    private synchronized void rotateInBackground() {
+        if (rotating) {
+            return;
+        }
+        rotating = true;
+        final Socket ready = takeStandby();
+        if (ready != null) {
+            switchTo(ready);
+            return;
+        }
+        try {
+            rotationScheduler.execute(new Runnable() {
+                public void run() {
+                    Socket fresh = null;
+                    try {
+                        fresh = openSocket(false);
+                    } catch (NetworkIOException e) {
+                        logger.info("Couldn't open the replacement connection, keeping the current one", e);
+                    } finally {
+                        switchTo(fresh);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rotating = false;
+        }
+    }
+
+    private synchronized void switchTo(Socket fresh) {
+        rotating = false;
+        if (fresh == null) {
+            return;
+        }
+        if (closed) {
+            Utilities.close(fresh);
+            return;
+        }
+        final Socket old = socket;
+        recorder.record(FlightRecorder.Event.RECONNECT, 0);
+        logger.debug("Rotating to a new connection, retiring {}", old);
+        activate(fresh);
+        reconnectPolicy.reconnected();
+        retire(old);
+    }
+
+    /**
+     * Keeps the old socket open for the grace period, so that its monitor
+     * still gets error-responses for the notifications last written to it.
+     */
+    private synchronized void retire(final Socket old) {
+        if (old == null || old.isClosed()) {
+            return;
+        }
+        retired.add(old);
+        try {
+            rotationScheduler.schedule(new Runnable() {
+                public void run() {
+                    Utilities.close(old);
+                }
+            }, rotationGraceNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            Utilities.close(old);
+        }
+    }
+
+    private synchronized boolean isRetired(Socket s) {
+        return retired.contains(s);
+    }
+
+    /**
+     * Opens a standby socket in the background, if asked for and none is
+     * ready or being opened.
+     */
+    private synchronized void prepareStandby() {
+        if (!warmStandby || rotationScheduler == null || standby != null || openingStandby || closed) {
+            return;
+        }
+        openingStandby = true;
+        try {
+            rotationScheduler.execute(new Runnable() {
+                public void run() {
+                    Socket fresh = null;
+                    try {
+                        fresh = openSocket(false);
+                    } catch (NetworkIOException e) {
+                        logger.info("Couldn't open a standby connection", e);
+                    } finally {
+                        standBy(fresh);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            openingStandby = false;
+        }
+    }
+
+    private synchronized void standBy(Socket fresh) {
+        openingStandby = false;
+        if (fresh != null && closed) {
+            Utilities.close(fresh);
+        } else {
+            standby = fresh;
+        }
+    }
+
+    private synchronized Socket takeStandby() {
+        final Socket s = standby;
+        standby = null;
+        if (s == null || s.isClosed()) {
+            return null;
+        }
+        logger.debug("Failing over to standby socket {}", s);
+        return s;
+    }
+
+    public synchronized void connect() throws NetworkIOException {
+        // new sockets are handshaken right away
+        getOrCreateSocket(false);
+    }
+
+    /**
+     * The most notifications resent with a single write after an
+     * error-response.
+     */
+    static final int RESEND_CHUNK_SIZE = 512;
 
     public synchronized void sendMessage(ApnsNotification m) throws NetworkIOException {
-        logger.debug("CC enter impl sendMessage, ApnsNotification = {}", m);
         sendMessage(m, false);
-        drainBuffer();
+        resendChunk();
+    }
+
+    /**
+     * Sends all the given notifications with a single write to the socket.
+     *
+     * If that write fails, the notifications are sent one by one with the
+     * usual retries instead.
+     */
+    public synchronized void sendMessages(Collection<? extends ApnsNotification> messages) throws NetworkIOException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        if (DeadlineNotification.remainingNanos() <= 0) {
+            NotificationDroppedException e =
+                    new NotificationDroppedException(NotificationDroppedException.Reason.DEADLINE_EXCEEDED);
+            for (ApnsNotification m : messages) {
+                recorder.record(FlightRecorder.Event.SEND_FAILED, m.getIdentifier(), 0);
+                delegate.messageSendFailed(m, e);
+            }
+            throw e;
+        }
+        final TokenBucket limiter = rateLimiter;
+        if (limiter != null) {
+            if (messages.size() > limiter.getBurst()) {
+                // don't let a single write exceed the burst
+                List<ApnsNotification> chunk = new ArrayList<ApnsNotification>(limiter.getBurst());
+                for (ApnsNotification m : messages) {
+                    chunk.add(m);
+                    if (chunk.size() == limiter.getBurst()) {
+                        sendMessages(chunk);
+                        chunk = new ArrayList<ApnsNotification>(limiter.getBurst());
+                    }
+                }
+                sendMessages(chunk);
+                return;
+            }
+            limiter.acquire(messages.size());
+        }
+        writeBatch(messages, false);
+        resendChunk();
+    }
+
+    /**
+     * Writes the notifications at once, or one by one with the usual
+     * retries if that fails.
+     *
+     * A batch larger than the cache is written in chunks of the cache
+     * length.  After a failed write, the members still cached are the ones
+     * to send again, while the others were queued for resending by an
+     * error-response; members evicted by the batch itself couldn't be told
+     * apart from the latter, and would get lost.
+     */
+    private void writeBatch(Collection<? extends ApnsNotification> messages, boolean fromBuffer)
+            throws NetworkIOException {
+        final int limit = cacheLength;
+        if (limit > 0 && messages.size() > limit) {
+            final List<ApnsNotification> all = new ArrayList<ApnsNotification>(messages);
+            for (int from = 0; from < all.size(); from += limit) {
+                final int to = Math.min(all.size(), from + limit);
+                try {
+                    writeBatch(all.subList(from, to), fromBuffer);
+                } catch (RuntimeException e) {
+                    failAll(all.subList(to, all.size()).iterator(), e);
+                    throw e;
+                }
+            }
+            return;
+        }
+        final ByteArrayOutputStream frames = new ByteArrayOutputStream(messages.size() * 128);
+        for (ApnsNotification m : messages) {
+            startSending(m, fromBuffer);
+            final byte[] frame = m.marshall();
+            frames.write(frame, 0, frame.length);
+        }
+
+        Queue<ApnsNotification> cache = null;
+        try {
+            final Socket s = getOrCreateSocket(fromBuffer);
+            // cache them first, the error-response may arrive before the write returns
+            cache = cachedNotifications;
+            for (ApnsNotification m : messages) {
+                cacheNotification(cache, m);
+            }
+            writeAndFlush(s, frames.toByteArray());
+        } catch (Exception e) {
+            if (cache != null && cacheLength > 0) {
+                // the ones an error-response queued for resending meanwhile are no longer cached
+                final List<ApnsNotification> unsent = new ArrayList<ApnsNotification>(messages.size());
+                for (ApnsNotification m : messages) {
+                    if (cache.remove(m)) {
+                        unsent.add(m);
+                    }
+                }
+                messages = unsent;
+            }
+            if (fromBuffer && e instanceof NetworkIOException) {
+                // no connection to resend them over
+                failAll(messages.iterator(), (NetworkIOException) e);
+                return;
+            }
+            Utilities.close(socket);
+            logger.debug("Writing a batch of {} notifications failed, sending them one by one", messages.size(), e);
+            sendEach(messages, fromBuffer);
+            return;
+        }
+
+        for (ApnsNotification m : messages) {
+            recorder.record(FlightRecorder.Event.SENT, m.getIdentifier(), 1);
+            delegate.messageSent(m, fromBuffer);
+        }
+        sentSuccessfully(messages.size(), frames.size());
+    }
+
+    private void sendEach(Collection<? extends ApnsNotification> messages, boolean fromBuffer)
+            throws NetworkIOException {
+        Iterator<? extends ApnsNotification> it = messages.iterator();
+        while (it.hasNext()) {
+            final ApnsNotification m = it.next();
+            try {
+                writeWithRetries(m, fromBuffer);
+            } catch (NetworkIOException e) {
+                if (fromBuffer) {
+                    delegate.messageSendFailed(m, e);
+                }
+                // the connection is down, don't make every remaining notification wait for its own retries
+                failAll(it, e);
+                if (!fromBuffer) {
+                    throw e;
+                }
+                return;
+            } catch (NotificationDroppedException e) {
+                // past the deadline, and so are the remaining ones
+                failAll(it, e);
+                throw e;
+            }
+        }
+    }
+
+    private void failAll(Iterator<? extends ApnsNotification> it, Exception e) {
+        while (it.hasNext()) {
+            delegate.messageSendFailed(it.next(), e);
+        }
     }
 
     private synchronized void sendMessage(final ApnsNotification m, final boolean fromBuffer) throws NetworkIOException {
-        logger.debug("sendMessage {} fromBuffer: {}", m, fromBuffer);
-        logger.debug("CC SSSSSSSSSSS enter sendMessage {} fromBuffer: {} socket is {}", m, fromBuffer, (socket == null || socket.isClosed()) ? null : socket);
+        if (!fromBuffer) {
+            checkDeadline(m);
+        }
+        final TokenBucket limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.acquire(1);
+        }
+        startSending(m, fromBuffer);
+        writeWithRetries(m, fromBuffer);
+    }
+
+    /**
+     * Fails the notification if the deadline it was pushed with has passed.
+     */
+    private void checkDeadline(ApnsNotification m) throws NotificationDroppedException {
+        if (DeadlineNotification.remainingNanos() <= 0) {
+            NotificationDroppedException e =
+                    new NotificationDroppedException(NotificationDroppedException.Reason.DEADLINE_EXCEEDED);
+            recorder.record(FlightRecorder.Event.SEND_FAILED, m.getIdentifier(), 0);
+            delegate.messageSendFailed(m, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns {@code timeoutMillis}, shortened to the deadline of the
+     * current thread, if any.  0 stands for no timeout, as for sockets.
+     */
+    private static int boundedTimeout(int timeoutMillis) {
+        final long remaining = DeadlineNotification.remainingNanos();
+        if (remaining == Long.MAX_VALUE) {
+            return timeoutMillis;
+        }
+        final int millis = (int) Math.max(1, Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(remaining)));
+        return timeoutMillis <= 0 ? millis : Math.min(timeoutMillis, millis);
+    }
+
+    private void startSending(ApnsNotification m, boolean fromBuffer) {
+        recorder.record(FlightRecorder.Event.SEND, m.getIdentifier(), fromBuffer ? 1 : 0);
 
         if (delegate instanceof StartSendingApnsDelegate) {
             ((StartSendingApnsDelegate) delegate).startSending(m, fromBuffer);
         }
+    }
+
+    private void writeAndFlush(final Socket socket, final byte[] frames) throws IOException {
+        if (executors == null || executors.isShutdown() || executors.isTerminated()) {
+            executors = Executors.newSingleThreadExecutor();
+        }
+        Future<Void> future = executors.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                socket.getOutputStream().write(frames);
+                socket.getOutputStream().flush();
+                return null;
+            }
+        });
+        try {
+            future.get(Math.min(TimeUnit.SECONDS.toNanos(sendMessageTimeout), DeadlineNotification.remainingNanos()),
+                    TimeUnit.NANOSECONDS);
+            lastWriteNanos = System.nanoTime();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            throw new IOException(ee.getCause());
+        } catch (TimeoutException te) {
+            throw new IOException(te.getCause());
+        }
+    }
 
+    private synchronized void writeWithRetries(final ApnsNotification m, final boolean fromBuffer) throws NetworkIOException {
+        final RetryBackoff backoff = retryBackoff;
         int attempts = 0;
 
         while (true) {
 
             try {
                 attempts++;
-
-                logger.debug("CC SSSSSSSSSSS-0 ready");
-                final Socket socket = getOrCreateSocket(fromBuffer);
-                logger.debug("CC SSSSSSSSSSS-1 ready socket = {}, isConnected = {}, isInputShutdown = {}, isOutputShutdown = {}", socket, socket.isConnected(), socket.isInputShutdown(), socket.isOutputShutdown());
-                logger.debug("CC SSSSSSSSSSS-2 ready write nitifacation = {}", m);
-                if (executors == null || executors.isShutdown() || executors.isTerminated()) {
-                    logger.debug("CC SSSSSSSSSSS-2-1 executors is shutdown, XXXXXXXXXXXXXXXXXX setup a new one. nitifacation = {}", m);
-                    executors = Executors.newSingleThreadExecutor();
-                }
-                Future<Void> future = executors.submit(new Callable<Void>() {
-                    public Void call() throws Exception {
-                        logger.debug("CC SSSSSSSSSSS-3-2 enter thread write and flush nitifacation = {}", m);
-                        socket.getOutputStream().write(m.marshall());
-                        socket.getOutputStream().flush();
-                        logger.debug("CC SSSSSSSSSSS-3-3 enter thread done nitifacation = {}", m);
-                        return null;
-                    }
-                });
-                try {
-                    logger.debug("CC SSSSSSSSSSS-3-1 future.get() start====== nitifacation = {}", m);
-                    future.get(sendMessageTimeout, TimeUnit.SECONDS);
-                    logger.debug("CC SSSSSSSSSSS-3-4 future.get() end====== nitifacation = {}", m);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                } catch (ExecutionException ee) {
-                    throw new IOException(ee.getCause());
-                } catch (TimeoutException te) {
-                    logger.debug("CC SSSSSSSSSSS-3-5 timeout for sendMessage HAHAHAHAHAHAHAHAHAHA nitifacation = {}", m);
-                    throw new IOException(te.getCause());
-                }
-
-                logger.debug("CC SSSSSSSSSSS-4 ready cache nitifacation = {}", m);
-                cacheNotification(m);
-
-                delegate.messageSent(m, fromBuffer);
-
-                //logger.debug("Message \"{}\" sent", m);
-                attempts = 0;
+                write(m, fromBuffer, attempts);
                 break;
             } catch (IOException e) {
-                logger.debug("CC SSSSSSSSSSS-5 catch exception nitifacation = {}, IOException = {}, attempts = {}, close socket = {}", m, e, attempts, socket);
                 Utilities.close(socket);
-                if (attempts >= RETRIES) {
-                    logger.error("Couldn't send message after " + RETRIES + " retries." + m, e);
-                    delegate.messageSendFailed(m, e);
+                errorOccurred();
+                if (attempts >= backoff.getMaxAttempts()) {
+                    giveUp(m, attempts, e);
                     Utilities.wrapAndThrowAsRuntimeException(e);
                 }
                 // The first failure might be due to closed connection (which in turn might be caused by
@@ -408,40 +1123,266 @@ public class ApnsConnectionImpl implements ApnsConnection {
                 // Additionally we don't want to spam the log file in this case, only after the second retry
                 // which uses the delay.
 
+                recorder.record(FlightRecorder.Event.RETRY, m.getIdentifier(), attempts);
                 if (attempts != 1) {
-                    logger.debug("CC SSSSSSSSSSS-6 retry send nitifacation = {}, attempts = {}", m, attempts);
+                    final long delayNanos = backoff.delayNanos(attempts - 2);
+                    if (delayNanos >= DeadlineNotification.remainingNanos()) {
+                        // the retry would come too late
+                        NotificationDroppedException dropped =
+                                new NotificationDroppedException(NotificationDroppedException.Reason.DEADLINE_EXCEEDED);
+                        giveUp(m, attempts, dropped);
+                        throw dropped;
+                    }
+                    if (retryScheduler != null) {
+                        logger.info("Failed to send message " + m + "... retrying later", e);
+                        scheduleRetry(m, fromBuffer, attempts, delayNanos);
+                        return;
+                    }
                     logger.info("Failed to send message " + m + "... trying again after delay", e);
-                    Utilities.sleep(DELAY_IN_MS);
+                    Utilities.sleep((int) TimeUnit.NANOSECONDS.toMillis(delayNanos));
                 }
             }
         }
     }
 
-    private synchronized void drainBuffer() {
-        logger.debug("draining buffer");
-        while (!notificationsBuffer.isEmpty()) {
-            final ApnsNotification notification = notificationsBuffer.poll();
+    private void write(ApnsNotification m, boolean fromBuffer, int attempts) throws IOException {
+        final Socket s = getOrCreateSocket(fromBuffer);
+        // cache it first, the error-response may arrive before the write returns
+        final Queue<ApnsNotification> cache = cachedNotifications;
+        cacheNotification(cache, m);
+        final byte[] frame = m.marshall();
+        try {
+            writeAndFlush(s, frame);
+        } catch (IOException e) {
+            if (cache.remove(m) || cacheLength == 0) {
+                throw e;
+            }
+            // an error-response came in meanwhile, and the monitor queued it for resending
+            logger.debug("Writing {} failed after it was queued for resending", m.getIdentifier());
+            return;
+        }
+
+        recorder.record(FlightRecorder.Event.SENT, m.getIdentifier(), attempts);
+
+        delegate.messageSent(m, fromBuffer);
+        sentSuccessfully(1, frame.length);
+    }
+
+    private void giveUp(ApnsNotification m, int attempts, Exception e) {
+        recorder.record(FlightRecorder.Event.SEND_FAILED, m.getIdentifier(), attempts);
+        logger.error("Couldn't send message after " + attempts + " attempts." + m, e);
+        dumpFlightRecorder("Giving up on message " + m.getIdentifier());
+        delegate.messageSendFailed(m, e);
+    }
+
+    private void scheduleRetry(final ApnsNotification m, final boolean fromBuffer, final int attempts, long delayNanos) {
+        pendingRetries.incrementAndGet();
+        try {
+            retryScheduler.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        retry(m, fromBuffer, attempts + 1);
+                    } finally {
+                        pendingRetries.decrementAndGet();
+                    }
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            pendingRetries.decrementAndGet();
+            giveUp(m, attempts, new NetworkIOException(new IOException("retry scheduler was shut down"), fromBuffer));
+        }
+    }
+
+    /**
+     * A delayed attempt, run by the retry scheduler.  Failing to reconnect
+     * counts as a failed attempt here, as the gateway may just be down.
+     */
+    private synchronized void retry(ApnsNotification m, boolean fromBuffer, int attempts) {
+        if (closed) {
+            giveUp(m, attempts - 1, new NetworkIOException(new IOException("connection closed before the message was retried"), fromBuffer));
+            return;
+        }
+        try {
+            write(m, fromBuffer, attempts);
+            return;
+        } catch (IOException e) {
+            Utilities.close(socket);
+            errorOccurred();
+            if (attempts >= retryBackoff.getMaxAttempts()) {
+                giveUp(m, attempts, e);
+                return;
+            }
+        } catch (NetworkIOException e) {
+            if (attempts >= retryBackoff.getMaxAttempts()) {
+                giveUp(m, attempts, e);
+                return;
+            }
+        }
+        recorder.record(FlightRecorder.Event.RETRY, m.getIdentifier(), attempts);
+        scheduleRetry(m, fromBuffer, attempts, retryBackoff.delayNanos(attempts - 1));
+    }
+
+    /**
+     * Resends the buffer off the calling thread: on the retry scheduler if
+     * there is one, and else on a thread of its own, started only when there
+     * is something to resend.  The error-detection thread factory is left to
+     * the poller.  Sends and flushes resend from the buffer too.
+     */
+    private void drainLater() {
+        if (notificationsBuffer.isEmpty() || !draining.compareAndSet(false, true)) {
+            return;
+        }
+        final Runnable drain = new Runnable() {
+            public void run() {
+                try {
+                    drainBuffer();
+                } catch (RuntimeException e) {
+                    // the delegate has been told about the notifications that couldn't be resent
+                    logger.debug("Resending after error-response failed", e);
+                } finally {
+                    draining.set(false);
+                }
+                // queued by another error-response while this drain was finishing
+                drainLater();
+            }
+        };
+        try {
+            final ScheduledExecutorService scheduler = retryScheduler;
+            if (scheduler != null) {
+                scheduler.execute(drain);
+            } else {
+                final Thread thread = new Thread(drain);
+                thread.setName("ApnsConnection-resend");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (RejectedExecutionException e) {
+            // shut down along with the service, a later send or flush still resends
+            draining.set(false);
+        }
+    }
+
+    /**
+     * Resends everything waiting in the buffer.  The lock is released
+     * between chunks, so that new notifications aren't held up until the
+     * whole tail behind an error-response has been resent.
+     */
+    private void drainBuffer() {
+        while (resendChunk()) {
+            // next chunk
+        }
+    }
+
+    /**
+     * Resends the next chunk of the buffer with a single write, over the
+     * new connection replacing the one the error-response closed.  Every
+     * send resends a chunk this way, interleaving the resends with new
+     * notifications.
+     *
+     * @return whether the buffer holds more notifications
+     */
+    private synchronized boolean resendChunk() {
+        if (notificationsBuffer.isEmpty()) {
+            return false;
+        }
+        final TokenBucket limiter = rateLimiter;
+        final int chunkSize = limiter == null ? RESEND_CHUNK_SIZE : Math.min(RESEND_CHUNK_SIZE, limiter.getBurst());
+        final long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        final List<ApnsNotification> chunk = new ArrayList<ApnsNotification>(Math.min(chunkSize, 64));
+        ApnsNotification notification;
+        while (chunk.size() < chunkSize && (notification = notificationsBuffer.poll()) != null) {
+            if (Utilities.isExpired(notification, now)) {
+                // Apple would discard it anyway
+                recorder.record(FlightRecorder.Event.EXPIRED, notification.getIdentifier());
+                if (metrics != null) {
+                    metrics.expiredDropped();
+                }
+                delegate.messageSendFailed(notification,
+                        new NotificationDroppedException(NotificationDroppedException.Reason.EXPIRED));
+                continue;
+            }
+            chunk.add(notification);
+        }
+        if (!chunk.isEmpty()) {
+            final long start = System.nanoTime();
+            if (limiter != null) {
+                limiter.acquire(chunk.size());
+            }
+            // at this point we may be failing to connect to APNS, the failed notifications are reported then
+            final Long deadline = DeadlineNotification.suspend();
             try {
-                sendMessage(notification, true);
-            } catch (NetworkIOException ex) {
-                // at this point we are retrying the submission of messages but failing to connect to APNS, therefore
-                // notify the client of this
-                delegate.messageSendFailed(notification, ex);
+                writeBatch(chunk, true);
+            } finally {
+                DeadlineNotification.exit(deadline);
+            }
+            if (metrics != null) {
+                metrics.resent(chunk.size(), System.nanoTime() - start);
             }
         }
+        return !notificationsBuffer.isEmpty();
     }
 
-    private void cacheNotification(ApnsNotification notification) {
-        cachedNotifications.add(notification);
-        while (cachedNotifications.size() > cacheLength) {
-            cachedNotifications.poll();
-            logger.debug("Removing notification from cache " + notification);
+    public void flush() throws NetworkIOException {
+        // writes are synchronous, only the notifications to resend may be left
+        drainBuffer();
+    }
+
+    /**
+     * Waits for a whole confirmation window without writes or pending
+     * resends.  Without error detection nothing would report an
+     * error-response, so this only waits out the window.
+     */
+    public boolean awaitConfirmation(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            if (!notificationsBuffer.isEmpty()) {
+                drainBuffer();
+            }
+            final long now = System.nanoTime();
+            final long quiet = lastWriteNanos + confirmationWindowNanos - now;
+            if (quiet <= 0 && notificationsBuffer.isEmpty() && pendingRetries.get() == 0) {
+                return true;
+            }
+            final long remaining = deadline - now;
+            if (remaining <= 0) {
+                return false;
+            }
+            // an error-response in the meantime leads to resends, which move the window
+            TimeUnit.NANOSECONDS.sleep(Math.max(Math.min(quiet, remaining), TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+    }
+
+    private void cacheNotification(Queue<ApnsNotification> cache, ApnsNotification notification) {
+        cache.add(notification);
+        while (cache.size() > cacheLength) {
+            ApnsNotification evicted = cache.poll();
+            if (evicted != null) {
+                recorder.record(FlightRecorder.Event.CACHE_EVICTED, evicted.getIdentifier());
+            }
         }
     }
 
     public ApnsConnectionImpl copy() {
-        return new ApnsConnectionImpl(factory, host, port, proxy, proxyUsername, proxyPassword, reconnectPolicy.copy(), delegate,
+        ApnsConnectionImpl copy = new ApnsConnectionImpl(factory, host, port, proxy, proxyUsername, proxyPassword, reconnectPolicy.copy(), delegate,
                 errorDetection, threadFactory, cacheLength, autoAdjustCacheLength, readTimeout, connectTimeout);
+        if (rateLimiter != null) {
+            copy.setRateLimiter(rateLimiter.copy());
+        }
+        if (congestionController != null) {
+            copy.setCongestionController(congestionController.copy());
+        }
+        copy.setMetrics(metrics);
+        copy.confirmationWindowNanos = confirmationWindowNanos;
+        copy.retryBackoff = retryBackoff;
+        copy.retryScheduler = retryScheduler;
+        copy.ownsSchedulers = false;
+        copy.circuitBreaker = circuitBreaker;
+        copy.handshakeLimiter = handshakeLimiter;
+        copy.rotationScheduler = rotationScheduler;
+        copy.rotationGraceNanos = rotationGraceNanos;
+        copy.warmStandby = warmStandby;
+        copy.errorResponsePoller = errorResponsePoller;
+        return copy;
     }
 
     public void testConnection() throws NetworkIOException {
@@ -449,6 +1390,7 @@ public class ApnsConnectionImpl implements ApnsConnection {
         try {
             testConnection =
                     new ApnsConnectionImpl(factory, host, port, proxy, proxyUsername, proxyPassword, reconnectPolicy.copy(), delegate);
+            testConnection.setMetrics(metrics);
             final ApnsNotification notification = new EnhancedApnsNotification(0, 0, new byte[]{0}, new byte[]{0});
             testConnection.sendMessage(notification);
         } finally {
@@ -37,6 +37,7 @@ import java.net.Proxy;
 import java.net.Socket;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 import org.slf4j.Logger;
@@ -71,10 +72,18 @@ public class ApnsFeedbackConnection {
         this.proxyPassword = proxyPassword;
     }
 
-    int DELAY_IN_MS = 1000;
-    private static final int RETRIES = 3;
+    private volatile RetryBackoff retryBackoff = RetryBackoff.DEFAULT;
+
+    /**
+     * Sets how often and after what delays a failed read is retried.  The
+     * caller waits for the result, so the retries happen on its thread.
+     */
+    public void setRetryBackoff(RetryBackoff retryBackoff) {
+        this.retryBackoff = retryBackoff;
+    }
 
     public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        final RetryBackoff backoff = retryBackoff;
         int attempts = 0;
         while (true) {
             try {
@@ -85,11 +94,11 @@ public class ApnsFeedbackConnection {
                 return result;
             } catch (final Exception e) {
                 logger.warn("Failed to retrieve invalid devices", e);
-                if (attempts >= RETRIES) {
+                if (attempts >= backoff.getMaxAttempts()) {
                     logger.error("Couldn't get feedback connection", e);
                     Utilities.wrapAndThrowAsRuntimeException(e);
                 }
-                Utilities.sleep(DELAY_IN_MS);
+                Utilities.sleep((int) TimeUnit.NANOSECONDS.toMillis(backoff.delayNanos(attempts - 1)));
             }
         }
     }
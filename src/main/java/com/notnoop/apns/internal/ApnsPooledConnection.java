@@ -1,20 +1,90 @@
 package com.notnoop.apns.internal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsMetrics;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ElasticPoolApnsDelegate;
+import com.notnoop.apns.NotificationPriority;
+import com.notnoop.apns.PriorityClassifier;
+import com.notnoop.apns.PoolRoutingPolicy;
 import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.NotificationDroppedException;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Spreads notifications over up to {@code max} copies of a connection.
+ *
+ * Each copy has its own queue of pending notifications, which a single
+ * task on the executor writes in order.  A notification goes to the copy
+ * that is expected to get to it first, judging by its pending count and
+ * recent write latency.  Copies that have been stuck in a single write for
+ * longer than the stall threshold, e.g. because they are reconnecting or
+ * waiting to retry, get no new notifications while others are available.
+ *
+ * With {@link PoolRoutingPolicy#TOKEN_AFFINITY}, the device token picks
+ * the copy instead, using a consistent hash so that resizing the pool only
+ * moves the devices it has to.
+ *
+ * An elastic pool, see {@link #setElasticity}, starts with a minimum number
+ * of copies.  It connects additional copies in the background while the
+ * least loaded one has a long backlog or slow writes, and closes copies that
+ * stayed idle for a cool-down period.  Unless the token picks the copy, a
+ * copy of an elastic pool that runs out of work takes over the oldest
+ * pending notifications of the most backlogged one, so that a copy added
+ * during a burst relieves the backlog that was queued before it connected.
+ *
+ * Some copies can be reserved for {@link NotificationPriority#HIGH}
+ * notifications, see {@link #setReservedConnections}, so that bulk traffic
+ * never delays them.
+ */
 public class ApnsPooledConnection implements ApnsConnection {
     private static final Logger logger = LoggerFactory.getLogger(ApnsPooledConnection.class);
 
+    public static final long DEFAULT_STALL_THRESHOLD_MILLIS = 500;
+    public static final int DEFAULT_SCALE_UP_BACKLOG = 100;
+    public static final long DEFAULT_SCALE_UP_LATENCY_MILLIS = 20;
+    public static final long DEFAULT_IDLE_COOL_DOWN_MILLIS = 60000;
+
+    /** how many writes a lane makes before giving its executor thread to others */
+    private static final int LANE_TURN = 64;
+
     private final ApnsConnection prototype;
     private final int max;
 
     private final ExecutorService executors;
-    private final ConcurrentLinkedQueue<ApnsConnection> prototypes;
+    private final List<Lane> lanes = new CopyOnWriteArrayList<Lane>();
+    private static final long IDLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private final Object idleMonitor = new Object();
+    private final AtomicInteger idleWaiters = new AtomicInteger();
+    private volatile long stallThresholdNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STALL_THRESHOLD_MILLIS);
+    private volatile PoolRoutingPolicy routingPolicy = PoolRoutingPolicy.LEAST_LOADED;
+    private volatile ApnsDelegate delegate = ApnsDelegate.EMPTY;
+    private volatile ApnsMetrics metrics = new ApnsMetrics();
+
+    private volatile boolean elastic = false;
+    private int minConnections;
+    private int scaleUpBacklog;
+    private long scaleUpLatencyNanos;
+    private long idleCoolDownNanos;
+    private ScheduledExecutorService scaler;
+    private final AtomicBoolean growing = new AtomicBoolean(false);
+    /** lanes taken out of the pool that may still be finishing writes */
+    private final List<Lane> retired = new CopyOnWriteArrayList<Lane>();
+
+    private volatile int reservedConnections = 0;
+    private volatile PriorityClassifier classifier = PriorityClassifier.DEFAULT;
+    private final List<Lane> reservedLanes = new CopyOnWriteArrayList<Lane>();
 
     public ApnsPooledConnection(ApnsConnection prototype, int max) {
         this(prototype, max, Executors.newFixedThreadPool(max));
@@ -25,76 +95,834 @@ public class ApnsPooledConnection implements ApnsConnection {
         this.max = max;
 
         this.executors = executors;
-        this.prototypes = new ConcurrentLinkedQueue<ApnsConnection>();
     }
 
-    private final ThreadLocal<ApnsConnection> uniquePrototype =
-        new ThreadLocal<ApnsConnection>() {
-        protected ApnsConnection initialValue() {
-            ApnsConnection newCopy = prototype.copy();
-            prototypes.add(newCopy);
-            return newCopy;
+    /**
+     * Sets how long a single write may take before its connection is
+     * considered stalled and is skipped when routing new notifications.
+     */
+    public void setStallThreshold(long stallThreshold, TimeUnit unit) {
+        this.stallThresholdNanos = unit.toNanos(stallThreshold);
+    }
+
+    public void setRoutingPolicy(PoolRoutingPolicy routingPolicy) {
+        this.routingPolicy = routingPolicy == null ? PoolRoutingPolicy.LEAST_LOADED : routingPolicy;
+    }
+
+    /**
+     * Sets aside {@code count} of the pool's connections for notifications
+     * that {@code classifier} ranks {@link NotificationPriority#HIGH}.  Other
+     * notifications share the remaining connections, while high priority
+     * ones only use the reserved ones.
+     *
+     * Should be called before the pool is used.
+     */
+    public void setReservedConnections(int count, PriorityClassifier classifier) {
+        if (count < 0 || count >= max) {
+            throw new IllegalArgumentException("reserved connections must be between 0 and " + (max - 1));
         }
-    };
+        this.reservedConnections = count;
+        this.classifier = classifier == null ? PriorityClassifier.DEFAULT : classifier;
+    }
 
-    public void sendMessage(final ApnsNotification m) throws NetworkIOException {
-        logger.debug("CC enter ApnsPooledConnection sendMessage {}", m);
-        Future<Void> future = executors.submit(new Callable<Void>() {
-            public Void call() throws Exception {
-                logger.debug("CC enter ApnsPooledConnection sendMessage {}, executors.submit.....", m);
-                uniquePrototype.get().sendMessage(m);
-                return null;
+    /**
+     * The number of connections shared by all notifications.
+     */
+    private int capacity() {
+        return max - reservedConnections;
+    }
+
+    /**
+     * Sets the delegate notified when an elastic pool grows or shrinks,
+     * if it is an {@link ElasticPoolApnsDelegate}.
+     */
+    public void setDelegate(ApnsDelegate delegate) {
+        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+    }
+
+    public void setMetrics(ApnsMetrics metrics) {
+        this.metrics = metrics == null ? new ApnsMetrics() : metrics;
+    }
+
+    /**
+     * Makes the pool keep between {@code minConnections} and the maximum
+     * number of connections.  The minimum is connected in the background
+     * right away.  Another connection is opened in the background whenever
+     * the least loaded connection has {@code scaleUpBacklog} notifications
+     * waiting or takes longer than {@code scaleUpLatency} per notification,
+     * and a connection is closed once it has been idle for {@code idleCoolDown}.
+     *
+     * Should be called once, before the pool is used.
+     */
+    public synchronized void setElasticity(int minConnections, int scaleUpBacklog, long scaleUpLatency,
+                                           long idleCoolDown, TimeUnit unit) {
+        if (minConnections < 1 || minConnections > capacity()) {
+            throw new IllegalArgumentException("minConnections must be between 1 and " + capacity());
+        }
+        if (elastic) {
+            throw new IllegalStateException("pool is already elastic");
+        }
+        this.minConnections = minConnections;
+        this.scaleUpBacklog = scaleUpBacklog;
+        this.scaleUpLatencyNanos = unit.toNanos(scaleUpLatency);
+        this.idleCoolDownNanos = unit.toNanos(idleCoolDown);
+        this.scaler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = Executors.defaultThreadFactory().newThread(r);
+                thread.setName("ApnsPooledConnection-scaler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.elastic = true;
+
+        scaler.execute(new Runnable() {
+            public void run() {
+                while (lanes.size() < ApnsPooledConnection.this.minConnections && grow()) {
+                    // keep connecting
+                }
             }
         });
-//        try {
-//            System.out.println("CCCCCC-1");
-//            logger.debug("CC ApnsPooledConnection submit task and wait...sendMessage {}", m);
-//            future.get();
-//            System.out.println("CCCCCC-2");
-//            logger.debug("CC ApnsPooledConnection task is completed...sendMessage {}", m);
-//        } catch (InterruptedException ie) {
-//            System.out.println("CCCCCC-3");
-//            Thread.currentThread().interrupt();
-//        } catch (ExecutionException ee) {
-//            System.out.println("CCCCCC-4");
-//            if (ee.getCause() instanceof NetworkIOException) {
-//                System.out.println("CCCCCC-5");
-//                throw (NetworkIOException) ee.getCause();
-//            }
-//        }
+        long tick = Math.min(Math.max(idleCoolDownNanos / 4, TimeUnit.MILLISECONDS.toNanos(10)), TimeUnit.SECONDS.toNanos(1));
+        scaler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                if (isBacklogged()) {
+                    // the sends that would have asked for it may all have come in already
+                    grow();
+                } else {
+                    shrinkIfIdle();
+                }
+            }
+        }, tick, tick, TimeUnit.NANOSECONDS);
+    }
+
+    public void sendMessage(final ApnsNotification m) throws NetworkIOException {
+        List<ApnsNotification> work = Collections.singletonList(DeadlineNotification.capture(m));
+        if (isReserved(m)) {
+            enqueue(reservedLane(m), work);
+        } else if (routingPolicy == PoolRoutingPolicy.TOKEN_AFFINITY) {
+            enqueue(shardOf(m), work);
+        } else {
+            enqueue(pickLane(), work);
+        }
+    }
+
+    public void sendMessages(final Collection<? extends ApnsNotification> messages) throws NetworkIOException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        final List<ApnsNotification> captured = capture(messages);
+        if (reservedConnections > 0) {
+            List<ApnsNotification> shared = new ArrayList<ApnsNotification>(captured.size());
+            for (ApnsNotification m : captured) {
+                if (isReserved(m)) {
+                    enqueue(reservedLane(m), Collections.singletonList(m));
+                } else {
+                    shared.add(m);
+                }
+            }
+            if (!shared.isEmpty()) {
+                route(shared);
+            }
+        } else {
+            route(captured);
+        }
+    }
+
+    /**
+     * Copies the notifications, as they are written later, by when the
+     * caller may have reused the collection, and wraps each with the
+     * deadline of the current thread, if it has one.
+     */
+    private static List<ApnsNotification> capture(Collection<? extends ApnsNotification> messages) {
+        List<ApnsNotification> captured = new ArrayList<ApnsNotification>(messages.size());
+        for (ApnsNotification m : messages) {
+            captured.add(DeadlineNotification.capture(m));
+        }
+        return captured;
+    }
+
+    private void route(List<ApnsNotification> messages) {
+        if (routingPolicy != PoolRoutingPolicy.TOKEN_AFFINITY) {
+            enqueue(pickLane(), messages);
+            return;
+        }
+        // split the batch by shard, keeping the order within each shard
+        Lane[] shards = shards();
+        @SuppressWarnings("unchecked")
+        List<ApnsNotification>[] split = new List[shards.length];
+        for (ApnsNotification m : messages) {
+            int shard = shardIndex(m, shards.length);
+            if (split[shard] == null) {
+                split[shard] = new ArrayList<ApnsNotification>();
+            }
+            split[shard].add(m);
+        }
+        for (int i = 0; i < split.length; i++) {
+            if (split[i] != null) {
+                enqueue(shards[i], split[i]);
+            }
+        }
+    }
+
+    private void enqueue(Lane lane, Collection<? extends ApnsNotification> work) {
+        lane.outstanding.addAndGet(work.size());
+        lane.pending.add(work);
+        schedule(lane);
+    }
+
+    private void schedule(Lane lane) {
+        if (lane.scheduled.compareAndSet(false, true)) {
+            try {
+                executors.execute(lane);
+            } catch (RejectedExecutionException e) {
+                lane.scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns the lane expected to write a new notification the soonest,
+     * creating a new one while all existing lanes are busy and the pool
+     * isn't full yet.
+     */
+    private Lane pickLane() {
+        final long now = System.nanoTime();
+        Lane best = null;
+        long bestCost = Long.MAX_VALUE;
+        Lane leastStalled = null;
+        for (Lane lane : lanes) {
+            if (lane.isStalled(now)) {
+                if (leastStalled == null || lane.outstanding.get() < leastStalled.outstanding.get()) {
+                    leastStalled = lane;
+                }
+                continue;
+            }
+            long cost = lane.expectedWaitNanos();
+            if (cost < bestCost) {
+                best = lane;
+                bestCost = cost;
+            }
+        }
+        if (best != null && best.outstanding.get() == 0) {
+            return best;
+        }
+        if (elastic && !lanes.isEmpty()) {
+            if (best == null || best.outstanding.get() >= scaleUpBacklog || best.latencyEwmaNanos > scaleUpLatencyNanos) {
+                requestGrowth();
+            }
+            return best != null ? best : leastStalled;
+        }
+        synchronized (lanes) {
+            if (lanes.size() < capacity()) {
+                Lane lane = new Lane(prototype.copy());
+                addLane(lane);
+                return lane;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        // every connection is stalled, pile onto the one with the least work
+        return leastStalled != null ? leastStalled : lanes.get(0);
+    }
+
+    private boolean isReserved(ApnsNotification m) {
+        return reservedConnections > 0 && classifier.priorityOf(DeadlineNotification.unwrap(m)) == NotificationPriority.HIGH;
+    }
+
+    /**
+     * Returns the reserved lane for a high priority notification, hashing
+     * its token with {@link PoolRoutingPolicy#TOKEN_AFFINITY} and picking
+     * the least loaded lane otherwise.
+     */
+    private Lane reservedLane(ApnsNotification m) {
+        fillReservedLanes();
+        if (routingPolicy == PoolRoutingPolicy.TOKEN_AFFINITY) {
+            return reservedLanes.get(shardIndex(m, reservedLanes.size()));
+        }
+        final long now = System.nanoTime();
+        Lane best = reservedLanes.get(0);
+        long bestCost = Long.MAX_VALUE;
+        for (Lane lane : reservedLanes) {
+            long cost = lane.isStalled(now) ? Long.MAX_VALUE - 1 : lane.expectedWaitNanos();
+            if (cost < bestCost) {
+                best = lane;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    private void fillReservedLanes() {
+        if (reservedLanes.size() < reservedConnections) {
+            synchronized (reservedLanes) {
+                while (reservedLanes.size() < reservedConnections) {
+                    reservedLanes.add(new Lane(prototype.copy()));
+                    metrics.poolConnectionOpened();
+                }
+            }
+        }
+    }
+
+    private Lane shardOf(ApnsNotification m) {
+        Lane[] shards = shards();
+        return shards[shardIndex(m, shards.length)];
+    }
+
+    private static int shardIndex(ApnsNotification m, int shards) {
+        return jumpConsistentHash(tokenHash(m.getDeviceToken()), shards);
     }
 
+    /**
+     * Returns the current lanes, first filling the pool up to its maximum.
+     */
+    private Lane[] shards() {
+        final int size = elastic ? 1 : capacity();
+        if (lanes.size() < size) {
+            synchronized (lanes) {
+                while (lanes.size() < size) {
+                    addLane(new Lane(prototype.copy()));
+                }
+            }
+        }
+        return lanes.toArray(new Lane[0]);
+    }
+
+    private void addLane(Lane lane) {
+        synchronized (lanes) {
+            lanes.add(lane);
+            metrics.poolConnectionOpened();
+            if (delegate instanceof ElasticPoolApnsDelegate) {
+                ((ElasticPoolApnsDelegate) delegate).poolGrew(lanes.size());
+            }
+        }
+    }
+
+    private void requestGrowth() {
+        if (lanes.size() < capacity() && growing.compareAndSet(false, true)) {
+            try {
+                scaler.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            grow();
+                        } finally {
+                            growing.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                growing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Connects a new copy off the send path and adds it to the pool.
+     *
+     * @return whether the pool grew
+     */
+    private boolean grow() {
+        if (lanes.size() >= capacity()) {
+            return false;
+        }
+        Lane lane = new Lane(prototype.copy());
+        try {
+            lane.connection.connect();
+        } catch (Exception e) {
+            logger.warn("Couldn't connect an additional pooled connection", e);
+            Utilities.close(lane.connection);
+            return false;
+        }
+        synchronized (lanes) {
+            if (lanes.size() >= capacity()) {
+                Utilities.close(lane.connection);
+                return false;
+            }
+            addLane(lane);
+        }
+        // take over some of the backlog that made the pool grow
+        try {
+            schedule(lane);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Pool closed while growing", e);
+        }
+        return true;
+    }
+
+    /**
+     * Moves the oldest pending notifications of the most backlogged other
+     * lane to {@code thief}, which ran out of work of its own.  Only lanes of
+     * an elastic pool steal, and not with token affinity, where the lane of a
+     * notification is fixed.
+     *
+     * @return the notifications moved, or {@code null} if there are none
+     */
+    private Collection<? extends ApnsNotification> steal(Lane thief) {
+        if (!elastic || routingPolicy == PoolRoutingPolicy.TOKEN_AFFINITY || !lanes.contains(thief)) {
+            return null;
+        }
+        Lane victim = null;
+        for (Lane lane : lanes) {
+            if (lane != thief && !lane.pending.isEmpty()
+                    && (victim == null || lane.outstanding.get() > victim.outstanding.get())) {
+                victim = lane;
+            }
+        }
+        final Collection<? extends ApnsNotification> work = victim == null ? null : victim.pending.poll();
+        if (work != null) {
+            // count it on the thief first, so the pool never looks idle in between
+            thief.outstanding.addAndGet(work.size());
+            victim.outstanding.addAndGet(-work.size());
+        }
+        return work;
+    }
+
+    /**
+     * Returns whether even the least loaded connection is past the scale-up
+     * thresholds.
+     */
+    private boolean isBacklogged() {
+        if (lanes.isEmpty()) {
+            return false;
+        }
+        for (Lane lane : lanes) {
+            if (lane.outstanding.get() < scaleUpBacklog && lane.latencyEwmaNanos <= scaleUpLatencyNanos) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes a connection that has been idle for the cool-down period, as
+     * long as the pool stays at its minimum.  With token affinity only the
+     * newest connection goes, so that only its devices move.
+     */
+    private void shrinkIfIdle() {
+        final long now = System.nanoTime();
+        for (Lane lane : retired) {
+            if (lane.isIdle()) {
+                retired.remove(lane);
+                Utilities.close(lane.connection);
+            }
+        }
+        synchronized (lanes) {
+            if (lanes.size() <= minConnections) {
+                return;
+            }
+            int first = routingPolicy == PoolRoutingPolicy.TOKEN_AFFINITY ? lanes.size() - 1 : 0;
+            for (int i = lanes.size() - 1; i >= first; i--) {
+                Lane lane = lanes.get(i);
+                if (lane.isIdle() && now - lane.lastActiveNanos > idleCoolDownNanos) {
+                    lanes.remove(i);
+                    // a send may have picked the lane just now, close it on a later tick
+                    retired.add(lane);
+                    metrics.poolConnectionClosed();
+                    if (delegate instanceof ElasticPoolApnsDelegate) {
+                        ((ElasticPoolApnsDelegate) delegate).poolShrank(lanes.size());
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a device token.
+     */
+    static long tokenHash(byte[] token) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : token) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Lamping and Veach's jump consistent hash: maps {@code key} to one of
+     * {@code buckets} buckets, such that going from n to n + 1 buckets only
+     * moves 1 / (n + 1) of the keys, all of them to the new bucket.
+     */
+    static int jumpConsistentHash(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    /**
+     * Returns a snapshot of the load on each shared connection of the pool.
+     */
+    public List<ConnectionLoad> getConnectionLoads() {
+        return loadsOf(lanes);
+    }
+
+    /**
+     * Returns a snapshot of the load on each connection reserved for high
+     * priority notifications.
+     */
+    public List<ConnectionLoad> getReservedConnectionLoads() {
+        return loadsOf(reservedLanes);
+    }
+
+    private static List<ConnectionLoad> loadsOf(List<Lane> lanes) {
+        final long now = System.nanoTime();
+        List<ConnectionLoad> loads = new ArrayList<ConnectionLoad>(lanes.size());
+        for (Lane lane : lanes) {
+            loads.add(new ConnectionLoad(lane.outstanding.get(),
+                    TimeUnit.NANOSECONDS.toMicros(lane.latencyEwmaNanos), lane.isStalled(now)));
+        }
+        return loads;
+    }
+
+    /**
+     * Returns a new pool of copies of the same prototype, with the same
+     * settings but an executor of its own.
+     */
     public ApnsConnection copy() {
-        // TODO: Should copy executor properly.... What should copy do
-        // really?!
-        return new ApnsPooledConnection(prototype, max);
+        ApnsPooledConnection copy = new ApnsPooledConnection(prototype.copy(), max);
+        copy.setRoutingPolicy(routingPolicy);
+        copy.setStallThreshold(stallThresholdNanos, TimeUnit.NANOSECONDS);
+        copy.setDelegate(delegate);
+        copy.setMetrics(metrics);
+        copy.setReservedConnections(reservedConnections, classifier);
+        if (elastic) {
+            copy.setElasticity(minConnections, scaleUpBacklog, scaleUpLatencyNanos, idleCoolDownNanos, TimeUnit.NANOSECONDS);
+        }
+        return copy;
+    }
+
+    /**
+     * Fills the pool, up to a single connection for an elastic pool, and
+     * connects all of its connections in parallel on the pool's executor.
+     * Returns once all of them are connected, or fails with the first
+     * failure after all attempts finished.
+     */
+    public void connect() throws NetworkIOException {
+        fillReservedLanes();
+        List<Lane> all = new ArrayList<Lane>(Arrays.asList(shards()));
+        all.addAll(reservedLanes);
+        List<Future<?>> connects = new ArrayList<Future<?>>(all.size());
+        for (final Lane lane : all) {
+            connects.add(executors.submit(new Runnable() {
+                public void run() {
+                    lane.connection.connect();
+                }
+            }));
+        }
+        RuntimeException failure = null;
+        for (Future<?> connect : connects) {
+            try {
+                connect.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : new NetworkIOException(e.getCause().toString());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NetworkIOException("interrupted while connecting");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
     }
 
     public void close() {
+        if (scaler != null) {
+            scaler.shutdownNow();
+        }
         executors.shutdown();
         try {
             executors.awaitTermination(10, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             logger.warn("pool termination interrupted", e);
         }
-        for (ApnsConnection conn : prototypes) {
-            Utilities.close(conn);
+        for (Lane lane : lanes) {
+            Utilities.close(lane.connection);
+        }
+        for (Lane lane : retired) {
+            Utilities.close(lane.connection);
+        }
+        for (Lane lane : reservedLanes) {
+            Utilities.close(lane.connection);
         }
         Utilities.close(prototype);
     }
 
+    /**
+     * Waits until every connection has written the notifications routed to
+     * it, then flushes them.
+     */
+    public void flush() throws NetworkIOException {
+        try {
+            awaitIdle(System.nanoTime() + Long.MAX_VALUE / 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (Lane lane : allLanes()) {
+            lane.connection.flush();
+        }
+    }
+
+    public boolean awaitConfirmation(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!awaitIdle(deadline)) {
+            return false;
+        }
+        for (Lane lane : allLanes()) {
+            if (!lane.connection.awaitConfirmation(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until no connection has notifications left to write, or until
+     * {@code deadline}, as given by {@link System#nanoTime()}.
+     */
+    private boolean awaitIdle(long deadline) throws InterruptedException {
+        idleWaiters.incrementAndGet();
+        try {
+            synchronized (idleMonitor) {
+                while (true) {
+                    boolean idle = true;
+                    for (Lane lane : allLanes()) {
+                        if (lane.outstanding.get() > 0) {
+                            idle = false;
+                            break;
+                        }
+                    }
+                    if (idle) {
+                        return true;
+                    }
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    // lanes retired meanwhile don't notify, so look again every so often
+                    TimeUnit.NANOSECONDS.timedWait(idleMonitor, Math.min(remaining, IDLE_POLL_NANOS));
+                }
+            }
+        } finally {
+            idleWaiters.decrementAndGet();
+        }
+    }
+
+    private List<Lane> allLanes() {
+        List<Lane> all = new ArrayList<Lane>(lanes.size() + retired.size() + reservedLanes.size());
+        all.addAll(lanes);
+        all.addAll(retired);
+        all.addAll(reservedLanes);
+        return all;
+    }
+
     public void testConnection() {
         prototype.testConnection();
     }
 
-    public synchronized void setCacheLength(int cacheLength) {  
-        for (ApnsConnection conn : prototypes) {
-            conn.setCacheLength(cacheLength);
+    public synchronized void setCacheLength(int cacheLength) {
+        // connections added later are copies of the prototype
+        prototype.setCacheLength(cacheLength);
+        for (Lane lane : lanes) {
+            lane.connection.setCacheLength(cacheLength);
+        }
+        for (Lane lane : reservedLanes) {
+            lane.connection.setCacheLength(cacheLength);
         }
     }
 
-    @SuppressFBWarnings(value = "UG_SYNC_SET_UNSYNC_GET", justification = "prototypes is a MT-safe container")
+    @SuppressFBWarnings(value = "UG_SYNC_SET_UNSYNC_GET", justification = "lanes is a MT-safe container")
     public int getCacheLength() {
-        return prototypes.peek().getCacheLength();
+        for (Lane lane : lanes) {
+            return lane.connection.getCacheLength();
+        }
+        // no connection yet, or all of them retired
+        return prototype.getCacheLength();
+    }
+
+    /**
+     * A connection of the pool together with the notifications waiting for it.
+     * At most one executor thread runs a lane at a time.
+     */
+    private final class Lane implements Runnable {
+        final ApnsConnection connection;
+        final Queue<Collection<? extends ApnsNotification>> pending =
+                new ConcurrentLinkedQueue<Collection<? extends ApnsNotification>>();
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        /** when the current write started, or 0 while not writing */
+        volatile long writeStartedNanos;
+        volatile long latencyEwmaNanos;
+        volatile long lastActiveNanos = System.nanoTime();
+
+        Lane(ApnsConnection connection) {
+            this.connection = connection;
+        }
+
+        boolean isIdle() {
+            return outstanding.get() == 0 && !scheduled.get();
+        }
+
+        boolean isStalled(long now) {
+            long started = writeStartedNanos;
+            return started != 0 && now - started > stallThresholdNanos;
+        }
+
+        long expectedWaitNanos() {
+            // the +1 microsecond keeps lanes without a latency sample ordered by their backlog
+            return (outstanding.get() + 1L) * (latencyEwmaNanos + 1000);
+        }
+
+        public void run() {
+            while (true) {
+                int turn = 0;
+                Collection<? extends ApnsNotification> work;
+                while (turn++ < LANE_TURN && ((work = pending.poll()) != null || (work = steal(this)) != null)) {
+                    write(work);
+                }
+                if (turn > LANE_TURN) {
+                    // let other lanes sharing the executor have a go
+                    try {
+                        executors.execute(this);
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        continue;
+                    }
+                }
+                scheduled.set(false);
+                if (pending.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        private void write(ApnsNotification m) {
+            if (!(m instanceof DeadlineNotification)) {
+                connection.sendMessage(m);
+                return;
+            }
+            final DeadlineNotification bounded = (DeadlineNotification) m;
+            if (bounded.isPast()) {
+                delegate.messageSendFailed(bounded.getNotification(),
+                        new NotificationDroppedException(NotificationDroppedException.Reason.DEADLINE_EXCEEDED));
+                return;
+            }
+            final Long previous = DeadlineNotification.enter(bounded.getDeadlineNanos());
+            try {
+                connection.sendMessage(bounded.getNotification());
+            } finally {
+                DeadlineNotification.exit(previous);
+            }
+        }
+
+        /**
+         * Writes a batch at once, bounded by the earliest deadline in it,
+         * after failing the notifications whose deadline has passed.
+         */
+        private void writeAll(Collection<? extends ApnsNotification> work) {
+            final List<ApnsNotification> live = new ArrayList<ApnsNotification>(work.size());
+            Long deadline = null;
+            for (ApnsNotification m : work) {
+                if (!(m instanceof DeadlineNotification)) {
+                    live.add(m);
+                    continue;
+                }
+                final DeadlineNotification bounded = (DeadlineNotification) m;
+                if (bounded.isPast()) {
+                    delegate.messageSendFailed(bounded.getNotification(),
+                            new NotificationDroppedException(NotificationDroppedException.Reason.DEADLINE_EXCEEDED));
+                    continue;
+                }
+                if (deadline == null || bounded.getDeadlineNanos() - deadline < 0) {
+                    deadline = bounded.getDeadlineNanos();
+                }
+                live.add(bounded.getNotification());
+            }
+            if (live.isEmpty()) {
+                return;
+            }
+            if (deadline == null) {
+                connection.sendMessages(live);
+                return;
+            }
+            final Long previous = DeadlineNotification.enter(deadline);
+            try {
+                connection.sendMessages(live);
+            } finally {
+                DeadlineNotification.exit(previous);
+            }
+        }
+
+        private void write(Collection<? extends ApnsNotification> work) {
+            final long started = System.nanoTime();
+            writeStartedNanos = started;
+            try {
+                if (work.size() == 1) {
+                    write(work.iterator().next());
+                } else {
+                    writeAll(work);
+                }
+            } catch (Exception e) {
+                // the connection has already reported the failure to the delegate
+                logger.debug("Pooled connection failed to send", e);
+            } finally {
+                final long latency = (System.nanoTime() - started) / work.size();
+                writeStartedNanos = 0;
+                lastActiveNanos = System.nanoTime();
+                latencyEwmaNanos += (latency - latencyEwmaNanos) / 8;
+                if (outstanding.addAndGet(-work.size()) == 0 && idleWaiters.get() > 0) {
+                    synchronized (idleMonitor) {
+                        idleMonitor.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The load on one connection of a pool.
+     */
+    public static final class ConnectionLoad {
+        private final int outstanding;
+        private final long latencyMicros;
+        private final boolean stalled;
+
+        ConnectionLoad(int outstanding, long latencyMicros, boolean stalled) {
+            this.outstanding = outstanding;
+            this.latencyMicros = latencyMicros;
+            this.stalled = stalled;
+        }
+
+        /** notifications routed to the connection that it hasn't written yet */
+        public int getOutstanding() {
+            return outstanding;
+        }
+
+        /** moving average of the time the connection took to write a notification */
+        public long getLatencyMicros() {
+            return latencyMicros;
+        }
+
+        /** whether the connection is stuck in a write, e.g. while reconnecting */
+        public boolean isStalled() {
+            return stalled;
+        }
+
+        @Override
+        public String toString() {
+            return "ConnectionLoad[outstanding=" + outstanding + ", latencyMicros=" + latencyMicros
+                    + ", stalled=" + stalled + "]";
+        }
     }
 }
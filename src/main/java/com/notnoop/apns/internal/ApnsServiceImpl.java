@@ -30,6 +30,11 @@
  */
 package com.notnoop.apns.internal;
 
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.exceptions.NetworkIOException;
 import org.slf4j.Logger;
@@ -37,6 +42,11 @@ import org.slf4j.LoggerFactory;
 
 public class ApnsServiceImpl extends AbstractApnsService {
     private ApnsConnection connection;
+    private volatile TokenBucket rateLimiter;
+    private volatile boolean warmUp;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private volatile NetworkIOException warmUpFailure;
 
     private static final Logger logger = LoggerFactory.getLogger(ApnsServiceImpl.class);
 
@@ -45,12 +55,98 @@ public class ApnsServiceImpl extends AbstractApnsService {
         this.connection = connection;
     }
 
+    /**
+     * Limits the rate at which the service sends notifications, over all
+     * connections together.  {@link #push(ApnsNotification)} waits for the
+     * limiter, while {@link #tryPush(ApnsNotification)} gives up instead.
+     */
+    public void setRateLimiter(TokenBucket rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Makes {@link #start()} open the connection, or all connections of a
+     * pool at once, in the background, rather than on the first push.
+     */
+    public void setWarmUp(boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
     @Override
     public void push(ApnsNotification msg) throws NetworkIOException {
+        final TokenBucket limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.acquire(1);
+        }
         connection.sendMessage(msg);
     }
 
+    @Override
+    public boolean tryPush(ApnsNotification msg) throws NetworkIOException {
+        final TokenBucket limiter = rateLimiter;
+        if (limiter != null && !limiter.tryAcquire(1)) {
+            return false;
+        }
+        connection.sendMessage(msg);
+        return true;
+    }
+
+    @Override
+    public void pushAll(Collection<? extends ApnsNotification> messages) throws NetworkIOException {
+        final TokenBucket limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.acquire(messages.size());
+        }
+        connection.sendMessages(messages);
+    }
+
+    public void flush() throws NetworkIOException {
+        connection.flush();
+    }
+
+    public boolean awaitConfirmation(long timeout, TimeUnit unit) throws InterruptedException {
+        return connection.awaitConfirmation(timeout, unit);
+    }
+
+    @Override
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException, NetworkIOException {
+        if (!ready.await(timeout, unit)) {
+            return false;
+        }
+        final NetworkIOException failure = warmUpFailure;
+        if (failure != null) {
+            throw failure;
+        }
+        return true;
+    }
+
     public void start() {
+        if (started.getAndSet(true)) {
+            return;
+        }
+        if (!warmUp) {
+            ready.countDown();
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                final long start = System.nanoTime();
+                try {
+                    connection.connect();
+                    logger.debug("Warmed up in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                } catch (NetworkIOException e) {
+                    logger.warn("Couldn't warm up the connections, they will be opened on demand", e);
+                    warmUpFailure = e;
+                } catch (RuntimeException e) {
+                    logger.warn("Couldn't warm up the connections, they will be opened on demand", e);
+                    warmUpFailure = new NetworkIOException(e.toString());
+                } finally {
+                    ready.countDown();
+                }
+            }
+        }, "ApnsService-warmup");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     public void stop() {
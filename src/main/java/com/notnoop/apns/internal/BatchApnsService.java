@@ -1,16 +1,26 @@
 package com.notnoop.apns.internal;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsMetrics;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.CollapseKeyResolver;
 import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.NotificationDroppedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,79 +29,206 @@ public class BatchApnsService extends AbstractApnsService {
     private static final Logger logger = LoggerFactory.getLogger(BatchApnsService.class);
 
 	/**
-	 * How many seconds to wait for more messages before batch is send.
+	 * How long to wait for more messages before batch is send.
 	 * Each message reset the wait time
 	 * 
-	 * @see #maxBatchWaitTimeInSec
+	 * @see #maxBatchWaitTimeNanos
 	 */
-	private int batchWaitTimeInSec = 5;
+	private final long batchWaitTimeNanos;
 	
 	/**
-	 * How many seconds can be batch delayed before execution.
+	 * How long can be batch delayed before execution.
 	 * This time is not exact amount after which the batch will run its roughly the time
 	 */
-	private int maxBatchWaitTimeInSec = 10;
+	private final long maxBatchWaitTimeNanos;
+
+	/**
+	 * Number of messages that sends the batch right away, or 0 for no limit
+	 */
+	private final int maxBatchSize;
+
+	/**
+	 * Whether batches are sent over one connection kept open between them,
+	 * rather than over a new connection per batch
+	 */
+	private final boolean persistentConnection;
 	
-	private long firstMessageArrivedTime; 
+	private volatile long firstMessageArrivedTime;
+	private volatile long deadline;
 	
 	private ApnsConnection prototype;
+	private volatile ApnsConnection connection;
 
 	private Queue<ApnsNotification> batch = new ConcurrentLinkedQueue<ApnsNotification>();
+	private final AtomicInteger batchSize = new AtomicInteger();
+	private boolean coalescing = false;
 
 	private ScheduledExecutorService scheduleService;
-	private ScheduledFuture<?> taskFuture;
+	private final AtomicBoolean checkScheduled = new AtomicBoolean(false);
+	private final AtomicBoolean flushRequested = new AtomicBoolean(false);
 	
+	private ApnsDelegate delegate = ApnsDelegate.EMPTY;
+	private ApnsMetrics metrics;
+
 	private Runnable batchRunner = new SendMessagesBatch();
+	private Runnable deadlineCheck = new DeadlineCheck();
 
 	public BatchApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback, int batchWaitTimeInSec, int maxBachWaitTimeInSec, ThreadFactory tf) {
+		this(prototype, feedback, batchWaitTimeInSec, maxBachWaitTimeInSec, TimeUnit.SECONDS, 0, false, tf);
+	}
+
+	/**
+	 * @param maxBatchSize         number of messages that sends the batch right away, or 0 for no limit
+	 * @param persistentConnection whether to keep one connection open across batches and write
+	 *                             each batch at once, instead of connecting for every batch
+	 */
+	public BatchApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback, long batchWaitTime, long maxBatchWaitTime,
+			TimeUnit unit, int maxBatchSize, boolean persistentConnection, ThreadFactory tf) {
 		super(feedback);
 		this.prototype = prototype;
-		this.batchWaitTimeInSec = batchWaitTimeInSec;
-		this.maxBatchWaitTimeInSec = maxBachWaitTimeInSec;
+		this.batchWaitTimeNanos = unit.toNanos(batchWaitTime);
+		this.maxBatchWaitTimeNanos = unit.toNanos(maxBatchWaitTime);
+		this.maxBatchSize = maxBatchSize;
+		this.persistentConnection = persistentConnection;
 		this.scheduleService = new ScheduledThreadPoolExecutor(1, tf == null ? Executors.defaultThreadFactory() : tf);
 	}
 
+	/**
+	 * Sets the delegate notified of the messages dropped because they
+	 * expired while waiting for their batch.
+	 */
+	public void setDelegate(ApnsDelegate delegate) {
+		this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+	}
+
+	/**
+	 * Counts the messages dropped because they expired while waiting for
+	 * their batch.
+	 */
+	public void setMetrics(ApnsMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Lets a new message replace a message of the pending batch to the same
+	 * device with the same collapse key.  The replaced messages are
+	 * reported to the delegate.
+	 *
+	 * Must be called before the first push, after {@link #setDelegate}
+	 * and {@link #setMetrics}.
+	 */
+	public void setCollapseKeyResolver(CollapseKeyResolver resolver) {
+		this.batch = new CoalescingQueue(Integer.MAX_VALUE, resolver, delegate, metrics);
+		this.coalescing = true;
+	}
+
 	public void start() {
 		// no code
 	}
 
 	public void stop() {
 		Utilities.close(prototype);
-		if (taskFuture != null) {
-			taskFuture.cancel(true);
-		}
 		scheduleService.shutdownNow();
+		if (connection != null) {
+			Utilities.close(connection);
+		}
 	}
 
 	public void testConnection() throws NetworkIOException {
 		prototype.testConnection();
 	}
 
+	/**
+	 * Sends the pending batch right away and waits until it is written.
+	 */
+	public void flush() throws NetworkIOException {
+		try {
+			scheduleService.submit(batchRunner).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// the runner handles network failures, only unchecked exceptions escape it
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw (RuntimeException) e.getCause();
+		} catch (RejectedExecutionException e) {
+			// stopped, nothing will be sent anymore
+		}
+	}
+
+	/**
+	 * Sends the pending batch and waits until the gateway had its chance to
+	 * reject any of it.  Without a persistent connection every batch is
+	 * written over a connection closed right afterwards, so only the
+	 * write itself can be awaited.
+	 */
+	public boolean awaitConfirmation(long timeout, TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		try {
+			scheduleService.submit(batchRunner).get(timeout, unit);
+		} catch (ExecutionException e) {
+			return false;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+		final ApnsConnection current = connection;
+		return current == null || current.awaitConfirmation(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
 	@Override
 	public void push(ApnsNotification message) throws NetworkIOException {
-		if (batch.isEmpty()) {
-			firstMessageArrivedTime = System.nanoTime();
+		batch.add(DeadlineNotification.capture(message));
+		// a coalescing batch may not have grown; its size is cheap to ask for
+		final int size = coalescing ? batch.size() : batchSize.incrementAndGet();
+		final long now = System.nanoTime();
+		if (size == 1) {
+			firstMessageArrivedTime = now;
 		}
-		
-		long sinceFirstMessageSec = (System.nanoTime() - firstMessageArrivedTime) / 1000 / 1000 / 1000;
-		
-		if (taskFuture != null && sinceFirstMessageSec < maxBatchWaitTimeInSec) {
-			taskFuture.cancel(false);
+
+		// only move the deadline; the scheduled check picks it up when it fires
+		if (now - firstMessageArrivedTime < maxBatchWaitTimeNanos) {
+			deadline = now + batchWaitTimeNanos;
+		}
+
+		if (maxBatchSize > 0 && size >= maxBatchSize) {
+			if (flushRequested.compareAndSet(false, true)) {
+				scheduleService.execute(batchRunner);
+			}
+		} else if (checkScheduled.compareAndSet(false, true)) {
+			scheduleService.schedule(deadlineCheck, deadline - now, TimeUnit.NANOSECONDS);
 		}
-		
-		batch.add(message);
-		
-		if (taskFuture == null || taskFuture.isDone()) {
-			taskFuture = scheduleService.schedule(batchRunner, batchWaitTimeInSec, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Sends the batch once its deadline has passed, or checks again at the
+	 * deadline if messages have pushed it back in the meantime.
+	 */
+	class DeadlineCheck implements Runnable {
+		public void run() {
+			final long remaining = deadline - System.nanoTime();
+			if (remaining > 0) {
+				scheduleService.schedule(this, remaining, TimeUnit.NANOSECONDS);
+				return;
+			}
+			checkScheduled.set(false);
+			batchRunner.run();
 		}
 	}
 
 	class SendMessagesBatch implements Runnable {
 		public void run() {
+			flushRequested.set(false);
+			if (persistentConnection) {
+				sendOverPersistentConnection();
+				return;
+			}
 			ApnsConnection newConnection = prototype.copy();
 			try {
 				ApnsNotification msg;
-				while ((msg = batch.poll()) != null) {
+				while ((msg = poll()) != null) {
 					try {
 						newConnection.sendMessage(msg);
 					} catch (NetworkIOException e) {
@@ -102,5 +239,66 @@ public class BatchApnsService extends AbstractApnsService {
 				Utilities.close(newConnection);
 			}
 		}
+
+		private void sendOverPersistentConnection() {
+			if (connection == null) {
+				connection = prototype.copy();
+			}
+			final int chunkSize = maxBatchSize > 0 ? maxBatchSize : 1024;
+			List<ApnsNotification> chunk = new ArrayList<ApnsNotification>(chunkSize);
+			ApnsNotification msg;
+			while ((msg = poll()) != null) {
+				chunk.add(msg);
+				if (chunk.size() == chunkSize) {
+					send(chunk);
+					chunk = new ArrayList<ApnsNotification>(chunkSize);
+				}
+			}
+			if (!chunk.isEmpty()) {
+				send(chunk);
+			}
+		}
+
+		private void send(List<ApnsNotification> chunk) {
+			try {
+				connection.sendMessages(chunk);
+			} catch (NetworkIOException e) {
+				// the connection already reported the failed messages to the delegate
+				logger.warn("Network exception sending a batch of " + chunk.size() + " messages", e);
+			}
+		}
+
+		/**
+		 * Takes the next message of the batch, dropping the ones that
+		 * expired while waiting for it.
+		 */
+		private ApnsNotification poll() {
+			final long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+			ApnsNotification msg;
+			while ((msg = batch.poll()) != null) {
+				if (!coalescing) {
+					batchSize.decrementAndGet();
+				}
+				if (msg instanceof DeadlineNotification) {
+					// a batch is written at once, so the deadline only bounds the wait for it
+					final DeadlineNotification bounded = (DeadlineNotification) msg;
+					msg = bounded.getNotification();
+					if (bounded.isPast()) {
+						delegate.messageSendFailed(msg,
+								new NotificationDroppedException(NotificationDroppedException.Reason.DEADLINE_EXCEEDED));
+						continue;
+					}
+				}
+				if (!Utilities.isExpired(msg, now)) {
+					return msg;
+				}
+				if (metrics != null) {
+					metrics.expiredDropped();
+				}
+				delegate.messageSendFailed(msg,
+						new NotificationDroppedException(NotificationDroppedException.Reason.EXPIRED));
+			}
+			return null;
+		}
 	}
 }
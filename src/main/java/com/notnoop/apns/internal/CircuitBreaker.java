@@ -0,0 +1,91 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.notnoop.apns.ApnsMetrics;
+
+/**
+ * Stops connection attempts to a gateway that keeps failing them.
+ *
+ * The breaker is closed as long as connecting works.  After
+ * {@code failureThreshold} consecutive failed connects or handshakes it
+ * opens, and attempts fail right away instead of waiting for the connect
+ * timeout.  Once {@code openTime} has passed, it is half open: a single
+ * attempt is let through as a probe, and closes the breaker if it
+ * succeeds, or opens it again otherwise.
+ *
+ * One breaker is shared by all the connections to a gateway, as an outage
+ * affects them all.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openTimeNanos;
+    private final ApnsMetrics metrics;
+
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private volatile long openedAt;
+    private volatile boolean open;
+
+    /**
+     * @param failureThreshold how many consecutive failures open the breaker
+     * @param openTime         how long the breaker stays open before a probe is let through
+     * @param metrics          where to count openings and rejected attempts, may be {@code null}
+     */
+    public CircuitBreaker(int failureThreshold, long openTime, TimeUnit unit, ApnsMetrics metrics) {
+        if (failureThreshold < 1 || openTime <= 0) {
+            throw new IllegalArgumentException("failureThreshold and openTime must be positive");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openTimeNanos = unit.toNanos(openTime);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Asks whether a connection attempt may be made.  While half open,
+     * only the first caller gets to probe; it must report the outcome.
+     */
+    public boolean allowAttempt() {
+        if (!open) {
+            return true;
+        }
+        if (System.nanoTime() - openedAt >= openTimeNanos && probing.compareAndSet(false, true)) {
+            return true;
+        }
+        if (metrics != null) {
+            metrics.circuitRejected();
+        }
+        return false;
+    }
+
+    public void onSuccess() {
+        failures.set(0);
+        open = false;
+        probing.set(false);
+    }
+
+    public void onFailure() {
+        if (failures.incrementAndGet() >= failureThreshold || probing.get()) {
+            openedAt = System.nanoTime();
+            if (!open && metrics != null) {
+                metrics.circuitOpened();
+            }
+            open = true;
+            probing.set(false);
+        }
+    }
+
+    public State getState() {
+        if (!open) {
+            return State.CLOSED;
+        }
+        return System.nanoTime() - openedAt >= openTimeNanos ? State.HALF_OPEN : State.OPEN;
+    }
+}
@@ -0,0 +1,336 @@
+package com.notnoop.apns.internal;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsMetrics;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.CollapseKeyResolver;
+import com.notnoop.exceptions.NotificationDroppedException;
+
+/**
+ * A bounded FIFO blocking queue in which a new notification replaces a
+ * queued notification to the same device with the same collapse key.
+ *
+ * The replacement keeps the queue position of the notification it
+ * replaces, so the latest state goes out as soon as the first update
+ * would have, and it takes no extra room: a full queue still accepts it.
+ * The replaced notification is reported to the delegate as dropped.
+ */
+public class CoalescingQueue extends AbstractQueue<ApnsNotification> implements BlockingQueue<ApnsNotification> {
+
+    private final int capacity;
+    private final CollapseKeyResolver resolver;
+    private final ApnsDelegate delegate;
+    private final ApnsMetrics metrics;
+
+    private final ArrayDeque<Slot> slots = new ArrayDeque<Slot>();
+    private final Map<Key, Slot> pending = new HashMap<Key, Slot>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * @param capacity maximum number of queued notifications
+     * @param resolver the collapse keys of notifications
+     * @param delegate gets notified of the replaced notifications
+     * @param metrics  counts the replaced notifications, may be {@code null}
+     */
+    public CoalescingQueue(int capacity, CollapseKeyResolver resolver, ApnsDelegate delegate, ApnsMetrics metrics) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (resolver == null) {
+            throw new NullPointerException("resolver");
+        }
+        this.capacity = capacity;
+        this.resolver = resolver;
+        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+        this.metrics = metrics;
+    }
+
+    public boolean offer(ApnsNotification e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        final Key key = keyOf(e);
+        ApnsNotification replaced;
+        lock.lock();
+        try {
+            replaced = replace(key, e);
+            if (replaced == null) {
+                if (slots.size() == capacity) {
+                    return false;
+                }
+                insert(key, e);
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        coalesced(replaced);
+        return true;
+    }
+
+    /**
+     * Puts {@code e} in the place of the pending notification with the same
+     * key, if any.  Must only be called while holding the lock.
+     *
+     * @return the replaced notification, or {@code null}
+     */
+    private ApnsNotification replace(Key key, ApnsNotification e) {
+        if (key == null) {
+            return null;
+        }
+        Slot slot = pending.get(key);
+        if (slot == null) {
+            return null;
+        }
+        ApnsNotification replaced = slot.notification;
+        slot.notification = e;
+        return replaced;
+    }
+
+    private void insert(Key key, ApnsNotification e) {
+        Slot slot = new Slot(key, e);
+        slots.addLast(slot);
+        if (key != null) {
+            pending.put(key, slot);
+        }
+        notEmpty.signal();
+    }
+
+    private ApnsNotification extract() {
+        Slot slot = slots.pollFirst();
+        if (slot.key != null) {
+            pending.remove(slot.key);
+        }
+        notFull.signal();
+        return slot.notification;
+    }
+
+    private void coalesced(ApnsNotification replaced) {
+        if (metrics != null) {
+            metrics.coalesced();
+        }
+        delegate.messageSendFailed(DeadlineNotification.unwrap(replaced),
+                new NotificationDroppedException(NotificationDroppedException.Reason.COALESCED));
+    }
+
+    private Key keyOf(ApnsNotification e) {
+        String collapseKey = resolver.collapseKeyOf(DeadlineNotification.unwrap(e));
+        return collapseKey == null ? null : new Key(e.getDeviceToken(), collapseKey);
+    }
+
+    public ApnsNotification poll() {
+        lock.lock();
+        try {
+            return slots.isEmpty() ? null : extract();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ApnsNotification peek() {
+        lock.lock();
+        try {
+            Slot slot = slots.peekFirst();
+            return slot == null ? null : slot.notification;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(ApnsNotification e) throws InterruptedException {
+        offer(e, -1, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits up to {@code timeout} for free space; a negative timeout waits indefinitely.
+     */
+    public boolean offer(ApnsNotification e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (offer(e)) {
+            return true;
+        }
+        final Key key = keyOf(e);
+        long nanos = unit.toNanos(timeout);
+        ApnsNotification replaced;
+        lock.lockInterruptibly();
+        try {
+            // the notification it would replace may have been taken while waiting, and vice versa
+            while ((replaced = replace(key, e)) == null && slots.size() == capacity) {
+                if (timeout < 0) {
+                    notFull.await();
+                } else if (nanos <= 0) {
+                    return false;
+                } else {
+                    nanos = notFull.awaitNanos(nanos);
+                }
+            }
+            if (replaced == null) {
+                insert(key, e);
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        coalesced(replaced);
+        return true;
+    }
+
+    public ApnsNotification take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (slots.isEmpty()) {
+                notEmpty.await();
+            }
+            return extract();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ApnsNotification poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (slots.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return extract();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - slots.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (Iterator<Slot> it = slots.iterator(); it.hasNext(); ) {
+                Slot slot = it.next();
+                if (slot.notification.equals(o)) {
+                    it.remove();
+                    if (slot.key != null) {
+                        pending.remove(slot.key);
+                    }
+                    notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int drainTo(Collection<? super ApnsNotification> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super ApnsNotification> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && !slots.isEmpty()) {
+                c.add(extract());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the queued notifications.  Removing through the
+     * iterator is not supported.
+     */
+    public Iterator<ApnsNotification> iterator() {
+        lock.lock();
+        try {
+            List<ApnsNotification> snapshot = new ArrayList<ApnsNotification>(slots.size());
+            for (Slot slot : slots) {
+                snapshot.add(slot.notification);
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Slot {
+        final Key key;
+        ApnsNotification notification;
+
+        Slot(Key key, ApnsNotification notification) {
+            this.key = key;
+            this.notification = notification;
+        }
+    }
+
+    private static final class Key {
+        private final byte[] deviceToken;
+        private final String collapseKey;
+        private final int hash;
+
+        Key(byte[] deviceToken, String collapseKey) {
+            this.deviceToken = deviceToken;
+            this.collapseKey = collapseKey;
+            this.hash = 31 * Arrays.hashCode(deviceToken) + collapseKey.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && collapseKey.equals(other.collapseKey)
+                    && Arrays.equals(deviceToken, other.deviceToken);
+        }
+    }
+}
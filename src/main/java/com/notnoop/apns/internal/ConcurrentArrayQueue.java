@@ -0,0 +1,261 @@
+package com.notnoop.apns.internal;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, array-backed blocking queue whose {@code offer} and
+ * {@code poll} are lock-free.
+ *
+ * Each slot carries a sequence number telling producers and consumers
+ * whether it is free or filled for their turn, so concurrent producers
+ * only contend on a single compare-and-set.  A lock is only taken when a
+ * thread has to wait for the queue to become non-empty or non-full, and by
+ * the thread waking it up.
+ *
+ * The capacity is rounded up to a power of two, of at least two.  Iteration is a weakly
+ * consistent snapshot, and removing arbitrary elements is not supported.
+ */
+public class ConcurrentArrayQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+
+    public ConcurrentArrayQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        // a single slot can't tell "filled" from "free for the next round" apart
+        int size = Math.max(2, Integer.highestOneBit(capacity));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long position = enqueuePosition.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+        buffer.lazySet(index, e);
+        // a full volatile write, so the check for waiting consumers below can't be reordered before it
+        sequences.set(index, position + 1);
+        if (waitingConsumers.get() > 0) {
+            signal(notEmpty);
+        }
+        return true;
+    }
+
+    public E poll() {
+        long position = dequeuePosition.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+        E e = buffer.get(index);
+        buffer.lazySet(index, null);
+        sequences.set(index, position + mask + 1);
+        if (waitingProducers.get() > 0) {
+            signal(notFull);
+        }
+        return e;
+    }
+
+    public E peek() {
+        while (true) {
+            long position = dequeuePosition.get();
+            int index = (int) (position & mask);
+            if (sequences.get(index) != position + 1) {
+                return null;
+            }
+            E e = buffer.get(index);
+            if (e != null && dequeuePosition.get() == position) {
+                return e;
+            }
+        }
+    }
+
+    public void put(E e) throws InterruptedException {
+        offer(e, -1, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits up to {@code timeout} for free space; a negative timeout waits indefinitely.
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (offer(e)) {
+            return true;
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            waitingProducers.incrementAndGet();
+            try {
+                while (!offer(e)) {
+                    if (timeout < 0) {
+                        notFull.await();
+                    } else if (nanos <= 0) {
+                        return false;
+                    } else {
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                }
+                return true;
+            } catch (InterruptedException ie) {
+                notFull.signal();
+                throw ie;
+            } finally {
+                waitingProducers.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public E take() throws InterruptedException {
+        return poll(-1, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits up to {@code timeout} for an element; a negative timeout waits indefinitely.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E e = poll();
+        if (e != null) {
+            return e;
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            waitingConsumers.incrementAndGet();
+            try {
+                while ((e = poll()) == null) {
+                    if (timeout < 0) {
+                        notEmpty.await();
+                    } else if (nanos <= 0) {
+                        return null;
+                    } else {
+                        nanos = notEmpty.awaitNanos(nanos);
+                    }
+                }
+                return e;
+            } catch (InterruptedException ie) {
+                notEmpty.signal();
+                throw ie;
+            } finally {
+                waitingConsumers.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signal(Condition condition) {
+        lock.lock();
+        try {
+            condition.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        // read the consumer side first, so the difference can't come out negative
+        long dequeued = dequeuePosition.get();
+        long size = enqueuePosition.get() - dequeued;
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    public int remainingCapacity() {
+        return mask + 1 - size();
+    }
+
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = poll()) != null) {
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns a weakly consistent snapshot of the queued elements, which
+     * doesn't support {@code remove()}.
+     */
+    public Iterator<E> iterator() {
+        long position = dequeuePosition.get();
+        long end = enqueuePosition.get();
+        List<E> snapshot = new ArrayList<E>();
+        for (; position < end; position++) {
+            int index = (int) (position & mask);
+            E e = buffer.get(index);
+            if (e != null && sequences.get(index) == position + 1) {
+                snapshot.add(e);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+}
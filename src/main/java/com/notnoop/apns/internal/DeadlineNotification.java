@@ -0,0 +1,121 @@
+package com.notnoop.apns.internal;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.exceptions.NotificationDroppedException;
+
+/**
+ * A notification pushed with a deadline, as it waits in a queue for
+ * another thread to send it.  It is unwrapped before it is sent or handed
+ * to application code.
+ *
+ * The thread sending a notification with a deadline keeps it in a thread
+ * local, see {@link #enter(long)}, so that connecting and writing can be
+ * bounded by it too.
+ */
+final class DeadlineNotification implements ApnsNotification {
+
+    private static final ThreadLocal<Long> CURRENT = new ThreadLocal<Long>();
+
+    private final ApnsNotification notification;
+    private final long deadlineNanos;
+
+    DeadlineNotification(ApnsNotification notification, long deadlineNanos) {
+        this.notification = notification;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Wraps {@code notification} with the deadline of the current thread,
+     * if it has one.
+     */
+    static ApnsNotification capture(ApnsNotification notification) {
+        final Long deadline = CURRENT.get();
+        return deadline == null ? notification : new DeadlineNotification(notification, deadline);
+    }
+
+    static ApnsNotification unwrap(ApnsNotification notification) {
+        return notification instanceof DeadlineNotification
+                ? ((DeadlineNotification) notification).notification : notification;
+    }
+
+    /**
+     * Sets the deadline of the current thread, as given by
+     * {@link System#nanoTime()}, until {@link #exit(Long)}.
+     *
+     * @return the previous deadline, to be passed to {@link #exit(Long)}
+     */
+    static Long enter(long deadlineNanos) {
+        final Long previous = CURRENT.get();
+        // a nested call can only shorten the deadline
+        CURRENT.set(previous == null || deadlineNanos - previous < 0 ? deadlineNanos : previous);
+        return previous;
+    }
+
+    /**
+     * Lifts the deadline of the current thread, e.g. while it resends
+     * notifications on behalf of others, until {@link #exit(Long)}.
+     */
+    static Long suspend() {
+        final Long previous = CURRENT.get();
+        CURRENT.remove();
+        return previous;
+    }
+
+    static void exit(Long previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Returns the time left until the deadline of the current thread, or
+     * {@link Long#MAX_VALUE} if it has none.
+     */
+    static long remainingNanos() {
+        final Long deadline = CURRENT.get();
+        return deadline == null ? Long.MAX_VALUE : deadline - System.nanoTime();
+    }
+
+    /**
+     * Throws if the deadline of the current thread has passed.
+     */
+    static void check() throws NotificationDroppedException {
+        if (remainingNanos() <= 0) {
+            throw new NotificationDroppedException(NotificationDroppedException.Reason.DEADLINE_EXCEEDED);
+        }
+    }
+
+    ApnsNotification getNotification() {
+        return notification;
+    }
+
+    long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    boolean isPast() {
+        return deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    public byte[] getDeviceToken() {
+        return notification.getDeviceToken();
+    }
+
+    public byte[] getPayload() {
+        return notification.getPayload();
+    }
+
+    public int getIdentifier() {
+        return notification.getIdentifier();
+    }
+
+    public int getExpiry() {
+        return notification.getExpiry();
+    }
+
+    public byte[] marshall() {
+        return notification.marshall();
+    }
+}
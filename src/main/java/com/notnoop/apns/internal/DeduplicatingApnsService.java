@@ -0,0 +1,208 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsMetrics;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.IdempotencyKeyResolver;
+import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.NotificationDroppedException;
+
+/**
+ * Passes each notification on to another service unless an equal one has
+ * been pushed within the deduplication window.
+ *
+ * Notifications are identified by the caller's idempotency key or, when
+ * there is none, by their device token and payload.  Only 64-bit hashes of
+ * these are remembered, in an {@link ExpiringKeySet}.  Suppressed
+ * notifications are reported to the delegate as dropped.  A notification
+ * that the other service rejects or fails to take is forgotten again, so
+ * that the caller can retry it.
+ */
+public class DeduplicatingApnsService extends AbstractApnsService {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final ApnsService service;
+    private final ExpiringKeySet seen;
+    private final IdempotencyKeyResolver resolver;
+    private final ApnsDelegate delegate;
+    private ApnsMetrics metrics;
+
+    /**
+     * @param window   how long a notification suppresses its repeats
+     * @param maxKeys  upper bound on the number of remembered notifications
+     * @param resolver the idempotency keys of notifications, may be {@code null}
+     * @param delegate gets notified of the suppressed notifications
+     */
+    public DeduplicatingApnsService(ApnsService service, long window, TimeUnit unit, int maxKeys,
+                                    IdempotencyKeyResolver resolver, ApnsDelegate delegate) {
+        super(null);
+        this.service = service;
+        this.seen = new ExpiringKeySet(window, unit, maxKeys,
+                Math.max(16, 4 * Runtime.getRuntime().availableProcessors()));
+        this.resolver = resolver;
+        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+    }
+
+    /**
+     * Counts the lookups and suppressed duplicates.
+     */
+    public void setMetrics(ApnsMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void push(ApnsNotification msg) throws NetworkIOException {
+        if (isFirst(msg)) {
+            boolean pushed = false;
+            try {
+                service.push(msg);
+                pushed = true;
+            } finally {
+                if (!pushed) {
+                    forget(msg);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} for a suppressed duplicate, as it needs no room.
+     */
+    @Override
+    public boolean tryPush(ApnsNotification msg) throws NetworkIOException {
+        if (!isFirst(msg)) {
+            return true;
+        }
+        boolean pushed = false;
+        try {
+            pushed = service.tryPush(msg);
+            return pushed;
+        } finally {
+            if (!pushed) {
+                forget(msg);
+            }
+        }
+    }
+
+    @Override
+    public void pushAll(Collection<? extends ApnsNotification> messages) throws NetworkIOException {
+        List<ApnsNotification> first = new ArrayList<ApnsNotification>(messages.size());
+        for (ApnsNotification msg : messages) {
+            if (isFirst(msg)) {
+                first.add(msg);
+            }
+        }
+        if (first.isEmpty()) {
+            return;
+        }
+        if (service instanceof AbstractApnsService) {
+            boolean pushed = false;
+            try {
+                ((AbstractApnsService) service).pushAll(first);
+                pushed = true;
+            } finally {
+                if (!pushed) {
+                    // which of them were taken is unknown, rather let a retry repeat some than lose any
+                    for (ApnsNotification msg : first) {
+                        forget(msg);
+                    }
+                }
+            }
+        } else {
+            for (int i = 0; i < first.size(); i++) {
+                boolean pushed = false;
+                try {
+                    service.push(first.get(i));
+                    pushed = true;
+                } finally {
+                    if (!pushed) {
+                        for (ApnsNotification msg : first.subList(i, first.size())) {
+                            forget(msg);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isFirst(ApnsNotification msg) {
+        final boolean first = seen.add(keyOf(msg));
+        if (metrics != null) {
+            metrics.idempotencyChecked(!first);
+        }
+        if (!first) {
+            delegate.messageSendFailed(msg,
+                    new NotificationDroppedException(NotificationDroppedException.Reason.DUPLICATE));
+        }
+        return first;
+    }
+
+    /**
+     * Lets a notification that didn't get through be pushed again.
+     */
+    private void forget(ApnsNotification msg) {
+        seen.remove(keyOf(msg));
+    }
+
+    private long keyOf(ApnsNotification msg) {
+        String key = resolver == null ? null : resolver.idempotencyKeyOf(msg);
+        if (key != null) {
+            long hash = FNV_OFFSET_BASIS;
+            for (int i = 0; i < key.length(); i++) {
+                hash = (hash ^ key.charAt(i)) * FNV_PRIME;
+            }
+            return hash;
+        }
+        byte[] token = msg.getDeviceToken();
+        long hash = fnv(FNV_OFFSET_BASIS ^ 1, token);
+        // so that token and payload can't blur into each other
+        hash = (hash ^ token.length) * FNV_PRIME;
+        return fnv(hash, msg.getPayload());
+    }
+
+    private static long fnv(long hash, byte[] bytes) {
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    public void start() {
+        service.start();
+    }
+
+    public void stop() {
+        service.stop();
+    }
+
+    @Override
+    public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        return service.getInactiveDevices();
+    }
+
+    public void flush() throws NetworkIOException {
+        service.flush();
+    }
+
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException, NetworkIOException {
+        return service.awaitReady(timeout, unit);
+    }
+
+    public boolean awaitConfirmation(long timeout, TimeUnit unit) throws InterruptedException {
+        return service.awaitConfirmation(timeout, unit);
+    }
+
+    public void testConnection() throws NetworkIOException {
+        service.testConnection();
+    }
+}
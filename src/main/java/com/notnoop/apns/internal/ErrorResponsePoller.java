@@ -0,0 +1,286 @@
+package com.notnoop.apns.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the error-responses of many gateway sockets on a single thread,
+ * instead of a monitoring thread per socket.
+ *
+ * SSL sockets can't be registered with a selector, so the poller takes
+ * turns reading from each socket with a read timeout of a millisecond.
+ * After a pass that read nothing, it sleeps before the next one, doubling
+ * the sleep up to {@value #MAX_IDLE_MILLIS} ms while the sockets stay quiet,
+ * so that idle connections don't keep a core busy.  An error-response is
+ * thus noticed within about a millisecond per registered socket plus at most
+ * {@value #MAX_IDLE_MILLIS} ms, where a monitoring thread per socket notices
+ * it right away.  The socket is closed right away, and the packet is handed to its
+ * listener on a dispatch thread, so that the delegate and the resends of a
+ * connection never hold up the reading of the others.
+ *
+ * Both threads are started when needed and end once there has been nothing
+ * to do for a while, so the number of threads doesn't depend on the number
+ * of connections or on how often they reconnect.  One poller is shared by
+ * all the connections of a service.
+ */
+public class ErrorResponsePoller {
+    private static final Logger logger = LoggerFactory.getLogger(ErrorResponsePoller.class);
+
+    static final int PACKET_SIZE = 6;
+    private static final int POLL_MILLIS = 1;
+    static final long MAX_IDLE_MILLIS = 64;
+    private static final long LINGER_MILLIS = 10000;
+
+    /**
+     * Handles what was read from a socket.  All calls for a socket are made
+     * in order, on the dispatch thread; after {@link #finished()}, there are
+     * no more.
+     */
+    public interface Listener {
+        /**
+         * An error-response packet was read.  The socket is closed already.
+         *
+         * @throws IOException if the packet is malformed; the socket is then
+         *      done with as if reading it failed
+         */
+        void errorResponse(byte[] packet) throws IOException;
+
+        /** The socket was closed, or reached EOF between packets. */
+        void closed();
+
+        /**
+         * Nothing arrived within the read timeout.  The socket is still open
+         * and may well be healthy, the gateway just had nothing to say.
+         */
+        void timedOut();
+
+        /** Reading from the socket failed in the middle of a packet. */
+        void failed(IOException e);
+
+        /** Reading from the socket is over. */
+        void finished();
+    }
+
+    private final ThreadFactory threadFactory;
+    private final List<Entry> entries = new CopyOnWriteArrayList<Entry>();
+    private final ThreadPoolExecutor dispatcher;
+    private Thread poller;
+
+    public ErrorResponsePoller() {
+        this(null);
+    }
+
+    /**
+     * @param threadFactory creates the poll and dispatch threads, may be
+     *                      {@code null} for daemon threads
+     */
+    public ErrorResponsePoller(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory != null ? threadFactory : new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = Executors.defaultThreadFactory().newThread(r);
+                thread.setName("ApnsErrorResponsePoller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.dispatcher = new ThreadPoolExecutor(1, 1, LINGER_MILLIS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), this.threadFactory);
+        this.dispatcher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts reading the error-responses of {@code socket}.
+     *
+     * @param readTimeout how long to wait for an error-response before the
+     *                    socket is taken as closed, 0 for no limit
+     */
+    public void register(Socket socket, int readTimeout, Listener listener) {
+        final Entry entry = new Entry(socket, listener, TimeUnit.MILLISECONDS.toNanos(readTimeout));
+        try {
+            entry.in = socket.getInputStream();
+            socket.setSoTimeout(POLL_MILLIS);
+        } catch (IOException e) {
+            // like a monitoring thread, take a socket that can't be read as closed
+            dispatch(entry, null, null);
+            return;
+        }
+        synchronized (this) {
+            entries.add(entry);
+            if (poller == null) {
+                poller = threadFactory.newThread(new Runnable() {
+                    public void run() {
+                        poll();
+                    }
+                });
+                poller.start();
+            } else {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of sockets being read from.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void poll() {
+        logger.debug("Started error-response poller");
+        long idleMillis = 0;
+        while (true) {
+            synchronized (this) {
+                if (idleMillis > 0 && !entries.isEmpty()) {
+                    // rest after a quiet pass, a newly registered socket cuts it short
+                    try {
+                        wait(idleMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (entries.isEmpty()) {
+                    try {
+                        wait(LINGER_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (entries.isEmpty()) {
+                        poller = null;
+                        logger.debug("Stopped idle error-response poller");
+                        return;
+                    }
+                }
+            }
+            boolean progress = false;
+            for (Entry entry : entries) {
+                progress |= read(entry);
+            }
+            idleMillis = progress ? 0 : Math.min(MAX_IDLE_MILLIS, Math.max(1, idleMillis * 2));
+        }
+    }
+
+    /**
+     * Reads what arrived for a single socket, waiting for a millisecond at
+     * most.  Mirrors a monitoring thread: EOF or a failed read between
+     * packets means the socket was closed, while within a packet it is a
+     * failure.
+     *
+     * @return whether anything was read, or the socket is done with
+     */
+    private boolean read(Entry entry) {
+        IOException failure;
+        try {
+            int count = entry.in.read(entry.packet, entry.read, PACKET_SIZE - entry.read);
+            if (count < 0) {
+                throw new EOFException("EOF after reading " + entry.read + " bytes of new packet.");
+            }
+            if (count == 0) {
+                return false;
+            }
+            entry.read += count;
+            // like the socket's own read timeout, it counts from the last read
+            entry.resetDeadline();
+            if (entry.read == PACKET_SIZE) {
+                // quickly close the socket, so it's never written to again
+                Utilities.close(entry.socket);
+                final byte[] packet = entry.packet.clone();
+                entry.read = 0;
+                dispatch(entry, packet, null);
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            if (entry.timeoutNanos == 0 || System.nanoTime() - entry.deadlineNanos < 0) {
+                return false;
+            }
+            failure = e;
+        } catch (IOException e) {
+            failure = e;
+        }
+        entries.remove(entry);
+        final IOException end;
+        if (entry.read > 0) {
+            end = new IOException("Error after reading " + entry.read + " bytes of packet", failure);
+        } else if (failure instanceof SocketTimeoutException) {
+            end = failure;
+        } else {
+            end = null;
+        }
+        dispatch(entry, null, end);
+        return true;
+    }
+
+    /**
+     * Hands a packet, or the end of the socket, to its listener: the end
+     * when {@code packet} is {@code null}, after the read timeout when
+     * {@code failure} is a {@link SocketTimeoutException}, and after a
+     * failure when it is another exception.
+     */
+    private void dispatch(final Entry entry, final byte[] packet, final IOException failure) {
+        dispatcher.execute(new Runnable() {
+            public void run() {
+                if (entry.done) {
+                    return;
+                }
+                try {
+                    if (packet != null) {
+                        entry.listener.errorResponse(packet);
+                        return;
+                    }
+                    if (failure == null) {
+                        entry.listener.closed();
+                    } else if (failure instanceof SocketTimeoutException) {
+                        entry.listener.timedOut();
+                    } else {
+                        entry.listener.failed(failure);
+                    }
+                } catch (IOException e) {
+                    entries.remove(entry);
+                    entry.listener.failed(e);
+                } catch (RuntimeException e) {
+                    logger.warn("Error-response listener failed", e);
+                }
+                entry.done = true;
+                entry.listener.finished();
+            }
+        });
+    }
+
+    private static final class Entry {
+        final Socket socket;
+        final Listener listener;
+        /** the read timeout, 0 for no limit */
+        final long timeoutNanos;
+        final byte[] packet = new byte[PACKET_SIZE];
+        InputStream in;
+        int read;
+        /** only touched on the poll thread */
+        long deadlineNanos;
+        /** only touched on the dispatch thread */
+        boolean done;
+
+        Entry(Socket socket, Listener listener, long timeoutNanos) {
+            this.socket = socket;
+            this.listener = listener;
+            this.timeoutNanos = timeoutNanos;
+            resetDeadline();
+        }
+
+        void resetDeadline() {
+            deadlineNanos = System.nanoTime() + timeoutNanos;
+        }
+    }
+}
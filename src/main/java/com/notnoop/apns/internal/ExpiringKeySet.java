@@ -0,0 +1,131 @@
+package com.notnoop.apns.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A set of 64-bit keys that forgets each key a fixed time after it was
+ * added, and holds at most a given number of keys by forgetting the oldest
+ * ones first.
+ *
+ * The keys are spread over independently locked stripes, so concurrent
+ * callers rarely wait for each other.  Each stripe keeps its keys in
+ * insertion order, which is also their expiry order, so expired keys are
+ * purged from its head as a side effect of adding keys.
+ */
+public class ExpiringKeySet {
+
+    private final Stripe[] stripes;
+    private final long ttlNanos;
+
+    /**
+     * @param ttl     how long a key is remembered
+     * @param unit    the unit of {@code ttl}
+     * @param maxKeys upper bound on the number of remembered keys
+     * @param stripes number of independently locked stripes, rounded up to a power of two
+     */
+    public ExpiringKeySet(long ttl, TimeUnit unit, int maxKeys, int stripes) {
+        if (ttl <= 0 || maxKeys <= 0 || stripes <= 0) {
+            throw new IllegalArgumentException("ttl, maxKeys and stripes must be positive");
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+        this.stripes = new Stripe[size];
+        final int maxPerStripe = Math.max(1, (maxKeys + size - 1) / size);
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe(maxPerStripe);
+        }
+    }
+
+    /**
+     * Adds {@code key} unless it is already remembered.
+     *
+     * @return {@code true} if the key was new or had expired
+     */
+    public boolean add(long key) {
+        final Stripe stripe = stripeOf(key);
+        final long now = System.nanoTime();
+        final Long boxed = key;
+        synchronized (stripe) {
+            stripe.purge(now);
+            if (stripe.containsKey(boxed)) {
+                return false;
+            }
+            stripe.put(boxed, now + ttlNanos);
+            return true;
+        }
+    }
+
+    /**
+     * Forgets {@code key}, so that adding it again succeeds.
+     *
+     * @return {@code true} if the key was remembered
+     */
+    public boolean remove(long key) {
+        final Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            return stripe.remove(key) != null;
+        }
+    }
+
+    /**
+     * Returns whether {@code key} is remembered and hasn't expired yet.
+     */
+    public boolean contains(long key) {
+        final Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Long expiresAt = stripe.get(key);
+            return expiresAt != null && expiresAt - System.nanoTime() > 0;
+        }
+    }
+
+    /**
+     * Returns the number of remembered keys, including expired keys that
+     * haven't been purged yet.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripeOf(long key) {
+        // the keys may be poorly mixed hashes, fold the high bits in
+        long h = key ^ (key >>> 32);
+        h ^= h >>> 16;
+        return stripes[(int) h & (stripes.length - 1)];
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Stripe extends LinkedHashMap<Long, Long> {
+        private final int maxKeys;
+
+        Stripe(int maxKeys) {
+            super(16, 0.75f, false);
+            this.maxKeys = maxKeys;
+        }
+
+        void purge(long now) {
+            for (Iterator<Long> it = values().iterator(); it.hasNext(); ) {
+                if (it.next() - now > 0) {
+                    return;
+                }
+                it.remove();
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > maxKeys;
+        }
+    }
+}
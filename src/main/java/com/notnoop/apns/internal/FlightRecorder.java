@@ -0,0 +1,198 @@
+package com.notnoop.apns.internal;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free ring of compact lifecycle events.
+ *
+ * Recording an event costs a handful of array stores and no formatting, so
+ * it can stay on the send path where per-notification debug logging would
+ * be too expensive.  Once the ring wraps, the oldest events are overwritten.
+ *
+ * Dumping is best effort: events recorded while a dump is in progress may be
+ * skipped, but a dump never blocks writers.
+ */
+public final class FlightRecorder {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Event types.  The meaning of the {@code arg} recorded with an event
+     * depends on the type and is noted next to each constant.
+     */
+    public enum Event {
+        /** a notification is about to be written; arg = 1 when resent */
+        SEND,
+        /** a notification has been written and flushed; arg = attempt */
+        SENT,
+        /** a write failed and will be retried; arg = attempt */
+        RETRY,
+        /** a notification was given up on; arg = attempt */
+        SEND_FAILED,
+        /** a notification fell off the resend cache */
+        CACHE_EVICTED,
+        /** a new socket has been connected */
+        CONNECTED,
+        /** the socket was dropped because the reconnect policy asked for it */
+        RECONNECT,
+        /** connecting a new socket failed */
+        CONNECT_FAILED,
+        /** an error-response packet was received; arg = status code */
+        ERROR_RESPONSE,
+        /** notifications were queued for resend; arg = count */
+        RESEND_QUEUED,
+        /** the error monitor saw the stream end */
+        MONITOR_EOF,
+        /** the error monitor read nothing within the read timeout */
+        MONITOR_TIMEOUT,
+        /** the error monitor failed while reading */
+        MONITOR_FAILED,
+        /** the connection was closed */
+        CLOSED,
+        /** a notification expired before it could be resent */
+        EXPIRED,
+        /** a connect was failed right away as the circuit breaker is open */
+        CONNECT_REJECTED,
+        /** a TLS handshake completed; arg = 1 when a cached session was resumed */
+        HANDSHAKE
+    }
+
+    private static final Event[] EVENTS = Event.values();
+    private static final int SLOT_WIDTH = 3;
+
+    private final AtomicLongArray slots;
+    private final AtomicLong cursor = new AtomicLong();
+    private final int mask;
+
+    private final long baseMillis = System.currentTimeMillis();
+    private final long baseNanos = System.nanoTime();
+
+    public FlightRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of events kept, rounded up to a power of two
+     */
+    public FlightRecorder(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.slots = new AtomicLongArray(size * SLOT_WIDTH);
+    }
+
+    public void record(Event event, int id) {
+        record(event, id, 0);
+    }
+
+    /**
+     * Records an event.  Only the lower 24 bits of {@code arg} are kept.
+     */
+    public void record(Event event, int id, int arg) {
+        final long seq = cursor.getAndIncrement();
+        final int base = (int) (seq & mask) * SLOT_WIDTH;
+        // invalidate first, so a concurrent dump never accepts a half-written slot
+        slots.set(base, 0);
+        slots.lazySet(base + 1, System.nanoTime());
+        slots.lazySet(base + 2, ((long) event.ordinal() << 56)
+                | ((long) (arg & 0xFFFFFF) << 32)
+                | (id & 0xFFFFFFFFL));
+        slots.lazySet(base, seq + 1);
+    }
+
+    /**
+     * Returns the total number of events recorded, including the ones
+     * that have since been overwritten.
+     */
+    public long recorded() {
+        return cursor.get();
+    }
+
+    /**
+     * Returns the retained events, oldest first.
+     */
+    public List<Entry> snapshot() {
+        final long end = cursor.get();
+        final long start = Math.max(0, end - (mask + 1));
+        final List<Entry> result = new ArrayList<Entry>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            final int base = (int) (seq & mask) * SLOT_WIDTH;
+            if (slots.get(base) != seq + 1) {
+                continue;
+            }
+            final long nanos = slots.get(base + 1);
+            final long packed = slots.get(base + 2);
+            if (slots.get(base) != seq + 1) {
+                continue;
+            }
+            result.add(new Entry(
+                    baseMillis + TimeUnit.NANOSECONDS.toMillis(nanos - baseNanos),
+                    EVENTS[(int) (packed >>> 56)],
+                    (int) packed,
+                    (int) ((packed >>> 32) & 0xFFFFFF)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the retained events formatted one per line, oldest first.
+     */
+    public String dump() {
+        final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        final StringBuilder sb = new StringBuilder();
+        for (Entry entry : snapshot()) {
+            sb.append(format.format(new Date(entry.getTimeMillis())))
+              .append(' ').append(entry.getEvent())
+              .append(" id=").append(entry.getId())
+              .append(" arg=").append(entry.getArg())
+              .append('\n');
+        }
+        return sb.toString();
+    }
+
+    public static final class Entry {
+        private final long timeMillis;
+        private final Event event;
+        private final int id;
+        private final int arg;
+
+        Entry(long timeMillis, Event event, int id, int arg) {
+            this.timeMillis = timeMillis;
+            this.event = event;
+            this.id = id;
+            this.arg = arg;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public Event getEvent() {
+            return event;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public int getArg() {
+            return arg;
+        }
+
+        @Override
+        public String toString() {
+            return event + "(id=" + id + ", arg=" + arg + ")";
+        }
+    }
+}
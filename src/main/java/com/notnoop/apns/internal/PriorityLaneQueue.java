@@ -0,0 +1,315 @@
+package com.notnoop.apns.internal;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.NotificationPriority;
+import com.notnoop.apns.PriorityClassifier;
+import com.notnoop.exceptions.NotificationDroppedException;
+
+/**
+ * A bounded blocking queue with a FIFO lane per {@link NotificationPriority}.
+ *
+ * Consumers are served by weighted round robin: each turn a lane may hand
+ * out up to its weight in notifications before the next non-empty lane
+ * gets its turn, so bulk traffic keeps moving without delaying urgent
+ * notifications by more than a few writes.
+ *
+ * When the queue is full, a new notification takes the place of the oldest
+ * notification of a lower priority, which is reported to the delegate as
+ * dropped.  Only when nothing ranks lower is the new notification refused.
+ */
+public class PriorityLaneQueue extends AbstractQueue<ApnsNotification> implements BlockingQueue<ApnsNotification> {
+
+    private static final NotificationPriority[] PRIORITIES = NotificationPriority.values();
+
+    private final int capacity;
+    private final PriorityClassifier classifier;
+    private final ApnsDelegate delegate;
+    private final int[] weights;
+
+    private final List<ArrayDeque<ApnsNotification>> lanes;
+    private int count;
+    private int turn;
+    private int credit;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * @param capacity   maximum number of queued notifications over all lanes
+     * @param classifier assigns notifications to lanes
+     * @param weights    the number of notifications each lane hands out per turn,
+     *                   indexed by {@link NotificationPriority#ordinal()}
+     * @param delegate   gets notified of the notifications shed to make room
+     */
+    public PriorityLaneQueue(int capacity, PriorityClassifier classifier, int[] weights, ApnsDelegate delegate) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (weights.length != PRIORITIES.length) {
+            throw new IllegalArgumentException("expected a weight for each of " + PRIORITIES.length + " priorities");
+        }
+        for (int weight : weights) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("weights must be positive");
+            }
+        }
+        this.capacity = capacity;
+        this.classifier = classifier == null ? PriorityClassifier.DEFAULT : classifier;
+        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+        this.weights = weights.clone();
+        this.lanes = new ArrayList<ArrayDeque<ApnsNotification>>(PRIORITIES.length);
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            lanes.add(new ArrayDeque<ApnsNotification>());
+        }
+        this.credit = weights[0];
+    }
+
+    public boolean offer(ApnsNotification e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        final NotificationPriority priority = classifier.priorityOf(DeadlineNotification.unwrap(e));
+        ApnsNotification shed = null;
+        lock.lock();
+        try {
+            if (count == capacity) {
+                shed = shedBelow(priority);
+                if (shed == null) {
+                    return false;
+                }
+            }
+            insert(e, priority);
+        } finally {
+            lock.unlock();
+        }
+        if (shed != null) {
+            delegate.messageSendFailed(DeadlineNotification.unwrap(shed),
+                    new NotificationDroppedException(NotificationDroppedException.Reason.QUEUE_FULL));
+        }
+        return true;
+    }
+
+    private void insert(ApnsNotification e, NotificationPriority priority) {
+        lanes.get(priority.ordinal()).addLast(e);
+        count++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Removes the oldest notification of the lowest priority below {@code priority}.
+     */
+    private ApnsNotification shedBelow(NotificationPriority priority) {
+        for (int i = PRIORITIES.length - 1; i > priority.ordinal(); i--) {
+            ApnsNotification victim = lanes.get(i).pollFirst();
+            if (victim != null) {
+                count--;
+                return victim;
+            }
+        }
+        return null;
+    }
+
+    public ApnsNotification poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : extract();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next notification in weighted round robin order.  Must only
+     * be called while holding the lock and with a non-empty queue.
+     */
+    private ApnsNotification extract() {
+        while (true) {
+            ArrayDeque<ApnsNotification> lane = lanes.get(turn);
+            if (credit > 0 && !lane.isEmpty()) {
+                credit--;
+                count--;
+                notFull.signal();
+                return lane.pollFirst();
+            }
+            turn = (turn + 1) % PRIORITIES.length;
+            credit = weights[turn];
+        }
+    }
+
+    public ApnsNotification peek() {
+        lock.lock();
+        try {
+            if (count == 0) {
+                return null;
+            }
+            // the lane extract() would serve next
+            int t = turn;
+            if (credit == 0 || lanes.get(t).isEmpty()) {
+                do {
+                    t = (t + 1) % PRIORITIES.length;
+                } while (lanes.get(t).isEmpty());
+            }
+            return lanes.get(t).peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(ApnsNotification e) throws InterruptedException {
+        offer(e, -1, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits up to {@code timeout} for free space; a negative timeout waits indefinitely.
+     */
+    public boolean offer(ApnsNotification e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (offer(e)) {
+            return true;
+        }
+        final NotificationPriority priority = classifier.priorityOf(DeadlineNotification.unwrap(e));
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) {
+                if (timeout < 0) {
+                    notFull.await();
+                } else if (nanos <= 0) {
+                    return false;
+                } else {
+                    nanos = notFull.awaitNanos(nanos);
+                }
+            }
+            insert(e, priority);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ApnsNotification take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return extract();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ApnsNotification poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return extract();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queued notifications of the given priority.
+     */
+    public int size(NotificationPriority priority) {
+        lock.lock();
+        try {
+            return lanes.get(priority.ordinal()).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (ArrayDeque<ApnsNotification> lane : lanes) {
+                if (lane.removeFirstOccurrence(o)) {
+                    count--;
+                    notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int drainTo(Collection<? super ApnsNotification> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super ApnsNotification> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && count > 0) {
+                c.add(extract());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the queued notifications, highest priority
+     * first.  Removing through the iterator is not supported.
+     */
+    public Iterator<ApnsNotification> iterator() {
+        lock.lock();
+        try {
+            List<ApnsNotification> snapshot = new ArrayList<ApnsNotification>(count);
+            for (ArrayDeque<ApnsNotification> lane : lanes) {
+                snapshot.addAll(lane);
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
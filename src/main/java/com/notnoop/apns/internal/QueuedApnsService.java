@@ -30,55 +30,277 @@
  */
 package com.notnoop.apns.internal;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsMetrics;
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.NotificationPriority;
+import com.notnoop.apns.PriorityClassifier;
+import com.notnoop.apns.QueueOverflowPolicy;
+import com.notnoop.apns.QueueWatermarkListener;
 import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.NotificationDroppedException;
 
 public class QueuedApnsService extends AbstractApnsService {
 
     private static final Logger logger = LoggerFactory.getLogger(QueuedApnsService.class);
+    private static final long FLUSH_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
 
     private ApnsService service;
     private BlockingQueue<ApnsNotification> queue;
     private AtomicBoolean started = new AtomicBoolean(false);
 
+    private final QueueOverflowPolicy overflowPolicy;
+    private final long blockTimeoutMillis;
+    private final PriorityClassifier classifier;
+    private final ApnsDelegate delegate;
+    private ApnsMetrics metrics;
+
+    private QueueWatermarkListener watermarkListener;
+    private int highWatermark;
+    private int lowWatermark;
+    private final AtomicBoolean aboveWatermark = new AtomicBoolean(false);
+
+    // workers count themselves in before they take from the queue, so that a
+    // notification is always either queued or in flight until it is sent
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger idleWorkers = new AtomicInteger();
+    private final AtomicInteger flushWaiters = new AtomicInteger();
+    private final Object workMonitor = new Object();
+    private final Object flushMonitor = new Object();
+
     public QueuedApnsService(ApnsService service) {
         this(service, null);
     }
 
     public QueuedApnsService(ApnsService service, final ThreadFactory tf) {
+        this(service, tf, 0, QueueOverflowPolicy.REJECT, 0, null, null);
+    }
+
+    /**
+     * @param capacity           maximum number of queued notifications, or a
+     *                           non-positive value for an unbounded queue
+     * @param overflowPolicy     what {@link #push(ApnsNotification)} does when the queue is full
+     * @param blockTimeoutMillis how long {@link QueueOverflowPolicy#BLOCK} waits
+     *                           for space, or a non-positive value to wait indefinitely
+     * @param classifier         priorities for {@link QueueOverflowPolicy#DROP_LOWEST_PRIORITY}
+     * @param delegate           gets notified of the notifications dropped by the overflow policy
+     */
+    public QueuedApnsService(ApnsService service, final ThreadFactory tf, int capacity,
+                             QueueOverflowPolicy overflowPolicy, long blockTimeoutMillis,
+                             PriorityClassifier classifier, ApnsDelegate delegate) {
+        this(service, tf, new LinkedBlockingQueue<ApnsNotification>(capacity > 0 ? capacity : Integer.MAX_VALUE),
+                overflowPolicy, blockTimeoutMillis, classifier, delegate);
+    }
+
+    /**
+     * Same as above, but queues into the given {@code queue}, whose capacity
+     * bounds the service.  {@link QueueOverflowPolicy#DROP_LOWEST_PRIORITY}
+     * requires a queue that supports removing arbitrary elements.
+     */
+    public QueuedApnsService(ApnsService service, final ThreadFactory tf, BlockingQueue<ApnsNotification> queue,
+                             QueueOverflowPolicy overflowPolicy, long blockTimeoutMillis,
+                             PriorityClassifier classifier, ApnsDelegate delegate) {
         super(null);
         this.service = service;
-        this.queue = new LinkedBlockingQueue<ApnsNotification>();
+        this.queue = queue;
         this.threadFactory = tf == null ? Executors.defaultThreadFactory() : tf;
-        this.thread = null;
+        this.overflowPolicy = overflowPolicy == null ? QueueOverflowPolicy.REJECT : overflowPolicy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.classifier = classifier == null ? PriorityClassifier.DEFAULT : classifier;
+        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+    }
+
+    /**
+     * Counts the notifications dropped because they expired while queued.
+     *
+     * Must be called before the service is started.
+     */
+    public void setMetrics(ApnsMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Registers a listener to be notified when the number of queued
+     * notifications reaches {@code high}, and again once it has drained
+     * down to {@code low}.
+     *
+     * Must be called before the service is started.
+     */
+    public void setWatermarks(int high, int low, QueueWatermarkListener listener) {
+        if (low >= high) {
+            throw new IllegalArgumentException("low watermark must be below the high watermark");
+        }
+        this.highWatermark = high;
+        this.lowWatermark = low;
+        this.watermarkListener = listener;
+    }
+
+    /**
+     * Drains the queue with {@code workers} threads, each of which takes up
+     * to {@code batchSize} queued notifications at a time and hands them to
+     * the underlying service in one go.  By default a single thread sends
+     * one notification at a time.
+     *
+     * Notifications drained by different workers may be sent out of order.
+     * Must be called before the service is started.
+     */
+    public void setDrainParallelism(int workers, int batchSize) {
+        if (workers < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("workers and batchSize must be positive");
+        }
+        this.drainWorkers = workers;
+        this.drainBatchSize = batchSize;
     }
 
     @Override
     public void push(ApnsNotification msg) {
-        logger.debug("CC QueuedApnsService QueuedApnsService QueuedApnsService");
         if (!started.get()) {
             throw new IllegalStateException("service hasn't be started or was closed");
         }
-        logger.debug("CC QueuedApnsService 11111111 add msg = {} begin ", msg);
-        boolean result = queue.add(msg);
-        logger.debug("CC QueuedApnsService 11111111 add msg = {} end, success = {}", msg, result);
+        if (!enqueue(DeadlineNotification.capture(msg), overflowPolicy)) {
+            throw new NotificationDroppedException(NotificationDroppedException.Reason.QUEUE_FULL);
+        }
+        wakeWorker();
+        checkHighWatermark();
+    }
+
+    /**
+     * Queues the notification only if there is room for it right away,
+     * regardless of the overflow policy.
+     *
+     * @return {@code false} if the queue was full
+     */
+    @Override
+    public boolean tryPush(ApnsNotification msg) {
+        if (!started.get()) {
+            throw new IllegalStateException("service hasn't be started or was closed");
+        }
+        if (!queue.offer(DeadlineNotification.capture(msg))) {
+            return false;
+        }
+        wakeWorker();
+        checkHighWatermark();
+        return true;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private boolean enqueue(ApnsNotification msg, QueueOverflowPolicy policy) {
+        switch (policy) {
+            case BLOCK:
+                try {
+                    if (blockTimeoutMillis <= 0) {
+                        queue.put(msg);
+                    } else if (!queue.offer(msg, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                        return false;
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            case DROP_OLDEST:
+                while (!queue.offer(msg)) {
+                    ApnsNotification oldest = queue.poll();
+                    if (oldest != null) {
+                        dropped(oldest);
+                    }
+                }
+                break;
+            case DROP_LOWEST_PRIORITY:
+                NotificationPriority priority = null;
+                while (!queue.offer(msg)) {
+                    if (priority == null) {
+                        priority = classifier.priorityOf(DeadlineNotification.unwrap(msg));
+                    }
+                    ApnsNotification victim = lowestPriorityVictim(priority);
+                    if (victim == null) {
+                        // the new notification is the least important one, reject it
+                        return false;
+                    }
+                    if (queue.remove(victim)) {
+                        dropped(victim);
+                    }
+                }
+                break;
+            default:
+                return queue.offer(msg);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the oldest queued notification of the lowest priority, as long
+     * as it does not outrank {@code incoming}.  This scans the queue, but only
+     * while it is full, and stops at the first {@link NotificationPriority#LOW}
+     * notification.
+     */
+    private ApnsNotification lowestPriorityVictim(NotificationPriority incoming) {
+        ApnsNotification victim = null;
+        NotificationPriority victimPriority = incoming;
+        for (Iterator<ApnsNotification> it = queue.iterator(); it.hasNext(); ) {
+            ApnsNotification candidate = it.next();
+            NotificationPriority priority = classifier.priorityOf(DeadlineNotification.unwrap(candidate));
+            if (victim == null ? !victimPriority.isLowerThan(priority) : priority.isLowerThan(victimPriority)) {
+                victim = candidate;
+                victimPriority = priority;
+                if (priority == NotificationPriority.LOW) {
+                    break;
+                }
+            }
+        }
+        return victim;
+    }
+
+    private void dropped(ApnsNotification msg) {
+        if (msg != null) {
+            delegate.messageSendFailed(DeadlineNotification.unwrap(msg),
+                    new NotificationDroppedException(NotificationDroppedException.Reason.QUEUE_FULL));
+        }
+    }
+
+    private void checkHighWatermark() {
+        if (watermarkListener != null) {
+            int size = queue.size();
+            if (size >= highWatermark && aboveWatermark.compareAndSet(false, true)) {
+                watermarkListener.highWatermarkReached(size);
+            }
+        }
+    }
+
+    private void checkLowWatermark() {
+        if (watermarkListener != null) {
+            int size = queue.size();
+            if (size <= lowWatermark && aboveWatermark.compareAndSet(true, false)) {
+                watermarkListener.lowWatermarkReached(size);
+            }
+        }
     }
 
     private final ThreadFactory threadFactory;
-    private Thread thread;
+    private final List<Thread> threads = new ArrayList<Thread>();
     private volatile boolean shouldContinue;
+    private int drainWorkers = 1;
+    private int drainBatchSize = 1;
 
     public void start() {
         if (started.getAndSet(true)) {
@@ -90,34 +312,220 @@ public class QueuedApnsService extends AbstractApnsService {
 
         service.start();
         shouldContinue = true;
-        thread = threadFactory.newThread(new Runnable() {
-            public void run() {
-                while (shouldContinue) {
-                    try {
-                        logger.debug("CC QueuedApnsService try to take msg waiting.......");
-                        ApnsNotification msg = queue.take();
-                        logger.debug("CC QueuedApnsService take msg = {} OK.......", msg);
-                        service.push(msg);
-                    } catch (InterruptedException e) {
-                        // ignore
-                        logger.debug("CC QueuedApnsService InterruptedException EEEEEEEEEEEEEEE = ", e);
-                    } catch (NetworkIOException e) {
-                        // ignore: failed connect...
-                        logger.debug("CC QueuedApnsService NetworkIOException EEEEEEEEEEEEEEE = ", e);
-                    } catch (Exception e) {
-                        // weird if we reached here - something wrong is happening, but we shouldn't stop the service anyway!
-                        logger.warn("Unexpected message caught... Shouldn't be here", e);
+        for (int i = 0; i < drainWorkers; i++) {
+            Thread thread = threadFactory.newThread(new Runnable() {
+                public void run() {
+                    List<ApnsNotification> batch = new ArrayList<ApnsNotification>(drainBatchSize);
+                    while (shouldContinue) {
+                        inFlight.incrementAndGet();
+                        try {
+                            ApnsNotification first = queue.poll();
+                            if (first == null) {
+                                continue;
+                            }
+                            batch.add(first);
+                            if (drainBatchSize > 1) {
+                                queue.drainTo(batch, drainBatchSize - 1);
+                            }
+                            checkLowWatermark();
+                            dropExpired(batch);
+                            if (!batch.isEmpty()) {
+                                send(batch);
+                            }
+                        } catch (NetworkIOException e) {
+                            // ignore: failed connect...
+                        } catch (NotificationDroppedException e) {
+                            // past its deadline or expired, the delegate has been told
+                            logger.debug("Queued notification dropped", e);
+                        } catch (Exception e) {
+                            // weird if we reached here - something wrong is happening, but we shouldn't stop the service anyway!
+                            logger.warn("Unexpected message caught... Shouldn't be here", e);
+                        } finally {
+                            final boolean idle = batch.isEmpty();
+                            batch.clear();
+                            outOfFlight();
+                            if (idle) {
+                                awaitWork();
+                            }
+                        }
                     }
                 }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Removes the notifications that expired while queued, as Apple would
+     * discard them anyway, and the ones whose push deadline has passed.
+     */
+    private void dropExpired(List<ApnsNotification> batch) {
+        final long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        for (Iterator<ApnsNotification> it = batch.iterator(); it.hasNext(); ) {
+            ApnsNotification msg = it.next();
+            if (msg instanceof DeadlineNotification && ((DeadlineNotification) msg).isPast()) {
+                it.remove();
+                delegate.messageSendFailed(DeadlineNotification.unwrap(msg),
+                        new NotificationDroppedException(NotificationDroppedException.Reason.DEADLINE_EXCEEDED));
+            } else if (Utilities.isExpired(msg, now)) {
+                it.remove();
+                if (metrics != null) {
+                    metrics.expiredDropped();
+                }
+                delegate.messageSendFailed(DeadlineNotification.unwrap(msg),
+                        new NotificationDroppedException(NotificationDroppedException.Reason.EXPIRED));
             }
-        });
-        thread.start();
+        }
+    }
+
+    /**
+     * Blocks an idle worker until a notification is queued.
+     */
+    private void awaitWork() {
+        idleWorkers.incrementAndGet();
+        try {
+            synchronized (workMonitor) {
+                while (shouldContinue && queue.isEmpty()) {
+                    // pushes wake us up; the timeout only guards against a lost wake-up
+                    workMonitor.wait(100);
+                }
+            }
+        } catch (InterruptedException e) {
+            // ignore
+        } finally {
+            idleWorkers.decrementAndGet();
+        }
+    }
+
+    private void wakeWorker() {
+        if (idleWorkers.get() > 0) {
+            synchronized (workMonitor) {
+                workMonitor.notify();
+            }
+        }
+    }
+
+    private void outOfFlight() {
+        if (inFlight.decrementAndGet() == 0 && flushWaiters.get() > 0) {
+            synchronized (flushMonitor) {
+                flushMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the queue has been drained into the underlying service,
+     * then flushes it.
+     */
+    public void flush() throws NetworkIOException {
+        try {
+            awaitDrained(Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        service.flush();
+    }
+
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException, NetworkIOException {
+        return service.awaitReady(timeout, unit);
+    }
+
+    public boolean awaitConfirmation(long timeout, TimeUnit unit) throws InterruptedException {
+        final long timeoutNanos = unit.toNanos(timeout);
+        final long start = System.nanoTime();
+        if (!awaitDrained(timeoutNanos)) {
+            return false;
+        }
+        service.flush();
+        return service.awaitConfirmation(timeoutNanos - (System.nanoTime() - start), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits until the queue is empty and no worker is sending.  Since a
+     * worker counts itself in flight before it takes from the queue, a
+     * notification can't slip through between the two checks.
+     */
+    private boolean awaitDrained(long timeoutNanos) throws InterruptedException {
+        final long start = System.nanoTime();
+        flushWaiters.incrementAndGet();
+        try {
+            synchronized (flushMonitor) {
+                while (!queue.isEmpty() || inFlight.get() > 0) {
+                    final long remaining = timeoutNanos - (System.nanoTime() - start);
+                    if (remaining <= 0 || !started.get()) {
+                        return false;
+                    }
+                    // workers don't notify when only the queue got empty, so look again every so often
+                    TimeUnit.NANOSECONDS.timedWait(flushMonitor, Math.min(remaining, FLUSH_POLL_NANOS));
+                }
+                return true;
+            }
+        } finally {
+            flushWaiters.decrementAndGet();
+        }
+    }
+
+    private void send(List<ApnsNotification> batch) {
+        for (ApnsNotification msg : batch) {
+            if (msg instanceof DeadlineNotification) {
+                sendWithDeadlines(batch);
+                return;
+            }
+        }
+        if (batch.size() == 1) {
+            service.push(batch.get(0));
+        } else if (service instanceof AbstractApnsService) {
+            ((AbstractApnsService) service).pushAll(batch);
+        } else {
+            for (ApnsNotification msg : batch) {
+                service.push(msg);
+            }
+        }
+    }
+
+    /**
+     * Sends the notifications pushed with a deadline one by one, each
+     * bounded by its deadline, and the others together.
+     */
+    private void sendWithDeadlines(List<ApnsNotification> batch) {
+        List<ApnsNotification> others = new ArrayList<ApnsNotification>(batch.size());
+        for (ApnsNotification msg : batch) {
+            if (!(msg instanceof DeadlineNotification)) {
+                others.add(msg);
+                continue;
+            }
+            DeadlineNotification bounded = (DeadlineNotification) msg;
+            if (bounded.isPast()) {
+                // the ones sent before took too long
+                delegate.messageSendFailed(bounded.getNotification(),
+                        new NotificationDroppedException(NotificationDroppedException.Reason.DEADLINE_EXCEEDED));
+                continue;
+            }
+            final Long previous = DeadlineNotification.enter(bounded.getDeadlineNanos());
+            try {
+                service.push(bounded.getNotification());
+            } catch (NotificationDroppedException e) {
+                // the connection reported it to the delegate
+            } catch (NetworkIOException e) {
+                // ignore: failed connect...
+            } finally {
+                DeadlineNotification.exit(previous);
+            }
+        }
+        if (!others.isEmpty()) {
+            send(others);
+        }
     }
 
     public void stop() {
         started.set(false);
         shouldContinue = false;
-        thread.interrupt();
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        threads.clear();
         service.stop();
     }
 
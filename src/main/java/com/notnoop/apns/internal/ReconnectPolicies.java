@@ -30,7 +30,11 @@
  */
 package com.notnoop.apns.internal;
 
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
 import com.notnoop.apns.ReconnectPolicy;
+import com.notnoop.apns.TrafficAwareReconnectPolicy;
 
 public final class ReconnectPolicies {
 
@@ -47,39 +51,310 @@ public final class ReconnectPolicies {
         public Always copy() { return this; }
     }
 
-    public static class EveryHalfHour implements ReconnectPolicy {
-        private static final long PERIOD = 30 * 60 * 1000;
+    /**
+     * Makes a new connection once the current one has lasted for a period.
+     *
+     * Each period is shortened by a random share of up to {@code jitter}.
+     * Copies are phase shifted against each other: the first period of
+     * each copy is shortened by a share of it that differs from copy to
+     * copy.  The shares follow the golden ratio, which spreads them evenly
+     * whatever the number of copies, so that the connections of a pool,
+     * which are all made at about the same time, don't all reconnect at
+     * the same time either.
+     */
+    public static class Periodic implements ReconnectPolicy {
+        private static final double GOLDEN_RATIO_CONJUGATE = 0.6180339887498949;
+
+        private final long period;
+        private final double jitter;
+        private final Random random = new Random();
+        private double phase;
+        private int copies;
 
-        private long lastRunning = System.currentTimeMillis();
+        private volatile long deadline;
+
+        /**
+         * @param period the time after which a connection is replaced
+         * @param jitter the share of each period, between 0 and 1, that is randomly taken off
+         */
+        public Periodic(long period, TimeUnit unit, double jitter) {
+            this(unit.toMillis(period), jitter, 0);
+        }
+
+        protected Periodic(long periodMillis, double jitter, double phase) {
+            if (periodMillis <= 0 || jitter < 0 || jitter > 1) {
+                throw new IllegalArgumentException("period must be positive and jitter between 0 and 1");
+            }
+            this.period = periodMillis;
+            this.jitter = jitter;
+            this.phase = phase;
+            this.deadline = System.currentTimeMillis() + period;
+        }
 
         public boolean shouldReconnect() {
-            return System.currentTimeMillis() - lastRunning > PERIOD;
+            return System.currentTimeMillis() > deadline;
+        }
+
+        public synchronized void reconnected() {
+            long next = jitter == 0 ? period : period - (long) (period * jitter * random.nextDouble());
+            // only the first connection of a copy is phase shifted
+            next -= (long) (next * phase);
+            phase = 0;
+            deadline = System.currentTimeMillis() + next;
         }
 
-        public void reconnected() {
-            lastRunning = System.currentTimeMillis();
+        protected long getPeriodMillis() {
+            return period;
+        }
+
+        protected double getJitter() {
+            return jitter;
+        }
+
+        /**
+         * Returns the share of the first period the next copy drops.
+         */
+        protected synchronized double nextPhase() {
+            copies++;
+            final double shift = copies * GOLDEN_RATIO_CONJUGATE;
+            return shift - Math.floor(shift);
+        }
+
+        public Periodic copy() {
+            return new Periodic(period, jitter, nextPhase());
+        }
+    }
+
+    public static class EveryHalfHour extends Periodic {
+        private static final long PERIOD = 30 * 60 * 1000;
+
+        public EveryHalfHour() {
+            this(0);
+        }
+
+        public EveryHalfHour(double jitter) {
+            super(PERIOD, jitter, 0);
+        }
+
+        private EveryHalfHour(double jitter, double phase) {
+            super(PERIOD, jitter, phase);
         }
 
         public EveryHalfHour copy() {
-            return new EveryHalfHour();
+            return new EveryHalfHour(getJitter(), nextPhase());
         }
     }
 
-    public static class FiveMinutes implements ReconnectPolicy {
+    public static class FiveMinutes extends Periodic {
         private static final long PERIOD = 5 * 60 * 1000;
 
-        private long lastRunning = System.currentTimeMillis();
+        public FiveMinutes() {
+            this(0);
+        }
 
-        public boolean shouldReconnect() {
-            return System.currentTimeMillis() - lastRunning > PERIOD;
+        public FiveMinutes(double jitter) {
+            super(PERIOD, jitter, 0);
         }
 
-        public void reconnected() {
-            lastRunning = System.currentTimeMillis();
+        private FiveMinutes(double jitter, double phase) {
+            super(PERIOD, jitter, phase);
         }
 
         public FiveMinutes copy() {
-            return new FiveMinutes();
+            return new FiveMinutes(getJitter(), nextPhase());
+        }
+    }
+
+    /**
+     * Lets at most {@code maxConcurrent} connections reconnect at once when
+     * their policy asks for it; the others keep their connection until one
+     * of them is done.  Copies share the limit, so that a pool, which
+     * copies the policy for each of its connections, rotates them a few at
+     * a time.
+     *
+     * A connection that is closed before it reconnects gives up its turn
+     * after a minute.  Traffic is passed on to the wrapped policy if it
+     * takes it into account.
+     */
+    public static class Staggered implements TrafficAwareReconnectPolicy {
+        private static final long LEASE_MILLIS = 60 * 1000;
+
+        private final ReconnectPolicy policy;
+        private final long[] leases;
+        private int slot = -1;
+        private long lease;
+
+        public Staggered(ReconnectPolicy policy, int maxConcurrent) {
+            this(policy, new long[checkPositive(maxConcurrent)]);
+        }
+
+        private static int checkPositive(int maxConcurrent) {
+            if (maxConcurrent < 1) {
+                throw new IllegalArgumentException("maxConcurrent must be positive");
+            }
+            return maxConcurrent;
+        }
+
+        private Staggered(ReconnectPolicy policy, long[] leases) {
+            this.policy = policy;
+            this.leases = leases;
+        }
+
+        public synchronized boolean shouldReconnect() {
+            if (!policy.shouldReconnect()) {
+                return false;
+            }
+            if (slot < 0) {
+                acquire();
+            }
+            return slot >= 0;
+        }
+
+        public synchronized void reconnected() {
+            policy.reconnected();
+            if (slot >= 0) {
+                synchronized (leases) {
+                    if (leases[slot] == lease) {
+                        leases[slot] = 0;
+                    }
+                }
+                slot = -1;
+            }
+        }
+
+        public void notificationsSent(int notifications, int bytes) {
+            if (policy instanceof TrafficAwareReconnectPolicy) {
+                ((TrafficAwareReconnectPolicy) policy).notificationsSent(notifications, bytes);
+            }
+        }
+
+        public void errorOccurred() {
+            if (policy instanceof TrafficAwareReconnectPolicy) {
+                ((TrafficAwareReconnectPolicy) policy).errorOccurred();
+            }
+        }
+
+        public boolean isStale() {
+            return policy instanceof TrafficAwareReconnectPolicy && ((TrafficAwareReconnectPolicy) policy).isStale();
+        }
+
+        private void acquire() {
+            final long now = System.currentTimeMillis();
+            synchronized (leases) {
+                for (int i = 0; i < leases.length; i++) {
+                    if (leases[i] <= now) {
+                        slot = i;
+                        lease = now + LEASE_MILLIS;
+                        leases[i] = lease;
+                        return;
+                    }
+                }
+            }
+        }
+
+        public Staggered copy() {
+            return new Staggered(policy.copy(), leases);
+        }
+    }
+
+    /**
+     * Makes a new connection when the current one is likely to be stale or
+     * unhealthy, rather than on a timer:
+     * <ul>
+     * <li>before the first write after it stayed idle for longer than
+     * {@code maxIdle}, as firewalls and NAT devices silently drop idle
+     * connections, and the write would vanish;</li>
+     * <li>once {@code maxNotifications} notifications or {@code maxBytes}
+     * bytes have been written over it, if set;</li>
+     * <li>when at least {@code errorRate} of the writes over the last minute
+     * failed or drew an error-response, in case it landed on a bad gateway
+     * host.</li>
+     * </ul>
+     * A busy and healthy connection is kept.
+     */
+    public static class Adaptive implements TrafficAwareReconnectPolicy {
+        private static final long ERROR_WINDOW_MILLIS = 60 * 1000;
+        /** errors needed in the window before the rate counts */
+        private static final int MIN_ERRORS = 3;
+
+        private final long maxIdle;
+        private final long maxNotifications;
+        private final long maxBytes;
+        private final double errorRate;
+
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile long notifications, bytes;
+        private volatile boolean erroneous;
+        private long windowStart = System.currentTimeMillis();
+        private int windowWrites, windowErrors;
+
+        /**
+         * @param maxIdle          the idle time after which the next write goes over a new connection
+         * @param maxNotifications notifications after which to reconnect, 0 for no limit
+         * @param maxBytes         bytes after which to reconnect, 0 for no limit
+         * @param errorRate        the share of failed writes, between 0 and 1, after which to reconnect
+         */
+        public Adaptive(long maxIdle, TimeUnit unit, long maxNotifications, long maxBytes, double errorRate) {
+            if (maxIdle <= 0 || maxNotifications < 0 || maxBytes < 0 || errorRate <= 0 || errorRate > 1) {
+                throw new IllegalArgumentException("maxIdle must be positive, limits not negative and errorRate between 0 and 1");
+            }
+            this.maxIdle = unit.toMillis(maxIdle);
+            this.maxNotifications = maxNotifications;
+            this.maxBytes = maxBytes;
+            this.errorRate = errorRate;
+        }
+
+        public boolean shouldReconnect() {
+            return isStale()
+                    || (maxNotifications > 0 && notifications >= maxNotifications)
+                    || (maxBytes > 0 && bytes >= maxBytes)
+                    || erroneous;
+        }
+
+        public boolean isStale() {
+            return System.currentTimeMillis() - lastActivity > maxIdle;
+        }
+
+        public synchronized void reconnected() {
+            lastActivity = System.currentTimeMillis();
+            notifications = 0;
+            bytes = 0;
+            if (erroneous) {
+                // give the new connection a clean slate
+                erroneous = false;
+                windowStart = lastActivity;
+                windowWrites = 0;
+                windowErrors = 0;
+            }
+        }
+
+        public synchronized void notificationsSent(int notifications, int bytes) {
+            lastActivity = System.currentTimeMillis();
+            this.notifications += notifications;
+            this.bytes += bytes;
+            roll(lastActivity);
+            windowWrites += notifications;
+        }
+
+        public synchronized void errorOccurred() {
+            final long now = System.currentTimeMillis();
+            roll(now);
+            windowErrors++;
+            if (windowErrors >= MIN_ERRORS && windowErrors >= errorRate * (windowWrites + windowErrors)) {
+                erroneous = true;
+            }
+        }
+
+        private void roll(long now) {
+            if (now - windowStart > ERROR_WINDOW_MILLIS) {
+                windowStart = now;
+                windowWrites = 0;
+                windowErrors = 0;
+            }
+        }
+
+        public Adaptive copy() {
+            return new Adaptive(maxIdle, TimeUnit.MILLISECONDS, maxNotifications, maxBytes, errorRate);
         }
     }
 }
@@ -0,0 +1,62 @@
+package com.notnoop.apns.internal;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How often and after what delays a failed write or feedback read is
+ * retried.
+ *
+ * The delay doubles with every retry, up to a maximum.  Each delay is
+ * shortened by a random share of up to {@code jitter}, so that the
+ * connections of a pool, which all fail at once when the gateway goes
+ * away, don't all come back at once either.
+ */
+public class RetryBackoff {
+
+    /**
+     * Three attempts, the last one half a second to a second after the
+     * second.
+     */
+    public static final RetryBackoff DEFAULT = new RetryBackoff(3, 1, 1, TimeUnit.SECONDS, 0.5);
+
+    private final int maxAttempts;
+    private final long initialDelayNanos;
+    private final long maxDelayNanos;
+    private final double jitter;
+    private final Random random = new Random();
+
+    /**
+     * @param maxAttempts  how many times to try at most, the first attempt included
+     * @param initialDelay the delay before the first delayed retry
+     * @param maxDelay     the longest delay
+     * @param jitter       the share of each delay, between 0 and 1, that is randomly taken off
+     */
+    public RetryBackoff(int maxAttempts, long initialDelay, long maxDelay, TimeUnit unit, double jitter) {
+        if (maxAttempts < 1 || initialDelay < 0 || maxDelay < initialDelay || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive, delays ordered and jitter between 0 and 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialDelayNanos = unit.toNanos(initialDelay);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.jitter = jitter;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Returns how long to wait before the next attempt.
+     *
+     * @param delayedRetries how many delayed retries came before it
+     */
+    public long delayNanos(int delayedRetries) {
+        long delay = initialDelayNanos;
+        for (int i = 0; i < delayedRetries && delay < maxDelayNanos; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayNanos);
+        return jitter == 0 ? delay : delay - (long) (delay * jitter * random.nextDouble());
+    }
+}
@@ -0,0 +1,159 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.ScheduledNotification;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * Holds scheduled notifications in a {@link TimingWheel} and pushes them to
+ * another service once they are due, optionally no faster than a rate
+ * limit, so that a large batch scheduled for the same time doesn't hit the
+ * service all at once.
+ *
+ * Notifications pushed directly go straight to the other service.
+ */
+public class SchedulingApnsService extends AbstractApnsService {
+
+    private static final Logger logger = LoggerFactory.getLogger(SchedulingApnsService.class);
+
+    private final ApnsService service;
+    private final TimingWheel wheel;
+    private final long tickNanos;
+    private final TokenBucket releaseLimiter;
+    private final ThreadFactory threadFactory;
+
+    private Thread releaser;
+    private volatile boolean shouldContinue;
+
+    /**
+     * @param tick           the resolution of delivery times
+     * @param releaseLimiter limits the rate due notifications are pushed at, may be {@code null}
+     * @param tf             creates the thread pushing due notifications, may be {@code null}
+     */
+    public SchedulingApnsService(ApnsService service, long tick, TimeUnit unit, TokenBucket releaseLimiter,
+                                 ThreadFactory tf) {
+        super(null);
+        this.service = service;
+        this.wheel = new TimingWheel(tick, unit);
+        this.tickNanos = unit.toNanos(tick);
+        this.releaseLimiter = releaseLimiter;
+        this.threadFactory = tf == null ? Executors.defaultThreadFactory() : tf;
+    }
+
+    @Override
+    public ScheduledNotification scheduleAt(ApnsNotification message, Date time) {
+        if (!shouldContinue) {
+            throw new IllegalStateException("service hasn't be started or was closed");
+        }
+        final long delayMillis = time.getTime() - System.currentTimeMillis();
+        return wheel.schedule(message, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    }
+
+    /**
+     * Returns the number of scheduled notifications that aren't due yet.
+     */
+    public int getScheduledCount() {
+        return wheel.size();
+    }
+
+    @Override
+    public void push(ApnsNotification message) throws NetworkIOException {
+        service.push(message);
+    }
+
+    @Override
+    public boolean tryPush(ApnsNotification message) throws NetworkIOException {
+        return service.tryPush(message);
+    }
+
+    @Override
+    public void pushAll(Collection<? extends ApnsNotification> messages) throws NetworkIOException {
+        if (service instanceof AbstractApnsService) {
+            ((AbstractApnsService) service).pushAll(messages);
+        } else {
+            super.pushAll(messages);
+        }
+    }
+
+    public synchronized void start() {
+        if (shouldContinue) {
+            return;
+        }
+        service.start();
+        shouldContinue = true;
+        releaser = threadFactory.newThread(new Runnable() {
+            public void run() {
+                List<TimingWheel.Entry> due = new ArrayList<TimingWheel.Entry>();
+                while (shouldContinue) {
+                    LockSupport.parkNanos(tickNanos);
+                    wheel.advance(System.nanoTime(), due);
+                    for (TimingWheel.Entry entry : due) {
+                        if (shouldContinue && wheel.release(entry)) {
+                            release(entry.getNotification());
+                        }
+                    }
+                    due.clear();
+                }
+            }
+        });
+        releaser.start();
+    }
+
+    private void release(ApnsNotification message) {
+        try {
+            if (releaseLimiter != null) {
+                releaseLimiter.acquire(1);
+            }
+            service.push(message);
+        } catch (NetworkIOException e) {
+            // the service reported it to the delegate already
+            logger.debug("Failed to push scheduled message " + message.getIdentifier(), e);
+        } catch (Exception e) {
+            logger.warn("Unexpected exception pushing scheduled message " + message.getIdentifier(), e);
+        }
+    }
+
+    public synchronized void stop() {
+        shouldContinue = false;
+        if (releaser != null) {
+            releaser.interrupt();
+            releaser = null;
+        }
+        service.stop();
+    }
+
+    @Override
+    public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        return service.getInactiveDevices();
+    }
+
+    public void flush() throws NetworkIOException {
+        service.flush();
+    }
+
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException, NetworkIOException {
+        return service.awaitReady(timeout, unit);
+    }
+
+    public boolean awaitConfirmation(long timeout, TimeUnit unit) throws InterruptedException {
+        return service.awaitConfirmation(timeout, unit);
+    }
+
+    public void testConnection() throws NetworkIOException {
+        service.testConnection();
+    }
+}
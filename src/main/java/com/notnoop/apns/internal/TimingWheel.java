@@ -0,0 +1,212 @@
+package com.notnoop.apns.internal;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ScheduledNotification;
+
+/**
+ * A hierarchical timing wheel holding notifications until they are due.
+ *
+ * Time advances in ticks.  The first level has a slot per tick for the
+ * next 256 ticks, and each further level has 256 slots spanning 256 times
+ * as long as a slot of the level below.  When the first level wraps
+ * around, the next slot of the level above is cascaded down.  Four levels
+ * cover 2^32 ticks; later deadlines wait in the last level until they come
+ * into range.
+ *
+ * Each slot is an intrusive doubly linked list of entries, so scheduling
+ * and cancelling are constant time, and an entry is the only allocation
+ * per scheduled notification.
+ */
+public class TimingWheel {
+
+    private static final int BITS = 8;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long RANGE = 1L << (BITS * LEVELS);
+
+    // states of an entry that isn't in a slot
+    private static final int DUE = -1;
+    private static final int RELEASED = -2;
+    private static final int CANCELLED = -3;
+
+    private final long tickNanos;
+    private final long originNanos;
+    private final Entry[] heads = new Entry[LEVELS * SLOTS];
+    // the next tick to expire
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(long tick, TimeUnit unit) {
+        this.tickNanos = unit.toNanos(tick);
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tick must be positive");
+        }
+        this.originNanos = System.nanoTime();
+    }
+
+    /**
+     * Adds a notification due at {@code dueNanos}, as given by
+     * {@link System#nanoTime()}.  It becomes due at the first tick at or
+     * after that time, never earlier.
+     */
+    public synchronized Entry schedule(ApnsNotification notification, long dueNanos) {
+        final long t = dueNanos - originNanos;
+        final Entry entry = new Entry(notification, t <= 0 ? 0 : (t + tickNanos - 1) / tickNanos);
+        add(entry);
+        size++;
+        return entry;
+    }
+
+    /**
+     * Expires the ticks up to {@code nowNanos}, moving their notifications
+     * to {@code due}.  Each due entry must then be claimed with
+     * {@link #release(Entry)}, in case it was cancelled in the meantime.
+     */
+    public synchronized void advance(long nowNanos, Collection<Entry> due) {
+        final long nowTick = (nowNanos - originNanos) / tickNanos;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, nowTick + 1);
+            return;
+        }
+        while (currentTick <= nowTick) {
+            final int index = (int) (currentTick & MASK);
+            if (index == 0) {
+                cascade();
+            }
+            Entry entry = heads[index];
+            heads[index] = null;
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.prev = entry.next = null;
+                entry.slot = DUE;
+                size--;
+                due.add(entry);
+                entry = next;
+            }
+            currentTick++;
+        }
+    }
+
+    /**
+     * Claims a due entry for sending.
+     *
+     * @return {@code false} if it was cancelled after becoming due
+     */
+    public synchronized boolean release(Entry entry) {
+        if (entry.slot != DUE) {
+            return false;
+        }
+        entry.slot = RELEASED;
+        return true;
+    }
+
+    /**
+     * Returns the number of notifications that aren't due yet.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private synchronized boolean cancel(Entry entry) {
+        if (entry.slot >= 0) {
+            unlink(entry);
+            size--;
+        } else if (entry.slot != DUE) {
+            return entry.slot == CANCELLED;
+        }
+        entry.slot = CANCELLED;
+        return true;
+    }
+
+    private synchronized boolean isCancelled(Entry entry) {
+        return entry.slot == CANCELLED;
+    }
+
+    /**
+     * Re-adds the entries of the current slot of each level above the first
+     * whose lower levels have all wrapped around, lowest level first.
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            final int index = (int) ((currentTick >>> (BITS * level)) & MASK);
+            final int slot = level * SLOTS + index;
+            Entry entry = heads[slot];
+            heads[slot] = null;
+            while (entry != null) {
+                Entry next = entry.next;
+                add(entry);
+                entry = next;
+            }
+            if (index != 0) {
+                return;
+            }
+        }
+    }
+
+    private void add(Entry entry) {
+        final long delta = entry.deadlineTick - currentTick;
+        final int slot;
+        if (delta < 0) {
+            // overdue, expire with the next tick
+            slot = (int) (currentTick & MASK);
+        } else {
+            final long deadline = delta < RANGE ? entry.deadlineTick : currentTick + RANGE - 1;
+            int level = 0;
+            while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+                level++;
+            }
+            slot = level * SLOTS + (int) ((deadline >>> (BITS * level)) & MASK);
+        }
+        entry.prev = null;
+        entry.next = heads[slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        heads[slot] = entry;
+        entry.slot = slot;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.prev == null) {
+            heads[entry.slot] = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = entry.next = null;
+    }
+
+    /**
+     * A scheduled notification, linked into its slot.
+     */
+    public final class Entry implements ScheduledNotification {
+        private final ApnsNotification notification;
+        private final long deadlineTick;
+        private Entry prev, next;
+        // the index into heads while in the wheel, a negative state otherwise
+        private int slot;
+
+        Entry(ApnsNotification notification, long deadlineTick) {
+            this.notification = notification;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public ApnsNotification getNotification() {
+            return notification;
+        }
+
+        public boolean cancel() {
+            return TimingWheel.this.cancel(this);
+        }
+
+        public boolean isCancelled() {
+            return TimingWheel.this.isCancelled(this);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.notnoop.apns.ApnsMetrics;
+
+/**
+ * A lock-free token bucket rate limiter.
+ *
+ * Implemented as a generic cell rate algorithm: instead of a counter that
+ * some timer refills, it keeps the theoretical time at which the bucket
+ * will be full again, and each acquisition moves that time forward with a
+ * single compare-and-set.  Nothing runs while no one acquires.
+ *
+ * Blocking acquisitions reserve their tokens up front and then sleep until
+ * they are due, so waiting threads are served in the order they arrived.
+ */
+public class TokenBucket {
+
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+    private final int burst;
+    private final ApnsMetrics metrics;
+    private volatile long intervalNanos;
+
+    /**
+     * @param ratePerSecond sustained number of tokens per second
+     * @param burst         number of tokens that can be acquired at once
+     *                      after the bucket has been idle
+     * @param metrics       where to record the time spent waiting, may be {@code null}
+     */
+    public TokenBucket(double ratePerSecond, int burst, ApnsMetrics metrics) {
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be positive");
+        }
+        this.burst = burst;
+        this.metrics = metrics;
+        setRate(ratePerSecond);
+    }
+
+    /**
+     * Changes the sustained rate, keeping the tokens already acquired.
+     */
+    public void setRate(double ratePerSecond) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+    }
+
+    public double getRate() {
+        return (double) TimeUnit.SECONDS.toNanos(1) / intervalNanos;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Acquires {@code permits} tokens if they are available right away.
+     *
+     * @return whether the tokens were acquired
+     */
+    public boolean tryAcquire(int permits) {
+        final long interval = intervalNanos;
+        while (true) {
+            final long now = System.nanoTime();
+            final long current = fullAt.get();
+            final long next = Math.max(current, now) + permits * interval;
+            if (next - now > burst * interval) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Acquires {@code permits} tokens, waiting for them as long as needed.
+     * If the thread gets interrupted, it returns early with its interrupt
+     * flag set.
+     *
+     * @return how long the call waited, in nanoseconds
+     */
+    public long acquire(int permits) {
+        final long interval = intervalNanos;
+        long now;
+        long next;
+        while (true) {
+            now = System.nanoTime();
+            final long current = fullAt.get();
+            next = Math.max(current, now) + permits * interval;
+            if (fullAt.compareAndSet(current, next)) {
+                break;
+            }
+        }
+        final long due = next - burst * interval;
+        if (due - now <= 0) {
+            return 0;
+        }
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+        final long waited = System.nanoTime() - now;
+        if (metrics != null) {
+            metrics.throttled(waited);
+        }
+        return waited;
+    }
+
+    /**
+     * Returns a new, full bucket with the same rate and burst.
+     */
+    public TokenBucket copy() {
+        return new TokenBucket(getRate(), burst, metrics);
+    }
+}
@@ -50,6 +50,7 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
+import com.notnoop.apns.ApnsNotification;
 import com.notnoop.exceptions.InvalidSSLConfig;
 import com.notnoop.exceptions.NetworkIOException;
 import org.slf4j.Logger;
@@ -295,6 +296,16 @@ public final class Utilities {
         }
     }
 
+    /**
+     * Returns whether the expiry of a notification, in seconds since the
+     * epoch, lies before {@code nowSeconds}.  Notifications without an
+     * expiry, or with an expiry of 0, never expire.
+     */
+    public static boolean isExpired(final ApnsNotification notification, final long nowSeconds) {
+        final int expiry = notification.getExpiry();
+        return expiry > 0 && expiry < nowSeconds;
+    }
+
     public static void sleep(final int delay) {
         try {
             Thread.sleep(delay);
@@ -0,0 +1,57 @@
+package com.notnoop.exceptions;
+
+/**
+ * Passed to {@link com.notnoop.apns.ApnsDelegate#messageSendFailed} or thrown
+ * to the caller when the library decided not to send a notification at all,
+ * as opposed to failing while sending it.
+ */
+public class NotificationDroppedException extends ApnsException {
+    private static final long serialVersionUID = -2715431460386407619L;
+
+    /**
+     * Why a notification has been dropped.
+     */
+    public enum Reason {
+        /**
+         * The bounded queue of the service was full and its overflow
+         * policy chose this notification.
+         */
+        QUEUE_FULL,
+
+        /**
+         * The notification expired while waiting to be sent, so Apple would
+         * have discarded it anyway.
+         */
+        EXPIRED,
+
+        /**
+         * A newer notification to the same device with the same collapse
+         * key took its place before it was sent.
+         */
+        COALESCED,
+
+        /**
+         * An equal notification was pushed shortly before, within the
+         * deduplication window.
+         */
+        DUPLICATE,
+
+        /**
+         * The deadline given to
+         * {@link com.notnoop.apns.ApnsService#push(com.notnoop.apns.ApnsNotification, long, java.util.concurrent.TimeUnit)}
+         * passed before the notification could be written.
+         */
+        DEADLINE_EXCEEDED
+    }
+
+    private final Reason reason;
+
+    public NotificationDroppedException(Reason reason) {
+        super("Notification dropped: " + reason);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
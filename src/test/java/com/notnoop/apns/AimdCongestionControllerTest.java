@@ -0,0 +1,88 @@
+package com.notnoop.apns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import com.notnoop.apns.internal.ApnsConnectionImpl;
+import com.notnoop.exceptions.NetworkIOException;
+
+public class AimdCongestionControllerTest {
+
+    @Test
+    public void increasesAdditively() {
+        AimdCongestionController controller = new AimdCongestionController(100, 10, 1000, 10, 0.5, 1000);
+        // a second's worth of notifications adds 10/s
+        controller.onSuccess(100);
+        assertEquals(110, controller.getRate(), 0.001);
+    }
+
+    @Test
+    public void decreasesMultiplicativelyOncePerEpisode() throws InterruptedException {
+        AimdCongestionController controller = new AimdCongestionController(100, 10, 1000, 10, 0.5, 50);
+        assertEquals(50, controller.onCongestion(CongestionController.Signal.PROCESSING_ERROR), 0.001);
+        assertEquals(50, controller.onCongestion(CongestionController.Signal.CONNECT_FAILED), 0.001);
+
+        Thread.sleep(100);
+        assertEquals(25, controller.onCongestion(CongestionController.Signal.CONNECTION_DROPPED), 0.001);
+    }
+
+    @Test
+    public void staysWithinBounds() {
+        AimdCongestionController controller = new AimdCongestionController(100, 80, 105, 10, 0.5, 0);
+        controller.onSuccess(1000);
+        assertEquals(105, controller.getRate(), 0.001);
+        controller.onCongestion(CongestionController.Signal.PROCESSING_ERROR);
+        assertEquals(80, controller.getRate(), 0.001);
+    }
+
+    @Test
+    public void copyStartsOver() {
+        AimdCongestionController controller = new AimdCongestionController(100, 10, 1000, 10, 0.5, 0);
+        controller.onCongestion(CongestionController.Signal.PROCESSING_ERROR);
+        assertEquals(100, controller.copy().getRate(), 0.001);
+    }
+
+    @Test
+    public void connectionReportsFailedConnects() throws IOException {
+        SocketFactory factory = new RefusingSocketFactory();
+        CongestionController controller = mock(CongestionController.class);
+        when(controller.getRate()).thenReturn(100.0);
+        when(controller.onCongestion(any(CongestionController.Signal.class))).thenReturn(50.0);
+
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80);
+        connection.setCongestionController(controller);
+        try {
+            connection.sendMessage(new EnhancedApnsNotification(1, EnhancedApnsNotification.MAXIMUM_EXPIRY, "2342", "{}"));
+            fail("connecting should have failed");
+        } catch (NetworkIOException e) {
+            // expected
+        }
+        verify(controller).onCongestion(CongestionController.Signal.CONNECT_FAILED);
+    }
+
+    private static class RefusingSocketFactory extends SocketFactory {
+        public Socket createSocket(String host, int port) throws IOException {
+            throw new IOException("refused");
+        }
+
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            throw new IOException("refused");
+        }
+
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            throw new IOException("refused");
+        }
+
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            throw new IOException("refused");
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import com.notnoop.apns.APNS;
 import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.StartSendingApnsDelegate;
+import com.notnoop.apns.ApnsMetrics;
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.DeliveryError;
@@ -22,12 +23,13 @@ public class ApnsConnectionCacheTest {
     private ApnsServerStub server;
     private static SimpleApnsNotification msg1 = new SimpleApnsNotification("a87d8878d878a79", "{\"aps\":{}}");
     private static SimpleApnsNotification msg2 = new SimpleApnsNotification("a87d8878d878a88", "{\"aps\":{}}");
+    // expiring in 1970 would get them dropped rather than resent
     private static EnhancedApnsNotification eMsg1 = new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(),
-            1, "a87d8878d878a88", "{\"aps\":{}}");
+            EnhancedApnsNotification.MAXIMUM_EXPIRY, "a87d8878d878a88", "{\"aps\":{}}");
     private static EnhancedApnsNotification eMsg2 = new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(),
-            1, "a87d8878d878a88", "{\"aps\":{}}");
+            EnhancedApnsNotification.MAXIMUM_EXPIRY, "a87d8878d878a88", "{\"aps\":{}}");
     private static EnhancedApnsNotification eMsg3 = new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(),
-            1, "a87d8878d878a88", "{\"aps\":{}}");
+            EnhancedApnsNotification.MAXIMUM_EXPIRY, "a87d8878d878a88", "{\"aps\":{}}");
 
     @Before
     public void startup() {
@@ -57,11 +59,13 @@ public class ApnsConnectionCacheTest {
         final AtomicInteger numStartSend = new AtomicInteger();
         int EXPECTED_RESEND_COUNT = 7;
         int EXPECTED_SEND_COUNT = 12;
+        final ApnsMetrics metrics = new ApnsMetrics();
         server.getWaitForError().acquire();
         server.start();
         ApnsService service =
                 APNS.newService().withSSLContext(clientContext())
                 .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withMetrics(metrics)
                 .withDelegate(new StartSendingApnsDelegate() {
 
             public void startSending(final ApnsNotification message, final boolean resent) {
@@ -115,6 +119,11 @@ public class ApnsConnectionCacheTest {
         Assert.assertEquals(EXPECTED_SEND_COUNT, numSent.get());
         Assert.assertEquals(EXPECTED_SEND_COUNT + 1, numStartSend.get());
 
+        // the resent tail is recorded once its write completes
+        while (metrics.getResentNotifications() < EXPECTED_RESEND_COUNT) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(EXPECTED_RESEND_COUNT, metrics.getResentNotifications());
     }
 
     /**
@@ -105,7 +105,8 @@ public class ApnsConnectionResendTest {
 
     private static EnhancedApnsNotification buildNotification(int id) {
         final String deviceToken = ApnsSimulatorWithVerification.deviceTokenForId(id);
-        return new EnhancedApnsNotification(id, 1, deviceToken, "{\"aps\":{}}");
+        // expiring in 1970 would get them dropped rather than resent
+        return new EnhancedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY, deviceToken, "{\"aps\":{}}");
     }
 
 }
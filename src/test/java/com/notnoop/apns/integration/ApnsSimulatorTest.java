@@ -1,6 +1,8 @@
 package com.notnoop.apns.integration;
 
+import com.notnoop.apns.ApnsMetrics;
 import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.internal.ReconnectPolicies;
 import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Rule;
@@ -12,11 +14,16 @@ import uk.org.lidalia.slf4jtest.LoggingEvent;
 import uk.org.lidalia.slf4jtest.TestLoggerFactory;
 
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -111,6 +118,102 @@ public class ApnsSimulatorTest extends ApnsSimulatorTestBase {
         assertThat(allLoggingEvents, not(hasItem(eventContains("Exception while waiting for error code"))));
     }
 
+    @Test
+    public void rotatesWithoutDroppingTheConnection() throws InterruptedException {
+        service = newServiceBuilder()
+                .withReconnectPolicy(new ReconnectPolicies.Always())
+                .withMakeBeforeBreak(100, TimeUnit.MILLISECONDS)
+                .build();
+        sendCount(10, 0);
+        assertNumberReceived(10);
+        assertDelegateSentCount(10);
+        // retired connections are closed by us, not by the gateway
+        verify(delegate, never()).connectionClosed(Matchers.any(DeliveryError.class), Matchers.anyInt());
+    }
+
+    @Test
+    public void failsOverToWarmStandby() throws InterruptedException {
+        service = newServiceBuilder().withWarmStandby().build();
+        send(0);
+        // give the standby time to connect
+        Thread.sleep(500);
+        send(8, 0);
+        assertNumberReceived(3);
+        verify(delegate, times(1)).connectionClosed(Matchers.any(DeliveryError.class), Matchers.anyInt());
+        assertThat(TestLoggerFactory.getAllLoggingEvents(), hasItem(eventContains("Failing over to standby")));
+    }
+
+    @Test
+    public void resumesTlsSessionOnReconnect() throws InterruptedException {
+        ApnsMetrics metrics = new ApnsMetrics();
+        service = newServiceBuilder()
+                .withSslSessionCache(16, 1, TimeUnit.HOURS)
+                .withMetrics(metrics)
+                .build();
+        send(0);
+        // the session ticket follows the handshake, give the monitor time to read it
+        assertNumberReceived(1);
+        Thread.sleep(100);
+        service.testConnection();
+        Assert.assertEquals(2, metrics.getFullHandshakes() + metrics.getResumedHandshakes());
+        Assert.assertEquals(1, metrics.getResumedHandshakes());
+    }
+
+    @Test
+    public void warmsUpPoolBeforeFirstPush() throws Exception {
+        ApnsMetrics metrics = new ApnsMetrics();
+        service = newServiceBuilder()
+                .asPool(3)
+                .withWarmUp()
+                .withMetrics(metrics)
+                .build();
+        Assert.assertTrue(service.awaitReady(4, TimeUnit.SECONDS));
+        Assert.assertEquals(3, metrics.getFullHandshakes() + metrics.getResumedHandshakes());
+
+        send(0);
+        assertNumberReceived(1);
+        Assert.assertEquals(3, metrics.getFullHandshakes() + metrics.getResumedHandshakes());
+    }
+
+    @Test
+    public void drainWorkersGetConnectionsOfTheirOwn() throws Exception {
+        ApnsMetrics metrics = new ApnsMetrics();
+        service = newServiceBuilder()
+                .asQueued(Executors.defaultThreadFactory(), 3, 10)
+                .withWarmUp()
+                .withMetrics(metrics)
+                .build();
+        service.start();
+        Assert.assertTrue(service.awaitReady(4, TimeUnit.SECONDS));
+        Assert.assertEquals(3, metrics.getFullHandshakes() + metrics.getResumedHandshakes());
+
+        sendCount(30, 0);
+        assertNumberReceived(30);
+        service.stop();
+    }
+
+    @Test
+    public void readsErrorResponsesOnSharedThread() throws InterruptedException {
+        final AtomicInteger threads = new AtomicInteger();
+        service = newServiceBuilder()
+                .asPool(3)
+                .withSharedErrorResponseReader()
+                .withErrorDetectionThreadFactory(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        threads.incrementAndGet();
+                        Thread thread = new Thread(r);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                })
+                .build();
+        send(8, 0, 8, 0);
+        assertNumberReceived(4);
+        verify(delegate, timeout(1000).times(2)).connectionClosed(Matchers.any(DeliveryError.class), Matchers.anyInt());
+        // the poller and its dispatcher, however many sockets were opened
+        Assert.assertTrue(threads.get() <= 2);
+    }
+
     @Test
     public void firstTokenBad_issue145() throws InterruptedException {
         // Test for Issue #145
@@ -38,7 +38,7 @@ public class ApnsSimulatorTestBase {
     public TestName name = new TestName();
     protected FailingApnsServerSimulator server;
     protected ApnsDelegate delegate;
-    private ApnsService service;
+    protected ApnsService service;
     private Random random;
 
     @Before
@@ -54,12 +54,16 @@ public class ApnsSimulatorTestBase {
         server.start();
         delegate = ApnsDelegate.EMPTY;
         delegate = mock(ApnsDelegate.class);
-        service = APNS.newService()
+        service = newServiceBuilder().build();
+        random = new Random();
+    }
+
+    protected ApnsServiceBuilder newServiceBuilder() {
+        return APNS.newService()
                 .withSSLContext(clientContext())
                 .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
                 .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
-                .withDelegate(delegate).build();
-        random = new Random();
+                .withDelegate(delegate);
     }
 
     @After
@@ -133,7 +137,9 @@ public class ApnsSimulatorTestBase {
             }
 
         }
-        return new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(), 1, deviceToken, Utilities.toUTF8Bytes(payload));
+        // expiring in 1970 would get it dropped rather than resent
+        return new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(), EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                deviceToken, Utilities.toUTF8Bytes(payload));
     }
 
     protected void sendCount(final int count, final int code) {
@@ -1,7 +1,30 @@
 package com.notnoop.apns.internal;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.SocketFactory;
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.CongestionController;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
 import com.notnoop.apns.SimpleApnsNotification;
 import org.junit.Assert;
 import org.junit.Ignore;
@@ -52,9 +75,325 @@ public class ApnsConnectionTest {
         packetSentRegardless(factory, baos);
     }
 
+    @Test
+    public void closeShutsDownRetrySchedulerOfOriginalOnly() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(SocketFactory.getDefault(), "localhost", 80);
+        connection.setRetryScheduler(scheduler);
+
+        connection.copy().close();
+        Assert.assertFalse(scheduler.isShutdown());
+        connection.close();
+        Assert.assertTrue(scheduler.isShutdown());
+    }
+
+    @Test
+    public void closeShutsDownRotationSchedulerOfOriginalOnly() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(SocketFactory.getDefault(), "localhost", 80);
+        connection.setRotationScheduler(scheduler);
+
+        connection.copy().close();
+        Assert.assertFalse(scheduler.isShutdown());
+        connection.close();
+        Assert.assertTrue(scheduler.isShutdown());
+    }
+
+    @Test
+    public void batchLargerThanCacheSurvivesFailedWrite() {
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        // the first socket fails its writes, the later ones work
+        FakeSocketFactory factory = new FakeSocketFactory(1);
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null, null, null,
+                new ReconnectPolicies.Never(), new ApnsDelegateAdapter() {
+                    public void messageSent(ApnsNotification message, boolean resent) {
+                        sent.incrementAndGet();
+                    }
+
+                    public void messageSendFailed(ApnsNotification message, Throwable e) {
+                        failed.incrementAndGet();
+                    }
+                }, false, null, 10, false, 0, 0);
+        List<ApnsNotification> batch = new ArrayList<ApnsNotification>();
+        for (int i = 0; i < 25; i++) {
+            batch.add(new EnhancedApnsNotification(i, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                    "a87d8878d878a79", "{\"aps\":{}}"));
+        }
+
+        connection.sendMessages(batch);
+        connection.close();
+        Assert.assertEquals(25, sent.get());
+        Assert.assertEquals(0, failed.get());
+    }
+
+    @Test
+    public void staleConnectionIsReplacedBeforeTheWrite() throws InterruptedException {
+        FakeSocketFactory factory = new FakeSocketFactory(0);
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null, null, null,
+                new ReconnectPolicies.Adaptive(50, TimeUnit.MILLISECONDS, 0, 0, 0.5), null, false, null,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false, 0, 0);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        connection.setRotationScheduler(scheduler);
+
+        connection.sendMessage(msg);
+        Thread.sleep(100);
+        // make-before-break would still write this one to the idle socket
+        connection.sendMessage(msg);
+        connection.close();
+
+        Assert.assertEquals(2, factory.outputs.size());
+        Assert.assertArrayEquals(msg.marshall(), factory.outputs.get(1).toByteArray());
+    }
+
+    @Test
+    public void eofSignalsDroppedConnection() throws InterruptedException {
+        BlockingQueue<CongestionController.Signal> signals = new LinkedBlockingQueue<CongestionController.Signal>();
+        ApnsConnectionImpl connection = monitoredConnection(new FakeSocketFactory(0), signals);
+
+        connection.sendMessage(msg);
+        Assert.assertEquals(CongestionController.Signal.CONNECTION_DROPPED, signals.poll(2, TimeUnit.SECONDS));
+        connection.close();
+    }
+
+    @Test
+    public void readTimeoutIsNoCongestion() throws InterruptedException {
+        BlockingQueue<CongestionController.Signal> signals = new LinkedBlockingQueue<CongestionController.Signal>();
+        FakeSocketFactory factory = new FakeSocketFactory(0);
+        factory.quiet = true;
+        ApnsConnectionImpl connection = monitoredConnection(factory, signals);
+
+        connection.sendMessage(msg);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!recorded(connection, FlightRecorder.Event.MONITOR_TIMEOUT) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(recorded(connection, FlightRecorder.Event.MONITOR_TIMEOUT));
+        Assert.assertTrue(signals.isEmpty());
+        connection.close();
+    }
+
+    @Test
+    public void unexpectedConnectFailureEndsProbe() throws InterruptedException {
+        final AtomicInteger attempts = new AtomicInteger();
+        SocketFactory factory = new FakeSocketFactory(0) {
+            public Socket createSocket(String host, int port) {
+                if (attempts.incrementAndGet() <= 2) {
+                    throw new IllegalStateException("no proxy");
+                }
+                return super.createSocket(host, port);
+            }
+        };
+        CircuitBreaker breaker = new CircuitBreaker(1, 50, TimeUnit.MILLISECONDS, null);
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null, null, null,
+                new ReconnectPolicies.Never(), null, false, null, ApnsConnection.DEFAULT_CACHE_LENGTH, false, 0, 0);
+        connection.setCircuitBreaker(breaker);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                connection.connect();
+                Assert.fail("connecting should fail");
+            } catch (IllegalStateException expected) {
+                Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+            }
+            Thread.sleep(100);
+        }
+        // the failed probe didn't leave the breaker rejecting every later attempt
+        connection.connect();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        connection.close();
+    }
+
+    @Test
+    public void recoveryDoesNotHoldUpOthersOnSharedPoller() throws Exception {
+        final ServerSocket gateway = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final CountDownLatch reconnecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Socket> accepted = new ArrayList<Socket>();
+        try {
+            final AtomicInteger connects = new AtomicInteger();
+            SocketFactory stuckOnReconnect = new PlainSocketFactory() {
+                public Socket createSocket(String host, int port) throws IOException {
+                    if (connects.incrementAndGet() > 1) {
+                        reconnecting.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return super.createSocket(host, port);
+                }
+            };
+            ErrorResponsePoller poller = new ErrorResponsePoller();
+            BlockingQueue<Integer> closedA = new LinkedBlockingQueue<Integer>();
+            BlockingQueue<Integer> closedB = new LinkedBlockingQueue<Integer>();
+            ApnsConnectionImpl a = polledConnection(stuckOnReconnect, gateway, poller, closedA);
+            ApnsConnectionImpl b = polledConnection(new PlainSocketFactory(), gateway, poller, closedB);
+
+            a.sendMessage(notification(1));
+            accepted.add(gateway.accept());
+            a.sendMessage(notification(2));
+            b.sendMessage(notification(3));
+            accepted.add(gateway.accept());
+            b.sendMessage(notification(4));
+
+            // b fails while a still hangs reconnecting to resend 2
+            errorResponse(accepted.get(0), 1);
+            Assert.assertEquals(Integer.valueOf(1), closedA.poll(2, TimeUnit.SECONDS));
+            Assert.assertTrue(reconnecting.await(2, TimeUnit.SECONDS));
+            errorResponse(accepted.get(1), 3);
+            Assert.assertEquals(Integer.valueOf(3), closedB.poll(2, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            for (Socket socket : accepted) {
+                Utilities.close(socket);
+            }
+            Utilities.close(gateway);
+        }
+    }
+
+    private static ApnsConnectionImpl polledConnection(SocketFactory factory, ServerSocket gateway,
+                                                       ErrorResponsePoller poller, final BlockingQueue<Integer> closed) {
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, gateway.getInetAddress().getHostAddress(),
+                gateway.getLocalPort(), null, null, null, new ReconnectPolicies.Never(), new ApnsDelegateAdapter() {
+                    public void connectionClosed(DeliveryError e, int messageIdentifier) {
+                        closed.add(messageIdentifier);
+                    }
+                }, true, null, ApnsConnection.DEFAULT_CACHE_LENGTH, false, 0, 0);
+        connection.setErrorResponsePoller(poller);
+        return connection;
+    }
+
+    private static ApnsNotification notification(int id) {
+        return new EnhancedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                "a87d8878d878a79", "{\"aps\":{}}");
+    }
+
+    private static void errorResponse(Socket socket, int id) throws IOException {
+        socket.getOutputStream().write(new byte[] { 8, 8, 0, 0, 0, (byte) id });
+        socket.getOutputStream().flush();
+    }
+
+    /**
+     * Connects plain sockets.
+     */
+    private static class PlainSocketFactory extends SocketFactory {
+        public Socket createSocket(String host, int port) throws IOException {
+            return new Socket(host, port);
+        }
+
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return new Socket(host, port, localHost, localPort);
+        }
+
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return new Socket(host, port);
+        }
+
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return new Socket(address, port, localAddress, localPort);
+        }
+    }
+
+    private static ApnsConnectionImpl monitoredConnection(SocketFactory factory,
+                                                          final BlockingQueue<CongestionController.Signal> signals) {
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null, null, null,
+                new ReconnectPolicies.Never(), null, true, null, ApnsConnection.DEFAULT_CACHE_LENGTH, false, 0, 0);
+        connection.setCongestionController(new CongestionController() {
+            public double getRate() {
+                return 1000;
+            }
+
+            public double onSuccess(int notifications) {
+                return 1000;
+            }
+
+            public double onCongestion(Signal signal) {
+                signals.add(signal);
+                return 1000;
+            }
+
+            public CongestionController copy() {
+                return this;
+            }
+        });
+        return connection;
+    }
+
+    private static boolean recorded(ApnsConnectionImpl connection, FlightRecorder.Event event) {
+        for (FlightRecorder.Entry entry : connection.getFlightRecorder().snapshot()) {
+            if (entry.getEvent() == event) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands out unconnected sockets writing to byte arrays, the first
+     * {@code failing} of which fail every write.
+     */
+    private static class FakeSocketFactory extends SocketFactory {
+        final List<ByteArrayOutputStream> outputs = new CopyOnWriteArrayList<ByteArrayOutputStream>();
+        private final int failing;
+        /** whether reads time out, rather than reach EOF right away */
+        boolean quiet;
+
+        FakeSocketFactory(int failing) {
+            this.failing = failing;
+        }
+
+        public Socket createSocket() {
+            final boolean fails = outputs.size() < failing;
+            final ByteArrayOutputStream output = new ByteArrayOutputStream() {
+                public synchronized void write(byte[] b, int off, int len) {
+                    if (fails) {
+                        throw new IllegalStateException("broken pipe");
+                    }
+                    super.write(b, off, len);
+                }
+            };
+            outputs.add(output);
+            return new Socket() {
+                public InputStream getInputStream() {
+                    if (quiet) {
+                        return new InputStream() {
+                            public int read() throws IOException {
+                                throw new SocketTimeoutException("Read timed out");
+                            }
+                        };
+                    }
+                    return new ByteArrayInputStream(new byte[0]);
+                }
+
+                public OutputStream getOutputStream() {
+                    return output;
+                }
+            };
+        }
+
+        public Socket createSocket(String host, int port) {
+            return createSocket();
+        }
+
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+            return createSocket();
+        }
+
+        public Socket createSocket(InetAddress host, int port) {
+            return createSocket();
+        }
+
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+            return createSocket();
+        }
+    }
+
     private void packetSentRegardless(SocketFactory sf, ByteArrayOutputStream baos) {
         ApnsConnectionImpl connection = new ApnsConnectionImpl(sf, "localhost", 80);
-        connection.DELAY_IN_MS = 0;
+        connection.setRetryBackoff(new RetryBackoff(3, 0, 0, TimeUnit.MILLISECONDS, 0));
         connection.sendMessage(msg);
         Assert.assertArrayEquals(msg.marshall(), baos.toByteArray());
         connection.close();
@@ -2,6 +2,7 @@ package com.notnoop.apns.internal;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.SocketFactory;
 
@@ -56,7 +57,7 @@ public class ApnsFeedbackConnectionTest {
     public void feedbackWithClosedSocket() {
         SocketFactory sf = mockClosedThenOpenSocket(null, simpleStream, true, 1);
         ApnsFeedbackConnection connection = new ApnsFeedbackConnection(sf, "localhost", 80);
-        connection.DELAY_IN_MS = 0;
+        connection.setRetryBackoff(new RetryBackoff(3, 0, 0, TimeUnit.MILLISECONDS, 0));
         checkParsedSimple(connection.getInactiveDevices());
     }
 
@@ -64,7 +65,7 @@ public class ApnsFeedbackConnectionTest {
     public void feedbackWithErrorOnce() {
         SocketFactory sf = mockClosedThenOpenSocket(null, simpleStream, true, 2);
         ApnsFeedbackConnection connection = new ApnsFeedbackConnection(sf, "localhost", 80);
-        connection.DELAY_IN_MS = 0;
+        connection.setRetryBackoff(new RetryBackoff(3, 0, 0, TimeUnit.MILLISECONDS, 0));
         checkParsedSimple(connection.getInactiveDevices());
     }
 
@@ -75,7 +76,7 @@ public class ApnsFeedbackConnectionTest {
     public void feedbackWithErrorTwice() {
         SocketFactory sf = mockClosedThenOpenSocket(null, simpleStream, true, 3);
         ApnsFeedbackConnection connection = new ApnsFeedbackConnection(sf, "localhost", 80);
-        connection.DELAY_IN_MS = 0;
+        connection.setRetryBackoff(new RetryBackoff(3, 0, 0, TimeUnit.MILLISECONDS, 0));
         checkParsedSimple(connection.getInactiveDevices());
     }
 
@@ -1,13 +1,33 @@
 package com.notnoop.apns.internal;
 
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsMetrics;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ElasticPoolApnsDelegate;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.NotificationPriority;
+import com.notnoop.apns.PoolRoutingPolicy;
+import com.notnoop.apns.PriorityClassifier;
 import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.NotificationDroppedException;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.*;
 
 import static org.mockito.Mockito.*;
 
@@ -59,6 +79,225 @@ public class ApnsPooledConnectionTest {
         verify(prototype, times(2)).close();
     }
 
+    @Test
+    public void cacheLengthOfEmptyPoolIsThePrototypes() {
+        when(prototype.getCacheLength()).thenReturn(ApnsConnection.DEFAULT_CACHE_LENGTH);
+        ApnsPooledConnection conn = new ApnsPooledConnection(prototype, 2, getSingleThreadExecutor());
+        assertEquals(ApnsConnection.DEFAULT_CACHE_LENGTH, conn.getCacheLength());
+
+        conn.setCacheLength(500);
+        verify(prototype).setCacheLength(500);
+    }
+
+    @Test
+    public void routesAroundStalledConnection() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ApnsConnection stuck = mock(ApnsConnection.class);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return null;
+            }
+        }).when(stuck).sendMessage(any(ApnsNotification.class));
+        ApnsConnection healthy = mock(ApnsConnection.class);
+        ApnsConnection pooledPrototype = mock(ApnsConnection.class);
+        when(pooledPrototype.copy()).thenReturn(stuck, healthy);
+
+        executorService = Executors.newFixedThreadPool(2);
+        ApnsPooledConnection conn = new ApnsPooledConnection(pooledPrototype, 2, executorService);
+        conn.setStallThreshold(10, TimeUnit.MILLISECONDS);
+        conn.sendMessage(mock(ApnsNotification.class));
+        Thread.sleep(50);
+
+        for (int i = 0; i < 10; i++) {
+            conn.sendMessage(mock(ApnsNotification.class));
+        }
+        verify(healthy, timeout(1000).times(10)).sendMessage(any(ApnsNotification.class));
+
+        List<ApnsPooledConnection.ConnectionLoad> loads = conn.getConnectionLoads();
+        assertEquals(2, loads.size());
+        assertTrue(loads.get(0).isStalled());
+        assertEquals(1, loads.get(0).getOutstanding());
+        assertFalse(loads.get(1).isStalled());
+        release.countDown();
+    }
+
+    @Test
+    public void tokenAffinityKeepsDevicesOnOneConnection() throws Exception {
+        ApnsConnection first = mock(ApnsConnection.class);
+        ApnsConnection second = mock(ApnsConnection.class);
+        ApnsConnection pooledPrototype = mock(ApnsConnection.class);
+        when(pooledPrototype.copy()).thenReturn(first, second);
+
+        executorService = Executors.newFixedThreadPool(2);
+        ApnsPooledConnection conn = new ApnsPooledConnection(pooledPrototype, 2, executorService);
+        conn.setRoutingPolicy(PoolRoutingPolicy.TOKEN_AFFINITY);
+
+        ApnsNotification a = notification(1, "aa");
+        ApnsNotification b = notification(2, "bb");
+        int shardA = ApnsPooledConnection.jumpConsistentHash(ApnsPooledConnection.tokenHash(a.getDeviceToken()), 2);
+        ApnsConnection ownerA = shardA == 0 ? first : second;
+        for (int i = 0; i < 5; i++) {
+            conn.sendMessage(a);
+        }
+        conn.sendMessages(Arrays.asList(a, b, a));
+
+        verify(ownerA, timeout(1000).times(5)).sendMessage(a);
+        verify(ownerA, timeout(1000).atLeastOnce()).sendMessages(anyCollectionOf(ApnsNotification.class));
+        verify(shardA == 0 ? second : first, never()).sendMessage(a);
+    }
+
+    @Test
+    public void pushAllKeepsItsDeadline() throws Exception {
+        final AtomicLong remaining = new AtomicLong();
+        ApnsConnection bounded = mock(ApnsConnection.class);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                remaining.set(DeadlineNotification.remainingNanos());
+                return null;
+            }
+        }).when(bounded).sendMessages(anyCollectionOf(ApnsNotification.class));
+        ApnsConnection pooledPrototype = mock(ApnsConnection.class);
+        when(pooledPrototype.copy()).thenReturn(bounded);
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+
+        ApnsPooledConnection conn = new ApnsPooledConnection(pooledPrototype, 1, getSingleThreadExecutor());
+        conn.setDelegate(delegate);
+        ApnsServiceImpl service = new ApnsServiceImpl(conn, null);
+        List<ApnsNotification> batch = Arrays.asList(notification(1, "aa"), notification(2, "bb"));
+        Long previous = DeadlineNotification.enter(System.nanoTime() + TimeUnit.MINUTES.toNanos(1));
+        try {
+            service.pushAll(batch);
+        } finally {
+            DeadlineNotification.exit(previous);
+        }
+        verify(bounded, timeout(1000)).sendMessages(batch);
+        assertTrue(remaining.get() > 0 && remaining.get() <= TimeUnit.MINUTES.toNanos(1));
+
+        previous = DeadlineNotification.enter(System.nanoTime() - 1);
+        try {
+            service.pushAll(batch);
+        } finally {
+            DeadlineNotification.exit(previous);
+        }
+        verify(delegate, timeout(1000).times(2)).messageSendFailed(any(ApnsNotification.class),
+                any(NotificationDroppedException.class));
+        verify(bounded, times(1)).sendMessages(anyCollectionOf(ApnsNotification.class));
+    }
+
+    @Test
+    public void jumpHashMovesFewKeysOnResize() {
+        int moved = 0;
+        for (long key = 0; key < 10000; key++) {
+            int before = ApnsPooledConnection.jumpConsistentHash(ApnsPooledConnection.tokenHash(Utilities.toUTF8Bytes("" + key)), 4);
+            int after = ApnsPooledConnection.jumpConsistentHash(ApnsPooledConnection.tokenHash(Utilities.toUTF8Bytes("" + key)), 5);
+            if (before != after) {
+                assertEquals(4, after);
+                moved++;
+            }
+        }
+        // about one in five keys should move to the new bucket
+        assertTrue("moved " + moved, moved > 1500 && moved < 2500);
+    }
+
+    @Test
+    public void reservedConnectionCarriesHighPriority() throws Exception {
+        ApnsConnection reserved = mock(ApnsConnection.class);
+        ApnsConnection shared = mock(ApnsConnection.class);
+        ApnsConnection pooledPrototype = mock(ApnsConnection.class);
+        when(pooledPrototype.copy()).thenReturn(reserved, shared);
+
+        executorService = Executors.newFixedThreadPool(2);
+        ApnsPooledConnection conn = new ApnsPooledConnection(pooledPrototype, 2, executorService);
+        conn.setReservedConnections(1, new PriorityClassifier() {
+            public NotificationPriority priorityOf(ApnsNotification notification) {
+                return notification.getIdentifier() == 1 ? NotificationPriority.HIGH : NotificationPriority.NORMAL;
+            }
+        });
+
+        ApnsNotification urgent = notification(1, "aa");
+        ApnsNotification bulk = notification(2, "bb");
+        conn.sendMessage(urgent);
+        conn.sendMessage(bulk);
+        conn.sendMessages(Arrays.asList(bulk, urgent));
+
+        verify(reserved, timeout(1000).times(2)).sendMessage(urgent);
+        verify(shared, timeout(1000).atLeastOnce()).sendMessage(bulk);
+        verify(reserved, never()).sendMessage(bulk);
+        verify(shared, never()).sendMessage(urgent);
+        assertEquals(1, conn.getReservedConnectionLoads().size());
+        assertEquals(1, conn.getConnectionLoads().size());
+    }
+
+    @Test
+    public void elasticPoolGrowsAndShrinks() throws Exception {
+        final CountDownLatch queued = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger written = new AtomicInteger();
+        final List<ApnsConnection> copies = new CopyOnWriteArrayList<ApnsConnection>();
+        ApnsConnection elasticPrototype = mock(ApnsConnection.class);
+        when(elasticPrototype.copy()).thenAnswer(new Answer<ApnsConnection>() {
+            public ApnsConnection answer(InvocationOnMock invocation) throws Throwable {
+                if (!copies.isEmpty()) {
+                    // grow only once the whole burst is queued on the first connection
+                    queued.await();
+                }
+                ApnsConnection stuck = mock(ApnsConnection.class);
+                doAnswer(new Answer<Void>() {
+                    public Void answer(InvocationOnMock invocation) throws Throwable {
+                        release.await();
+                        written.incrementAndGet();
+                        return null;
+                    }
+                }).when(stuck).sendMessage(any(ApnsNotification.class));
+                copies.add(stuck);
+                return stuck;
+            }
+        });
+        ElasticPoolApnsDelegate delegate = mock(ElasticPoolApnsDelegate.class);
+        ApnsMetrics metrics = new ApnsMetrics();
+
+        executorService = Executors.newFixedThreadPool(2);
+        ApnsPooledConnection conn = new ApnsPooledConnection(elasticPrototype, 2, executorService);
+        conn.setDelegate(delegate);
+        conn.setMetrics(metrics);
+        conn.setElasticity(1, 5, 1000, 200, TimeUnit.MILLISECONDS);
+        waitForPoolSize(conn, 1);
+
+        for (int i = 0; i < 60; i++) {
+            conn.sendMessage(mock(ApnsNotification.class));
+        }
+        queued.countDown();
+        // the added connection takes over the backlog of the stuck one
+        waitForPoolSize(conn, 2);
+        verify(copies.get(1), timeout(5000)).sendMessage(any(ApnsNotification.class));
+        assertEquals(2, metrics.getPoolConnectionsOpened());
+        verify(delegate).poolGrew(2);
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (written.get() < 60 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(60, written.get());
+        waitForPoolSize(conn, 1);
+        assertEquals(1, metrics.getPoolConnectionsClosed());
+        verify(delegate).poolShrank(1);
+        conn.close();
+    }
+
+    private static void waitForPoolSize(ApnsPooledConnection conn, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (conn.getConnectionLoads().size() != size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, conn.getConnectionLoads().size());
+    }
+
+    private static ApnsNotification notification(int id, String token) {
+        return new EnhancedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY, token, "{}");
+    }
+
     private ExecutorService getSingleThreadExecutor() {
         executorService = Executors.newSingleThreadExecutor();
         return executorService;
@@ -1,17 +1,28 @@
 package com.notnoop.apns.internal;
 
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsMetrics;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.exceptions.NotificationDroppedException;
 
 public class BatchApnsServiceTest {
 
@@ -110,4 +121,52 @@ public class BatchApnsServiceTest {
 		verify(prototype, times(1)).close();
 	}
 
+	@Test
+	public void persistent_flushOnSize() throws InterruptedException {
+		BatchApnsService persistent = new BatchApnsService(prototype, null, 10, 20, TimeUnit.SECONDS, 3, true, null);
+		persistent.push("1234", "{}");
+		persistent.push("1234", "{}");
+		verify(prototype, never()).sendMessages(anyCollectionOf(ApnsNotification.class));
+
+		persistent.push("1234", "{}");
+		Thread.sleep(250);
+		verify(prototype, times(1)).sendMessages(anyCollectionOf(ApnsNotification.class));
+		persistent.stop();
+	}
+
+	@Test
+	public void persistent_keepsConnectionAcrossBatches() throws IOException, InterruptedException {
+		BatchApnsService persistent = new BatchApnsService(prototype, null, 100, 200, TimeUnit.MILLISECONDS, 100, true, null);
+		persistent.push("1234", "{}");
+		Thread.sleep(400);
+		persistent.push("4321", "{}");
+		Thread.sleep(400);
+
+		verify(prototype, times(1)).copy();
+		verify(prototype, times(2)).sendMessages(anyCollectionOf(ApnsNotification.class));
+		verify(prototype, never()).sendMessage(any(ApnsNotification.class));
+		verify(prototype, never()).close();
+		persistent.stop();
+		verify(prototype, atLeastOnce()).close();
+	}
+
+	@Test
+	public void dropsExpiredMessages() throws InterruptedException {
+		ApnsDelegate delegate = mock(ApnsDelegate.class);
+		ApnsMetrics metrics = new ApnsMetrics();
+		BatchApnsService expiring = new BatchApnsService(prototype, null, 50, 100, TimeUnit.MILLISECONDS, 0, false, null);
+		expiring.setDelegate(delegate);
+		expiring.setMetrics(metrics);
+		ApnsNotification expired = new EnhancedApnsNotification(1, 1, "1234", "{}");
+		ApnsNotification fresh = new EnhancedApnsNotification(2, EnhancedApnsNotification.MAXIMUM_EXPIRY, "1234", "{}");
+		expiring.push(expired);
+		expiring.push(fresh);
+		Thread.sleep(400);
+
+		verify(prototype, times(1)).sendMessage(fresh);
+		verify(prototype, never()).sendMessage(expired);
+		verify(delegate).messageSendFailed(eq(expired), any(NotificationDroppedException.class));
+		assertEquals(1, metrics.getExpiredDrops());
+		expiring.stop();
+	}
 }
@@ -0,0 +1,181 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.NotificationPriority;
+import com.notnoop.apns.PriorityClassifier;
+import com.notnoop.apns.QueueOverflowPolicy;
+import com.notnoop.apns.QueueWatermarkListener;
+import com.notnoop.apns.internal.QueuedApnsServiceTest.ConnectionStub;
+import com.notnoop.exceptions.NotificationDroppedException;
+
+public class BoundedQueuedApnsServiceTest {
+
+    private ConnectionStub connection;
+    private ApnsDelegate delegate;
+    private QueuedApnsService queued;
+
+    /** even identifiers are bulk notifications */
+    private final PriorityClassifier classifier = new PriorityClassifier() {
+        public NotificationPriority priorityOf(ApnsNotification notification) {
+            return notification.getIdentifier() % 2 == 0 ? NotificationPriority.LOW : NotificationPriority.HIGH;
+        }
+    };
+
+    @Before
+    public void setup() {
+        connection = new ConnectionStub(10000, 1);
+        delegate = mock(ApnsDelegate.class);
+    }
+
+    @After
+    public void cleanup() {
+        connection.interrupt();
+        if (queued != null) {
+            queued.stop();
+        }
+    }
+
+    @Test(expected = NotificationDroppedException.class)
+    public void rejectWhenFull() {
+        start(2, QueueOverflowPolicy.REJECT);
+        queued.push(notification(2));
+        queued.push(notification(3));
+        queued.push(notification(4));
+    }
+
+    @Test
+    public void tryPushDoesNotWaitNorDrop() {
+        start(2, QueueOverflowPolicy.DROP_OLDEST);
+        assertTrue(queued.tryPush(notification(2)));
+        assertTrue(queued.tryPush(notification(3)));
+        assertFalse(queued.tryPush(notification(4)));
+        assertEquals(2, queued.getQueueSize());
+        verify(delegate, never()).messageSendFailed(any(ApnsNotification.class), any(Throwable.class));
+    }
+
+    @Test
+    public void blockTimesOut() {
+        queued = new QueuedApnsService(new ApnsServiceImpl(connection, null), null, 1,
+                QueueOverflowPolicy.BLOCK, 100, null, delegate);
+        startAndOccupyWorker();
+        queued.push(notification(2));
+        long start = System.currentTimeMillis();
+        try {
+            queued.push(notification(3));
+            fail("push should have timed out");
+        } catch (NotificationDroppedException e) {
+            assertEquals(NotificationDroppedException.Reason.QUEUE_FULL, e.getReason());
+        }
+        assertTrue(System.currentTimeMillis() - start >= 100);
+    }
+
+    @Test
+    public void dropOldest() {
+        start(2, QueueOverflowPolicy.DROP_OLDEST);
+        queued.push(notification(2));
+        queued.push(notification(3));
+        queued.push(notification(4));
+
+        assertEquals(2, queued.getQueueSize());
+        verify(delegate).messageSendFailed(eq(notification(2)), any(NotificationDroppedException.class));
+    }
+
+    @Test
+    public void dropLowestPriority() {
+        start(3, QueueOverflowPolicy.DROP_LOWEST_PRIORITY);
+        queued.push(notification(3));
+        queued.push(notification(2));
+        queued.push(notification(4));
+        queued.push(notification(5));
+
+        assertEquals(3, queued.getQueueSize());
+        verify(delegate, times(1)).messageSendFailed(any(ApnsNotification.class), any(Throwable.class));
+        verify(delegate).messageSendFailed(eq(notification(2)), any(NotificationDroppedException.class));
+    }
+
+    @Test
+    public void dropIncomingWhenItRanksLowest() {
+        start(2, QueueOverflowPolicy.DROP_LOWEST_PRIORITY);
+        queued.push(notification(3));
+        queued.push(notification(5));
+        try {
+            queued.push(notification(6));
+            fail("push should have been rejected");
+        } catch (NotificationDroppedException e) {
+            assertEquals(NotificationDroppedException.Reason.QUEUE_FULL, e.getReason());
+        }
+
+        assertEquals(2, queued.getQueueSize());
+        verify(delegate, never()).messageSendFailed(any(ApnsNotification.class), any(Throwable.class));
+    }
+
+    @Test
+    public void watermarksAlternate() {
+        final AtomicInteger high = new AtomicInteger();
+        final AtomicInteger low = new AtomicInteger();
+        queued = new QueuedApnsService(new ApnsServiceImpl(connection, null), null, 10,
+                QueueOverflowPolicy.REJECT, 0, classifier, delegate);
+        queued.setWatermarks(3, 1, new QueueWatermarkListener() {
+            public void highWatermarkReached(int queueSize) {
+                high.incrementAndGet();
+            }
+
+            public void lowWatermarkReached(int queueSize) {
+                low.incrementAndGet();
+            }
+        });
+        startAndOccupyWorker();
+        for (int i = 2; i < 7; i++) {
+            queued.push(notification(i));
+        }
+        assertEquals(1, high.get());
+        assertEquals(0, low.get());
+
+        connection.interrupt();
+        waitUntilEmpty();
+        assertEquals(1, high.get());
+        assertEquals(1, low.get());
+    }
+
+    private void start(int capacity, QueueOverflowPolicy policy) {
+        queued = new QueuedApnsService(new ApnsServiceImpl(connection, null), null, capacity,
+                policy, 0, classifier, delegate);
+        startAndOccupyWorker();
+    }
+
+    /**
+     * Pushes a first notification and waits until the worker is stuck
+     * sending it, so the following pushes stay in the queue.
+     */
+    private void startAndOccupyWorker() {
+        queued.start();
+        queued.push(notification(1));
+        waitUntilEmpty();
+    }
+
+    private void waitUntilEmpty() {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queued.getQueueSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(0, queued.getQueueSize());
+        // give the worker a moment to get from take() into the send
+        Utilities.sleep(50);
+    }
+
+    private static EnhancedApnsNotification notification(int id) {
+        return new EnhancedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY, "2342", "{}");
+    }
+}
@@ -0,0 +1,58 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsMetrics;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        ApnsMetrics metrics = new ApnsMetrics();
+        CircuitBreaker breaker = new CircuitBreaker(3, 1, TimeUnit.MINUTES, metrics);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowAttempt());
+
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowAttempt());
+        assertEquals(1, metrics.getCircuitOpenings());
+        assertEquals(1, metrics.getCircuitRejections());
+    }
+
+    @Test
+    public void letsSingleProbeThroughWhenHalfOpen() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 20, TimeUnit.MILLISECONDS, null);
+        breaker.onFailure();
+        Thread.sleep(30);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        assertTrue(breaker.allowAttempt());
+        assertFalse(breaker.allowAttempt());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowAttempt());
+    }
+
+    @Test
+    public void failedProbeOpensAgain() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(2, 20, TimeUnit.MILLISECONDS, null);
+        breaker.onFailure();
+        breaker.onFailure();
+        Thread.sleep(30);
+
+        assertTrue(breaker.allowAttempt());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowAttempt());
+    }
+}
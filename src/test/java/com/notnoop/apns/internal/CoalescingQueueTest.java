@@ -0,0 +1,79 @@
+package com.notnoop.apns.internal;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsMetrics;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.CollapseKeyResolver;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.exceptions.NotificationDroppedException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class CoalescingQueueTest {
+
+    // identifiers below 100 collapse into "badge", the others never collapse
+    private static final CollapseKeyResolver BADGE = new CollapseKeyResolver() {
+        public String collapseKeyOf(ApnsNotification notification) {
+            return notification.getIdentifier() < 100 ? "badge" : null;
+        }
+    };
+
+    @Test
+    public void newerNotificationTakesPlaceOfOlder() {
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        ApnsMetrics metrics = new ApnsMetrics();
+        CoalescingQueue queue = new CoalescingQueue(10, BADGE, delegate, metrics);
+        ApnsNotification first = notification(1, "aa");
+        queue.offer(first);
+        queue.offer(notification(101, "aa"));
+        queue.offer(notification(2, "aa"));
+
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.poll().getIdentifier());
+        assertEquals(101, queue.poll().getIdentifier());
+        assertNull(queue.poll());
+        verify(delegate).messageSendFailed(same(first), any(NotificationDroppedException.class));
+        assertEquals(1, metrics.getCoalescedDrops());
+    }
+
+    @Test
+    public void keepsDevicesApart() {
+        CoalescingQueue queue = new CoalescingQueue(10, BADGE, null, null);
+        queue.offer(notification(1, "aa"));
+        queue.offer(notification(2, "bb"));
+        queue.offer(notification(101, "aa"));
+        queue.offer(notification(102, "aa"));
+
+        assertEquals(4, queue.size());
+    }
+
+    @Test
+    public void acceptsReplacementWhenFull() {
+        CoalescingQueue queue = new CoalescingQueue(2, BADGE, null, null);
+        queue.offer(notification(1, "aa"));
+        queue.offer(notification(101, "bb"));
+
+        assertFalse(queue.offer(notification(102, "bb")));
+        assertTrue(queue.offer(notification(2, "aa")));
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.peek().getIdentifier());
+    }
+
+    @Test
+    public void takenNotificationIsNoLongerReplaced() {
+        CoalescingQueue queue = new CoalescingQueue(10, BADGE, null, null);
+        queue.offer(notification(1, "aa"));
+        assertEquals(1, queue.poll().getIdentifier());
+
+        queue.offer(notification(2, "aa"));
+        assertEquals(1, queue.size());
+        assertEquals(2, queue.poll().getIdentifier());
+    }
+
+    private static ApnsNotification notification(int id, String token) {
+        return new EnhancedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY, token, "{}");
+    }
+}
@@ -0,0 +1,120 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentArrayQueueTest {
+
+    @Test
+    public void firstInFirstOut() {
+        ConcurrentArrayQueue<Integer> queue = new ConcurrentArrayQueue<Integer>(4);
+        queue.offer(1);
+        queue.offer(2);
+        queue.offer(3);
+
+        assertEquals(3, queue.size());
+        assertEquals(Integer.valueOf(1), queue.peek());
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void rejectsWhenFull() {
+        // capacity is rounded up to the next power of two
+        ConcurrentArrayQueue<Integer> queue = new ConcurrentArrayQueue<Integer>(3);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(0, queue.remainingCapacity());
+
+        queue.poll();
+        assertTrue(queue.offer(4));
+    }
+
+    @Test
+    public void drainToRespectsLimit() {
+        ConcurrentArrayQueue<Integer> queue = new ConcurrentArrayQueue<Integer>(8);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(i);
+        }
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(3, queue.drainTo(drained, 3));
+        assertEquals(3, drained.size());
+        assertEquals(Integer.valueOf(0), drained.get(0));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void timedWaitsGiveUp() throws InterruptedException {
+        ConcurrentArrayQueue<Integer> queue = new ConcurrentArrayQueue<Integer>(2);
+        assertNull(queue.poll(20, TimeUnit.MILLISECONDS));
+        queue.offer(1);
+        queue.offer(3);
+        assertFalse(queue.offer(2, 20, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void takeWakesUpOnOffer() throws InterruptedException {
+        final ConcurrentArrayQueue<Integer> queue = new ConcurrentArrayQueue<Integer>(2);
+        new Thread() {
+            public void run() {
+                Utilities.sleep(50);
+                queue.offer(7);
+            }
+        }.start();
+        assertEquals(Integer.valueOf(7), queue.take());
+    }
+
+    @Test
+    public void concurrentProducersAndConsumers() throws InterruptedException {
+        final ConcurrentArrayQueue<Long> queue = new ConcurrentArrayQueue<Long>(16);
+        final int producers = 4;
+        final int perProducer = 10000;
+        final AtomicLong sum = new AtomicLong();
+        final CountDownLatch consumed = new CountDownLatch(producers * perProducer);
+
+        for (int c = 0; c < 3; c++) {
+            Thread consumer = new Thread() {
+                public void run() {
+                    try {
+                        while (true) {
+                            sum.addAndGet(queue.take());
+                            consumed.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                        // done
+                    }
+                }
+            };
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+        for (int p = 0; p < producers; p++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        for (long i = 1; i <= perProducer; i++) {
+                            queue.put(i);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }.start();
+        }
+
+        assertTrue(consumed.await(10, TimeUnit.SECONDS));
+        assertEquals(producers * (long) perProducer * (perProducer + 1) / 2, sum.get());
+        assertTrue(queue.isEmpty());
+    }
+}
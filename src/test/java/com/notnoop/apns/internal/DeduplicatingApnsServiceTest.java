@@ -0,0 +1,104 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsMetrics;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.IdempotencyKeyResolver;
+import com.notnoop.exceptions.NotificationDroppedException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class DeduplicatingApnsServiceTest {
+
+    @Test
+    public void suppressesSameTokenAndPayload() {
+        ApnsService inner = mock(ApnsService.class);
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        ApnsMetrics metrics = new ApnsMetrics();
+        DeduplicatingApnsService service = new DeduplicatingApnsService(inner, 1, TimeUnit.MINUTES, 1000, null, delegate);
+        service.setMetrics(metrics);
+
+        ApnsNotification first = notification(1, "aa", "{}");
+        ApnsNotification retry = notification(2, "aa", "{}");
+        ApnsNotification other = notification(3, "aa", "{\"aps\":{}}");
+        service.push(first);
+        service.push(retry);
+        service.push(other);
+
+        verify(inner).push(first);
+        verify(inner, never()).push(retry);
+        verify(inner).push(other);
+        verify(delegate).messageSendFailed(same(retry), any(NotificationDroppedException.class));
+        assertEquals(3, metrics.getIdempotencyChecks());
+        assertEquals(1, metrics.getDuplicatesSuppressed());
+    }
+
+    @Test
+    public void usesCallerKeys() {
+        ApnsService inner = mock(ApnsService.class);
+        IdempotencyKeyResolver byIdentifier = new IdempotencyKeyResolver() {
+            public String idempotencyKeyOf(ApnsNotification notification) {
+                return "request-" + notification.getIdentifier();
+            }
+        };
+        DeduplicatingApnsService service = new DeduplicatingApnsService(inner, 1, TimeUnit.MINUTES, 1000, byIdentifier, null);
+
+        ApnsNotification first = notification(1, "aa", "{}");
+        ApnsNotification sameRequest = notification(1, "bb", "{}");
+        ApnsNotification otherRequest = notification(2, "aa", "{}");
+        service.push(first);
+        service.push(sameRequest);
+        service.push(otherRequest);
+
+        verify(inner).push(first);
+        verify(inner, never()).push(sameRequest);
+        verify(inner).push(otherRequest);
+    }
+
+    @Test
+    public void letsRetryThroughAfterRejection() {
+        ApnsService inner = mock(ApnsService.class);
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        DeduplicatingApnsService service = new DeduplicatingApnsService(inner, 1, TimeUnit.MINUTES, 1000, null, delegate);
+
+        ApnsNotification first = notification(1, "aa", "{}");
+        ApnsNotification retry = notification(2, "aa", "{}");
+        when(inner.tryPush(first)).thenReturn(false);
+        when(inner.tryPush(retry)).thenReturn(true);
+        assertFalse(service.tryPush(first));
+        assertTrue(service.tryPush(retry));
+
+        verify(inner).tryPush(retry);
+        verify(delegate, never()).messageSendFailed(any(ApnsNotification.class), any(NotificationDroppedException.class));
+    }
+
+    @Test
+    public void letsRetryThroughAfterFailure() {
+        ApnsService inner = mock(ApnsService.class);
+        DeduplicatingApnsService service = new DeduplicatingApnsService(inner, 1, TimeUnit.MINUTES, 1000, null, null);
+
+        ApnsNotification first = notification(1, "aa", "{}");
+        ApnsNotification retry = notification(2, "aa", "{}");
+        doThrow(new NotificationDroppedException(NotificationDroppedException.Reason.QUEUE_FULL)).when(inner).push(first);
+        try {
+            service.push(first);
+            fail("the rejection should reach the caller");
+        } catch (NotificationDroppedException expected) {
+            // retried below
+        }
+        service.push(retry);
+
+        verify(inner).push(retry);
+    }
+
+    private static ApnsNotification notification(int id, String token, String payload) {
+        return new EnhancedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY, token, payload);
+    }
+}
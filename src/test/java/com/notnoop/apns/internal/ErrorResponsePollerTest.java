@@ -0,0 +1,148 @@
+package com.notnoop.apns.internal;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ErrorResponsePollerTest {
+
+    private ServerSocket server;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void stopServer() {
+        for (Socket socket : sockets) {
+            Utilities.close(socket);
+        }
+        Utilities.close(server);
+    }
+
+    /** Connects a client socket, returning it together with the accepted end. */
+    private Socket[] connect() throws IOException {
+        Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+        Socket accepted = server.accept();
+        sockets.add(client);
+        sockets.add(accepted);
+        return new Socket[] { client, accepted };
+    }
+
+    @Test
+    public void dispatchesErrorResponsesOfEachSocket() throws Exception {
+        ErrorResponsePoller poller = new ErrorResponsePoller();
+        Socket[] first = connect();
+        Socket[] second = connect();
+        Socket[] third = connect();
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener secondListener = new RecordingListener();
+        RecordingListener thirdListener = new RecordingListener();
+        poller.register(first[0], 0, firstListener);
+        poller.register(second[0], 0, secondListener);
+        poller.register(third[0], 0, thirdListener);
+        assertEquals(3, poller.size());
+
+        // split over two writes, the poller has to put the packet together
+        second[1].getOutputStream().write(new byte[] { 8, 8, 0 });
+        second[1].getOutputStream().flush();
+        Thread.sleep(20);
+        second[1].getOutputStream().write(new byte[] { 0, 0, 42 });
+        second[1].getOutputStream().flush();
+
+        assertEquals("error 8 for 42", secondListener.events.poll(2, TimeUnit.SECONDS));
+        assertEquals("closed", secondListener.events.poll(2, TimeUnit.SECONDS));
+        assertEquals("finished", secondListener.events.poll(2, TimeUnit.SECONDS));
+        assertTrue(second[0].isClosed());
+
+        third[1].close();
+        assertEquals("closed", thirdListener.events.poll(2, TimeUnit.SECONDS));
+        assertEquals("finished", thirdListener.events.poll(2, TimeUnit.SECONDS));
+
+        assertTrue(firstListener.events.isEmpty());
+        assertEquals(1, poller.size());
+    }
+
+    @Test
+    public void failsOnEofWithinPacket() throws Exception {
+        ErrorResponsePoller poller = new ErrorResponsePoller();
+        Socket[] pair = connect();
+        RecordingListener listener = new RecordingListener();
+        poller.register(pair[0], 0, listener);
+
+        pair[1].getOutputStream().write(new byte[] { 8, 8 });
+        pair[1].getOutputStream().flush();
+        Thread.sleep(20);
+        pair[1].close();
+
+        assertEquals("failed", listener.events.poll(2, TimeUnit.SECONDS));
+        assertEquals("finished", listener.events.poll(2, TimeUnit.SECONDS));
+        assertEquals(0, poller.size());
+    }
+
+    @Test
+    public void reportsReadTimeout() throws Exception {
+        ErrorResponsePoller poller = new ErrorResponsePoller();
+        Socket[] pair = connect();
+        RecordingListener listener = new RecordingListener();
+        poller.register(pair[0], 50, listener);
+
+        assertEquals("timed out", listener.events.poll(2, TimeUnit.SECONDS));
+        assertEquals("finished", listener.events.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void readTimeoutCountsFromLastRead() throws Exception {
+        ErrorResponsePoller poller = new ErrorResponsePoller();
+        Socket[] pair = connect();
+        RecordingListener listener = new RecordingListener();
+        poller.register(pair[0], 150, listener);
+
+        // trickles in over longer than the timeout, but never stalls for that long
+        for (byte b : new byte[] { 8, 8, 0, 0, 0, 42 }) {
+            Thread.sleep(80);
+            pair[1].getOutputStream().write(b);
+            pair[1].getOutputStream().flush();
+        }
+
+        assertEquals("error 8 for 42", listener.events.poll(2, TimeUnit.SECONDS));
+    }
+
+    private static class RecordingListener implements ErrorResponsePoller.Listener {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+        public void errorResponse(byte[] packet) {
+            events.add("error " + packet[1] + " for " + Utilities.parseBytes(packet[2], packet[3], packet[4], packet[5]));
+        }
+
+        public void closed() {
+            events.add("closed");
+        }
+
+        public void timedOut() {
+            events.add("timed out");
+        }
+
+        public void failed(IOException e) {
+            events.add("failed");
+        }
+
+        public void finished() {
+            events.add("finished");
+        }
+    }
+}
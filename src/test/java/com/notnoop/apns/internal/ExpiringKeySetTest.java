@@ -0,0 +1,52 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExpiringKeySetTest {
+
+    @Test
+    public void remembersKeysWithinWindow() {
+        ExpiringKeySet set = new ExpiringKeySet(1, TimeUnit.MINUTES, 100, 4);
+        assertTrue(set.add(42));
+        assertFalse(set.add(42));
+        assertTrue(set.add(43));
+        assertTrue(set.contains(42));
+        assertFalse(set.contains(44));
+    }
+
+    @Test
+    public void forgetsRemovedKeys() {
+        ExpiringKeySet set = new ExpiringKeySet(1, TimeUnit.MINUTES, 100, 4);
+        assertTrue(set.add(42));
+        assertTrue(set.remove(42));
+        assertFalse(set.remove(42));
+
+        assertFalse(set.contains(42));
+        assertTrue(set.add(42));
+    }
+
+    @Test
+    public void forgetsKeysAfterWindow() throws InterruptedException {
+        ExpiringKeySet set = new ExpiringKeySet(50, TimeUnit.MILLISECONDS, 100, 4);
+        assertTrue(set.add(42));
+        Thread.sleep(100);
+
+        assertFalse(set.contains(42));
+        assertTrue(set.add(42));
+    }
+
+    @Test
+    public void forgetsOldestKeysBeyondBound() {
+        ExpiringKeySet set = new ExpiringKeySet(1, TimeUnit.MINUTES, 4, 1);
+        for (long key = 0; key < 10; key++) {
+            set.add(key);
+        }
+        assertEquals(4, set.size());
+        assertFalse(set.contains(0));
+        assertTrue(set.contains(9));
+    }
+}
@@ -0,0 +1,52 @@
+package com.notnoop.apns.internal;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FlightRecorderTest {
+
+    @Test
+    public void keepsEventsInOrder() {
+        FlightRecorder recorder = new FlightRecorder(8);
+        recorder.record(FlightRecorder.Event.SEND, 1);
+        recorder.record(FlightRecorder.Event.SENT, 1, 2);
+        recorder.record(FlightRecorder.Event.ERROR_RESPONSE, -5, 8);
+
+        List<FlightRecorder.Entry> entries = recorder.snapshot();
+        assertEquals(3, entries.size());
+        assertEquals(FlightRecorder.Event.SEND, entries.get(0).getEvent());
+        assertEquals(FlightRecorder.Event.SENT, entries.get(1).getEvent());
+        assertEquals(2, entries.get(1).getArg());
+        assertEquals(-5, entries.get(2).getId());
+        assertEquals(8, entries.get(2).getArg());
+    }
+
+    @Test
+    public void overwritesOldestWhenWrapping() {
+        FlightRecorder recorder = new FlightRecorder(5);
+        for (int i = 0; i < 20; i++) {
+            recorder.record(FlightRecorder.Event.SENT, i);
+        }
+
+        List<FlightRecorder.Entry> entries = recorder.snapshot();
+        // capacity is rounded up to the next power of two
+        assertEquals(8, entries.size());
+        assertEquals(12, entries.get(0).getId());
+        assertEquals(19, entries.get(7).getId());
+        assertEquals(20, recorder.recorded());
+    }
+
+    @Test
+    public void dumpsOneLinePerEvent() {
+        FlightRecorder recorder = new FlightRecorder();
+        recorder.record(FlightRecorder.Event.CONNECTED, 0);
+        recorder.record(FlightRecorder.Event.RESEND_QUEUED, 42, 7);
+
+        String dump = recorder.dump();
+        assertEquals(2, dump.split("\n").length);
+        assertTrue(dump.contains("RESEND_QUEUED id=42 arg=7"));
+    }
+}
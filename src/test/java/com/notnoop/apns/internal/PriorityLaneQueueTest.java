@@ -0,0 +1,114 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.NotificationPriority;
+import com.notnoop.apns.PriorityClassifier;
+import com.notnoop.exceptions.NotificationDroppedException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class PriorityLaneQueueTest {
+
+    // identifiers 1xx are high, 2xx normal and 3xx low priority
+    private static final PriorityClassifier BY_IDENTIFIER = new PriorityClassifier() {
+        public NotificationPriority priorityOf(ApnsNotification notification) {
+            return NotificationPriority.values()[notification.getIdentifier() / 100 - 1];
+        }
+    };
+
+    @Test
+    public void servesLanesByWeight() {
+        PriorityLaneQueue queue = new PriorityLaneQueue(100, BY_IDENTIFIER, new int[] { 3, 2, 1 }, null);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(notification(300 + i));
+            queue.offer(notification(200 + i));
+            queue.offer(notification(100 + i));
+        }
+
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            order.append(queue.poll().getIdentifier() / 100);
+        }
+        assertEquals("111223111223", order.toString());
+        assertEquals(18, queue.size());
+        assertEquals(4, queue.size(NotificationPriority.HIGH));
+    }
+
+    @Test
+    public void keepsOrderWithinLane() {
+        PriorityLaneQueue queue = new PriorityLaneQueue(10, BY_IDENTIFIER, new int[] { 1, 1, 1 }, null);
+        queue.offer(notification(201));
+        queue.offer(notification(202));
+        queue.offer(notification(203));
+
+        assertEquals(201, queue.peek().getIdentifier());
+        assertEquals(201, queue.poll().getIdentifier());
+        assertEquals(202, queue.poll().getIdentifier());
+        assertEquals(203, queue.poll().getIdentifier());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void shedsOldestLowerPriorityWhenFull() {
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        PriorityLaneQueue queue = new PriorityLaneQueue(3, BY_IDENTIFIER, new int[] { 1, 1, 1 }, delegate);
+        ApnsNotification oldestLow = notification(301);
+        queue.offer(oldestLow);
+        queue.offer(notification(302));
+        queue.offer(notification(201));
+
+        assertTrue(queue.offer(notification(101)));
+        assertEquals(3, queue.size());
+        assertEquals(1, queue.size(NotificationPriority.LOW));
+        verify(delegate).messageSendFailed(same(oldestLow), any(NotificationDroppedException.class));
+    }
+
+    @Test
+    public void refusesWhenNothingRanksLower() {
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        PriorityLaneQueue queue = new PriorityLaneQueue(2, BY_IDENTIFIER, new int[] { 1, 1, 1 }, delegate);
+        queue.offer(notification(201));
+        queue.offer(notification(301));
+
+        assertFalse(queue.offer(notification(302)));
+        assertEquals(2, queue.size());
+        verify(delegate, never()).messageSendFailed(any(ApnsNotification.class), any(Throwable.class));
+    }
+
+    @Test
+    public void takeWaitsForNotification() throws Exception {
+        final PriorityLaneQueue queue = new PriorityLaneQueue(10, BY_IDENTIFIER, new int[] { 1, 1, 1 }, null);
+        final AtomicReference<ApnsNotification> taken = new AtomicReference<ApnsNotification>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread consumer = new Thread() {
+            public void run() {
+                try {
+                    taken.set(queue.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        };
+        consumer.start();
+        assertFalse(done.await(50, TimeUnit.MILLISECONDS));
+
+        ApnsNotification n = notification(201);
+        queue.offer(n);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertSame(n, taken.get());
+    }
+
+    private static ApnsNotification notification(int id) {
+        return new EnhancedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY, "2342", "{}");
+    }
+}
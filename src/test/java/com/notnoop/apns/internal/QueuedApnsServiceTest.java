@@ -3,15 +3,25 @@ package com.notnoop.apns.internal;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 import static org.mockito.Mockito.*;
 
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsMetrics;
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.QueueOverflowPolicy;
 import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.NotificationDroppedException;
+import uk.org.lidalia.slf4jext.Level;
+import uk.org.lidalia.slf4jtest.LoggingEvent;
+import uk.org.lidalia.slf4jtest.TestLogger;
+import uk.org.lidalia.slf4jtest.TestLoggerFactory;
 
 public class QueuedApnsServiceTest {
 
@@ -23,6 +33,26 @@ public class QueuedApnsServiceTest {
     EnhancedApnsNotification notification = new EnhancedApnsNotification(1,
             EnhancedApnsNotification.MAXIMUM_EXPIRY, "2342", "{}");
 
+    @Test
+    public void droppedNotificationIsNoSurprise() {
+        TestLogger log = TestLoggerFactory.getTestLogger(QueuedApnsService.class);
+        log.clearAll();
+        ApnsService inner = mock(ApnsService.class);
+        doThrow(new NotificationDroppedException(NotificationDroppedException.Reason.DEADLINE_EXCEEDED))
+                .when(inner).push(notification);
+        QueuedApnsService queued = new QueuedApnsService(inner);
+        queued.start();
+
+        queued.push(notification);
+        queued.flush();
+        queued.stop();
+
+        verify(inner).push(notification);
+        for (LoggingEvent event : log.getAllLoggingEvents()) {
+            assertNotEquals(event.getMessage(), Level.WARN, event.getLevel());
+        }
+    }
+
     @Test
     public void pushEventually() {
         ConnectionStub connection = spy(new ConnectionStub(0, 1));
@@ -65,6 +95,86 @@ public class QueuedApnsServiceTest {
         queued.stop();
     }
 
+    @Test
+    public void drainInBatches() {
+        ConnectionStub connection = spy(new ConnectionStub(50, 10));
+        QueuedApnsService queued =
+                new QueuedApnsService(new ApnsServiceImpl(connection, null));
+        queued.setDrainParallelism(2, 8);
+        queued.start();
+        for (int i = 0; i < 10; i++) {
+            queued.push(notification);
+        }
+
+        connection.semaphore.acquireUninterruptibly();
+        verify(connection, times(10)).sendMessage(notification);
+        verify(connection, atLeastOnce()).sendMessages(anyCollectionOf(ApnsNotification.class));
+
+        queued.stop();
+    }
+
+    @Test
+    public void dropsExpiredNotifications() {
+        ConnectionStub connection = spy(new ConnectionStub(0, 1));
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        ApnsMetrics metrics = new ApnsMetrics();
+        QueuedApnsService queued = new QueuedApnsService(new ApnsServiceImpl(connection, null), null, 0,
+                QueueOverflowPolicy.REJECT, 0, null, delegate);
+        queued.setMetrics(metrics);
+        queued.start();
+        EnhancedApnsNotification expired = new EnhancedApnsNotification(2, 1, "2342", "{}");
+        queued.push(expired);
+        queued.push(notification);
+
+        connection.semaphore.acquireUninterruptibly();
+        verify(connection, times(1)).sendMessage(notification);
+        verify(connection, never()).sendMessage(expired);
+        verify(delegate).messageSendFailed(eq(expired), any(NotificationDroppedException.class));
+        assertEquals(1, metrics.getExpiredDrops());
+
+        queued.stop();
+    }
+
+    @Test
+    public void flushWaitsForQueuedNotifications() throws Exception {
+        ConnectionStub connection = spy(new ConnectionStub(20, 5));
+        QueuedApnsService queued =
+                new QueuedApnsService(new ApnsServiceImpl(connection, null));
+        queued.start();
+        for (int i = 0; i < 5; i++) {
+            queued.push(notification);
+        }
+
+        queued.flush();
+        verify(connection, times(5)).sendMessage(notification);
+        verify(connection).flush();
+        assertEquals(0, queued.getQueueSize());
+        assertTrue(queued.awaitConfirmation(1, TimeUnit.SECONDS));
+
+        queued.stop();
+    }
+
+    @Test
+    public void dropsNotificationsPastTheirDeadline() throws Exception {
+        ConnectionStub connection = spy(new ConnectionStub(200, 1));
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        QueuedApnsService queued = new QueuedApnsService(new ApnsServiceImpl(connection, null), null, 0,
+                QueueOverflowPolicy.REJECT, 0, null, delegate);
+        queued.start();
+        queued.push(notification);
+        // let the worker get stuck sending the first one
+        Thread.sleep(50);
+        EnhancedApnsNotification late = new EnhancedApnsNotification(2, EnhancedApnsNotification.MAXIMUM_EXPIRY, "2342", "{}");
+        queued.push(late, 20, TimeUnit.MILLISECONDS);
+
+        queued.flush();
+        verify(connection, times(1)).sendMessage(notification);
+        verify(connection, never()).sendMessage(late);
+        verify(delegate).messageSendFailed(eq(late), any(NotificationDroppedException.class));
+
+        queued.stop();
+    }
+
     protected ApnsService newService(ApnsConnection connection, ApnsFeedbackConnection feedback) {
         ApnsService service = new ApnsServiceImpl(connection, null);
         ApnsService queued = new QueuedApnsService(service);
@@ -96,6 +206,12 @@ public class QueuedApnsServiceTest {
             semaphore.release();
         }
 
+        public void sendMessages(Collection<? extends ApnsNotification> messages) {
+            for (ApnsNotification m : messages) {
+                sendMessage(m);
+            }
+        }
+
         protected void interrupt() {
             stop = true;
         }
@@ -107,9 +223,19 @@ public class QueuedApnsServiceTest {
         public void close() throws IOException {
         }
 
+        public void connect() throws NetworkIOException {
+        }
+
         public void testConnection() throws NetworkIOException {
         }
 
+        public void flush() throws NetworkIOException {
+        }
+
+        public boolean awaitConfirmation(long timeout, TimeUnit unit) {
+            return true;
+        }
+
         public void setCacheLength(int cacheLength) {
         }
 
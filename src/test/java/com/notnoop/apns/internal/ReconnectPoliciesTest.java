@@ -0,0 +1,93 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ReconnectPolicy;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPoliciesTest {
+
+    @Test
+    public void copiesArePhaseShifted() throws InterruptedException {
+        ReconnectPolicies.Periodic policy = new ReconnectPolicies.Periodic(400, TimeUnit.MILLISECONDS, 0);
+        // the first copy drops about 62% of its first period, the second 24%
+        ReconnectPolicy first = policy.copy();
+        ReconnectPolicy second = policy.copy();
+        policy.reconnected();
+        first.reconnected();
+        second.reconnected();
+
+        Thread.sleep(250);
+        assertFalse(policy.shouldReconnect());
+        assertTrue(first.shouldReconnect());
+        assertFalse(second.shouldReconnect());
+
+        // later periods are whole again
+        first.reconnected();
+        Thread.sleep(250);
+        assertFalse(first.shouldReconnect());
+    }
+
+    @Test
+    public void staggeredCopiesShareTheLimit() {
+        ReconnectPolicy policy = new ReconnectPolicies.Staggered(new ReconnectPolicies.Always(), 2);
+        ReconnectPolicy a = policy.copy();
+        ReconnectPolicy b = policy.copy();
+        ReconnectPolicy c = policy.copy();
+
+        assertTrue(a.shouldReconnect());
+        assertTrue(b.shouldReconnect());
+        assertFalse(c.shouldReconnect());
+        // asking again keeps the turn
+        assertTrue(a.shouldReconnect());
+
+        a.reconnected();
+        assertTrue(c.shouldReconnect());
+        assertFalse(a.shouldReconnect());
+    }
+
+    @Test
+    public void adaptiveReconnectsAfterIdlePeriod() throws InterruptedException {
+        ReconnectPolicies.Adaptive policy = new ReconnectPolicies.Adaptive(100, TimeUnit.MILLISECONDS, 0, 0, 0.5);
+        policy.reconnected();
+        assertFalse(policy.shouldReconnect());
+
+        Thread.sleep(60);
+        policy.notificationsSent(1, 100);
+        Thread.sleep(60);
+        assertFalse(policy.shouldReconnect());
+
+        Thread.sleep(100);
+        assertTrue(policy.shouldReconnect());
+        policy.reconnected();
+        assertFalse(policy.shouldReconnect());
+    }
+
+    @Test
+    public void adaptiveReconnectsAfterVolumeOrErrors() {
+        ReconnectPolicies.Adaptive policy = new ReconnectPolicies.Adaptive(1, TimeUnit.HOURS, 3, 0, 0.5);
+        policy.reconnected();
+        policy.notificationsSent(2, 200);
+        assertFalse(policy.shouldReconnect());
+        policy.notificationsSent(1, 100);
+        assertTrue(policy.shouldReconnect());
+        policy.reconnected();
+
+        // three errors against three writes are half of the attempts
+        policy.errorOccurred();
+        policy.errorOccurred();
+        assertFalse(policy.shouldReconnect());
+        policy.errorOccurred();
+        assertTrue(policy.shouldReconnect());
+        policy.reconnected();
+        assertFalse(policy.shouldReconnect());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsJitterAboveOne() {
+        new ReconnectPolicies.Periodic(1, TimeUnit.MINUTES, 2);
+    }
+}
@@ -0,0 +1,41 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetryBackoffTest {
+
+    @Test
+    public void delayDoublesUpToMaximum() {
+        RetryBackoff backoff = new RetryBackoff(10, 100, 500, TimeUnit.MILLISECONDS, 0);
+
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), backoff.delayNanos(0));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), backoff.delayNanos(1));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(400), backoff.delayNanos(2));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), backoff.delayNanos(3));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), backoff.delayNanos(60));
+    }
+
+    @Test
+    public void jitterShortensDelays() {
+        RetryBackoff backoff = new RetryBackoff(3, 1, 1, TimeUnit.SECONDS, 0.5);
+        long min = Long.MAX_VALUE, max = 0;
+        for (int i = 0; i < 1000; i++) {
+            long delay = backoff.delayNanos(0);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+
+        assertTrue(min >= TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(max <= TimeUnit.SECONDS.toNanos(1));
+        assertTrue("delays should spread", max - min > TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsJitterAboveOne() {
+        new RetryBackoff(3, 1, 1, TimeUnit.SECONDS, 1.5);
+    }
+}
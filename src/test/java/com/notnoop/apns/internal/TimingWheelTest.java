@@ -0,0 +1,103 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.ScheduledNotification;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TimingWheelTest {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void expiresEntriesAtTheirTickOnEveryLevel() {
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS);
+        long base = System.nanoTime();
+        // one delay per level of the wheel
+        long[] delays = { 5, 300, 70000, 20000000 };
+        for (long delay : delays) {
+            wheel.schedule(notification((int) delay), base + delay * TICK);
+        }
+        assertEquals(4, wheel.size());
+
+        List<TimingWheel.Entry> due = new ArrayList<TimingWheel.Entry>();
+        for (long delay : delays) {
+            wheel.advance(base + (delay - 1) * TICK, due);
+            assertTrue("early for " + delay, due.isEmpty());
+            wheel.advance(base + (delay + 1) * TICK, due);
+            assertEquals(1, due.size());
+            assertEquals((int) delay, due.get(0).getNotification().getIdentifier());
+            assertTrue(wheel.release(due.get(0)));
+            due.clear();
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void overdueEntriesExpireWithNextTick() {
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS);
+        long base = System.nanoTime();
+        List<TimingWheel.Entry> due = new ArrayList<TimingWheel.Entry>();
+        wheel.advance(base + 10 * TICK, due);
+
+        wheel.schedule(notification(1), base);
+        wheel.advance(base + 11 * TICK, due);
+        assertEquals(1, due.size());
+    }
+
+    @Test
+    public void cancelledEntriesAreNotReleased() {
+        TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS);
+        long base = System.nanoTime();
+        TimingWheel.Entry waiting = wheel.schedule(notification(1), base + 5 * TICK);
+        TimingWheel.Entry due = wheel.schedule(notification(2), base + 5 * TICK);
+        assertTrue(waiting.cancel());
+        assertTrue(waiting.isCancelled());
+        assertEquals(1, wheel.size());
+
+        List<TimingWheel.Entry> expired = new ArrayList<TimingWheel.Entry>();
+        wheel.advance(base + 10 * TICK, expired);
+        assertEquals(1, expired.size());
+        assertSame(due, expired.get(0));
+
+        assertTrue(due.cancel());
+        assertFalse(wheel.release(due));
+    }
+
+    @Test
+    public void serviceReleasesDueNotifications() throws Exception {
+        ApnsService inner = mock(ApnsService.class);
+        SchedulingApnsService service = new SchedulingApnsService(inner, 5, TimeUnit.MILLISECONDS, null, null);
+        service.start();
+        ApnsNotification later = notification(1);
+        ApnsNotification cancelled = notification(2);
+        ApnsNotification overdue = notification(3);
+        long now = System.currentTimeMillis();
+
+        service.scheduleAt(later, new Date(now + 100));
+        ScheduledNotification handle = service.scheduleAt(cancelled, new Date(now + 100));
+        service.scheduleAt(overdue, new Date(now - 1000));
+        handle.cancel();
+
+        verify(inner, timeout(1000)).push(overdue);
+        verify(inner, timeout(1000)).push(later);
+        Thread.sleep(50);
+        verify(inner, never()).push(cancelled);
+        assertEquals(0, service.getScheduledCount());
+        service.stop();
+    }
+
+    private static ApnsNotification notification(int id) {
+        return new EnhancedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY, "2342", "{}");
+    }
+}
@@ -0,0 +1,60 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import com.notnoop.apns.ApnsMetrics;
+
+public class TokenBucketTest {
+
+    @Test
+    public void allowsBurstThenRejects() {
+        TokenBucket bucket = new TokenBucket(1, 5, null);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(1));
+        }
+        assertFalse(bucket.tryAcquire(1));
+    }
+
+    @Test
+    public void refillsLazily() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 1, null);
+        assertTrue(bucket.tryAcquire(1));
+        assertFalse(bucket.tryAcquire(1));
+        Thread.sleep(30);
+        assertTrue(bucket.tryAcquire(1));
+    }
+
+    @Test
+    public void acquireWaitsAndRecordsTheWait() {
+        ApnsMetrics metrics = new ApnsMetrics();
+        TokenBucket bucket = new TokenBucket(50, 1, metrics);
+        assertEquals(0, bucket.acquire(1));
+
+        long start = System.nanoTime();
+        long waited = 0;
+        for (int i = 0; i < 5; i++) {
+            waited += bucket.acquire(1);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 5 tokens at 20ms each
+        assertTrue("elapsed " + elapsed, elapsed >= 90);
+        assertEquals(5, metrics.getThrottledSends());
+        assertEquals(TimeUnit.NANOSECONDS.toMillis(waited), metrics.getThrottleWaitMillis(), 5);
+    }
+
+    @Test
+    public void rateCanChange() {
+        TokenBucket bucket = new TokenBucket(10, 1, null);
+        bucket.setRate(1000);
+        assertEquals(1000, bucket.getRate(), 1);
+        assertTrue(bucket.tryAcquire(1));
+
+        TokenBucket copy = bucket.copy();
+        assertEquals(1000, copy.getRate(), 1);
+        assertTrue(copy.tryAcquire(1));
+    }
+}